@@ -443,9 +443,29 @@ public abstract class AbstractHandler implements MethodHandler {
      */
     protected int checkConditionalRequest(HttpServletRequest request, DavisSession davisSession,
             IRODSFile file) throws IOException {
+        return checkConditionalRequest(request, davisSession, file, null);
+    }
+
+    /**
+     * Checks conditional request headers as above, taking the ETag and
+     * modification time of the resource from a snapshot already fetched
+     * for this request rather than querying the server again.
+     *
+     * @param request The servlet request whose conditional cache headers
+     * will be examined.
+     * @param file The resource that is being examined.
+     * @param stat A snapshot of the resource's attributes, or
+     * <code>null</code> to fetch one if the request has conditional headers.
+     * @return An HTTP status code indicating the result.
+     * @throws IOException If an error occurs while examining the resource.
+     */
+    protected int checkConditionalRequest(HttpServletRequest request, DavisSession davisSession,
+            IRODSFile file, FileStat stat) throws IOException {
+        if (stat == null && hasConditionalHeaders(request))
+            stat = FileStat.stat(file, davisSession);   // One query for the ETag and time, rather than one per attribute
         Enumeration values = request.getHeaders("If-None-Match");
         if (values.hasMoreElements()) {
-            String etag = DavisUtilities.getETag(file);
+            String etag = DavisUtilities.getETag(stat);
             if (etag != null) {
                 boolean match = false;
                 do {
@@ -461,7 +481,7 @@ public abstract class AbstractHandler implements MethodHandler {
                     Log.log(Log.DEBUG, "Checking If-Modified-Since: {0}",
                             new Long(timestamp));
                     if (timestamp == -1 ||
-                            timestamp >= (file.lastModified() / 1000 * 1000)) {
+                            timestamp >= (stat.lastModified() / 1000 * 1000)) {
                         Log.log(Log.INFORMATION,
                                 "Resource has not been modified.");
                         return HttpServletResponse.SC_NOT_MODIFIED;
@@ -477,7 +497,7 @@ public abstract class AbstractHandler implements MethodHandler {
         } else {
             values = request.getHeaders("If-Match");
             if (values.hasMoreElements()) {
-                String etag = DavisUtilities.getETag(file);
+                String etag = DavisUtilities.getETag(stat);
                 if (etag == null) {
                     Log.log(Log.INFORMATION, "Precondition failed (no ETag).");
                     return HttpServletResponse.SC_PRECONDITION_FAILED;
@@ -501,7 +521,7 @@ public abstract class AbstractHandler implements MethodHandler {
             Log.log(Log.DEBUG, "Checking If-Unmodified-Since: {0}",
                     new Long(timestamp));
             if (timestamp != -1) {
-                if ((file.lastModified() / 1000 * 1000) > timestamp) {
+                if ((stat.lastModified() / 1000 * 1000) > timestamp) {
                     Log.log(Log.INFORMATION, "Precondition failed (modified).");
                     return HttpServletResponse.SC_PRECONDITION_FAILED;
                 } else {
@@ -513,7 +533,7 @@ public abstract class AbstractHandler implements MethodHandler {
                 Log.log(Log.DEBUG, "Checking If-Modified-Since: {0}",
                         new Long(timestamp));
                 if (timestamp != -1 &&
-                        timestamp >= (file.lastModified() / 1000 * 1000)) {
+                        timestamp >= (stat.lastModified() / 1000 * 1000)) {
                     Log.log(Log.INFORMATION, "Resource has not been modified.");
                     return HttpServletResponse.SC_NOT_MODIFIED;
                 } else {
@@ -523,7 +543,13 @@ public abstract class AbstractHandler implements MethodHandler {
         }
         if (getLockManager() == null) 
         	return HttpServletResponse.SC_OK;
-        return checkLockCondition(request, davisSession, file);
+        return checkLockCondition(request, davisSession, file, stat);
+    }
+
+    private boolean hasConditionalHeaders(HttpServletRequest request) {
+        return request.getHeader("If-None-Match") != null || request.getHeader("If-Match") != null
+                || request.getHeader("If-Modified-Since") != null || request.getHeader("If-Unmodified-Since") != null
+                || (getLockManager() != null && request.getHeader("If") != null);
     }
 
     /**
@@ -584,8 +610,8 @@ public abstract class AbstractHandler implements MethodHandler {
         return SC_LOCKED;
     }
 
-    private int checkLockCondition(HttpServletRequest request, DavisSession davisSession, IRODSFile file)
-            throws IOException {
+    private int checkLockCondition(HttpServletRequest request, DavisSession davisSession, IRODSFile file,
+            FileStat stat) throws IOException {
         Enumeration values = request.getHeaders("If");
         if (!values.hasMoreElements()) return HttpServletResponse.SC_OK;
         try {
@@ -598,7 +624,7 @@ public abstract class AbstractHandler implements MethodHandler {
                     index = header.indexOf('(');
                     String noTagList = header.substring(index,
                             header.lastIndexOf(')') + 1);
-                    result = processNoTagList(noTagList, request, file);
+                    result = processNoTagList(noTagList, request, file, stat);
                 } else {
                     String taggedList = header.substring(index,
                             header.lastIndexOf(')') + 1);
@@ -624,7 +650,7 @@ public abstract class AbstractHandler implements MethodHandler {
     }
 
     private int processNoTagList(String noTagList, HttpServletRequest request,
-            IRODSFile file) throws IOException {
+            IRODSFile file, FileStat stat) throws IOException {
         Log.log(Log.DEBUG, "Processing No-tag-list against \"{0}\": {1}",
                 new Object[] { file, noTagList });
         boolean inQuote = false;
@@ -635,7 +661,7 @@ public abstract class AbstractHandler implements MethodHandler {
         StringBuffer lockToken = null;
         Set requiredEtags = null;
         Set requiredLockTokens = null;
-        String resourceEtag = DavisUtilities.getETag(file);
+        String resourceEtag = DavisUtilities.getETag(stat);
         Log.log(Log.DEBUG, "Resource ETag is {0}", resourceEtag);
         StringTokenizer tokenizer =
                 new StringTokenizer(noTagList, "()[]<> \"", true);
@@ -800,7 +826,7 @@ public abstract class AbstractHandler implements MethodHandler {
                 } else {
                     int result = processNoTagList(list.toString().trim(),
                             request, getRelativeFile(request, davisSession, file,
-                                    resource.toString().trim()));
+                                    resource.toString().trim()), null);
                     list.setLength(0);
                     resource.setLength(0);
                     if (result != HttpServletResponse.SC_OK) return result;
@@ -832,7 +858,7 @@ public abstract class AbstractHandler implements MethodHandler {
         }
         if (inList || inResource || inQuote) throw new IllegalStateException();
         return processNoTagList(list.toString().trim(), request,
-                getRelativeFile(request, davisSession, file, resource.toString().trim()));
+                getRelativeFile(request, davisSession, file, resource.toString().trim()), null);
     }
 
     private IRODSFile getRelativeFile(HttpServletRequest request, DavisSession davisSession, IRODSFile base,
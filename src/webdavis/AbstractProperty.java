@@ -18,12 +18,15 @@ import org.w3c.dom.Node;
  * This class provides a basic implementation of much of the
  * <code>Property</code> interface.  Subclasses need only provide an
  * implementation of the <code>retrieve</code> method for read-only
- * properties which apply to all resources.
+ * properties which apply to all resources.  The snapshot methods of
+ * <code>SnapshotProperty</code> fall back to the live methods, so
+ * subclasses should override them if the value can be worked out from
+ * a <code>FileStat</code>.
  *
  * @author Shunde Zhang
  * @author Eric Glass
  */
-public abstract class AbstractProperty implements Property {
+public abstract class AbstractProperty implements SnapshotProperty {
 
     private ServletConfig config;
 
@@ -94,6 +97,24 @@ public abstract class AbstractProperty implements Property {
         }
     }
 
+    /**
+     * Creates a property element for the given resource snapshot.  This
+     * default implementation calls <code>createElement(Document, IRODSFile)</code>.
+     */
+    public Element createElement(Document document, FileStat stat)
+            throws IOException {
+        return createElement(document, stat.getFile());
+    }
+
+    /**
+     * Populates the provided element from the given resource snapshot.  This
+     * default implementation calls <code>retrieve(IRODSFile, Element)</code>.
+     */
+    public int retrieve(FileStat stat, Element element)
+            throws IOException {
+        return retrieve(stat.getFile(), element);
+    }
+
     /**
      * Updates this property on the given resource using the information
      * int the specified element.  This default implementation does nothing,
@@ -0,0 +1,479 @@
+package webdavis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.core.pub.io.IRODSFileFactory;
+
+/**
+ * Unpacks a streamed zip, tar or gzipped tar archive into a collection.
+ *
+ * The archive is read once, in order. Collections are created the first time
+ * they're needed and their existing contents are listed once, so objects
+ * don't need individual existence checks. Entries small enough to be buffered
+ * are written concurrently by a <code>SessionWorkerPool</code>, larger ones
+ * are streamed straight from the archive by the calling thread.
+ *
+ * Each entry is checked as a PUT of it would be: against the locks on it,
+ * through the caller's <code>EntryCheck</code>, and against put-size-limit.
+ * An entry which is streamed over an existing object is written to a
+ * temporary object first when it might exceed the limit, so it can't leave
+ * the existing object truncated. The temporary object is then copied into
+ * the existing one, which keeps its permissions and metadata.
+ */
+public class ArchiveExpander {
+
+	public static final String OK = "ok";
+
+	private static final int BUFFER_LIMIT = 1024*1024;	// Entries up to this size are buffered and written by a worker
+
+	private DavisSession davisSession;
+	private String target;
+	private boolean overwrite;
+	private int threads;
+	private EntryCheck check;
+	private long sizeLimit;
+	private Map<String, String> results = new LinkedHashMap<String, String>();
+	private Map<String, Set<String>> collections = new HashMap<String, Set<String>>();	// Known collections and the names they contain
+
+	public ArchiveExpander(DavisSession davisSession, IRODSFile target, boolean overwrite, int threads, EntryCheck check) {
+		this.davisSession = davisSession;
+		this.target = target.getAbsolutePath();
+		this.overwrite = overwrite;
+		this.threads = threads;
+		this.check = check;
+		this.sizeLimit = Davis.getConfig().getPutSizeLimit();
+	}
+
+	/**
+	 * Reads the archive from the given stream and unpacks it. The archive
+	 * type is detected from its first bytes.
+	 *
+	 * @param input The archive data.
+	 * @return A map of entry names to either <code>OK</code> or an error message, in archive order.
+	 * @throws IOException If the archive can't be read.
+	 */
+	public Map<String, String> expand(InputStream input) throws IOException {
+		InputStream stream = new BufferedInputStream(input, 64*1024);
+		stream.mark(2);
+		int b1 = stream.read();
+		int b2 = stream.read();
+		stream.reset();
+		if (b1 == 0x1f && b2 == 0x8b) {
+			stream = new BufferedInputStream(new GZIPInputStream(stream), 64*1024);
+			stream.mark(2);
+			b1 = stream.read();
+			b2 = stream.read();
+			stream.reset();
+		}
+		SessionWorkerPool pool = new SessionWorkerPool(davisSession, threads);
+		try {
+			if (b1 == 'P' && b2 == 'K') {
+				ZipInputStream zip = new ZipInputStream(stream);
+				ZipEntry entry;
+				while ((entry = getNextEntry(zip)) != null)
+					processEntry(pool, entry.getName(), entry.isDirectory(), entry.getSize(), zip);
+			} else {
+				TarInputStream tar = new TarInputStream(stream);
+				while (tar.getNextEntry()) {
+					if (tar.isDirectory() || tar.isFile())
+						processEntry(pool, tar.getName(), tar.isDirectory(), tar.getSize(), tar);
+					else
+						setResult(tar.getName(), "Unsupported entry type");
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return results;
+	}
+
+	private static ZipEntry getNextEntry(ZipInputStream zip) throws IOException {
+		try {
+			return zip.getNextEntry();
+		} catch (IllegalArgumentException e) {	// An entry name which isn't valid UTF-8
+			throw new IOException("Invalid zip archive: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * @param size The entry's size, or -1 if it isn't known until it's read.
+	 */
+	private void processEntry(SessionWorkerPool pool, String name, boolean directory, long size, InputStream input) throws IOException {
+		String relativePath = DavisUtilities.normaliseRelativePath(name);
+		if (relativePath == null) {
+			setResult(name, "Invalid path");
+			return;
+		}
+		if (directory) {
+			setResult(name, ensureCollection(target+IRODSFile.PATH_SEPARATOR+relativePath));
+			return;
+		}
+		String path = target+IRODSFile.PATH_SEPARATOR+relativePath;
+		int i = path.lastIndexOf(IRODSFile.PATH_SEPARATOR);
+		String parent = path.substring(0, i);
+		String fileName = path.substring(i+1);
+		String result = ensureCollection(parent);
+		if (!result.equals(OK)) {
+			setResult(name, result);
+			return;
+		}
+		Set<String> names = collections.get(parent);
+		boolean exists = names.contains(fileName);
+		if (exists && !overwrite) {
+			setResult(name, "File already exists");
+			return;
+		}
+		if (sizeLimit > 0 && size > sizeLimit) {
+			setResult(name, "File is larger than the size limit");
+			return;
+		}
+		IRODSFile file;
+		try {
+			file = davisSession.getFileFactory().instanceIRODSFile(path);
+		} catch (JargonException e) {
+			setResult(name, e.getMessage());
+			return;
+		}
+		if (check != null && check.check(file) != HttpServletResponse.SC_OK) {
+			setResult(name, "Resource is locked");
+			return;
+		}
+		names.add(fileName);
+
+		// Buffer the entry if it's small enough, otherwise stream it from the archive in this thread
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int count;
+		while (buffer.size() <= BUFFER_LIMIT && (count = input.read(buf)) != -1)
+			buffer.write(buf, 0, count);
+		if (buffer.size() <= BUFFER_LIMIT) {
+			if (sizeLimit > 0 && buffer.size() > sizeLimit) {
+				setResult(name, "File is larger than the size limit");
+				return;
+			}
+			setResult(name, "Pending");
+			pool.execute(new WriteTask(name, path, buffer.toByteArray()));
+		} else
+			setResult(name, write(file, buffer.toByteArray(), input, exists && sizeLimit > 0));
+	}
+
+	/**
+	 * Makes sure the collection exists, creating it (and any parents) if
+	 * necessary, and records the names it currently contains.
+	 */
+	private String ensureCollection(String path) {
+		if (collections.containsKey(path))
+			return OK;
+		try {
+			IRODSFile collection = davisSession.getFileFactory().instanceIRODSFile(path);
+			Set<String> names = new HashSet<String>();
+			if (collection.exists()) {
+				if (!collection.isDirectory())
+					return "A file with this name already exists";
+				String[] list = collection.list();
+				if (list != null)
+					names.addAll(Arrays.asList(list));
+			} else if (!collection.mkdirs())
+				return "Failed to create collection";
+			collections.put(path, names);
+			return OK;
+		} catch (JargonException e) {
+			return e.getMessage();
+		} catch (IOException e) {
+			return e.getMessage();
+		}
+	}
+
+	private String write(String path, byte[] data) {
+		try {
+			return write(davisSession.getFileFactory().instanceIRODSFile(path), data, null, false);
+		} catch (JargonException e) {
+			Log.log(Log.DEBUG, "Failed to write "+path+": "+e);
+			return e.getMessage();
+		} catch (IOException e) {
+			Log.log(Log.DEBUG, "Failed to write "+path+": "+e);
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * Writes an entry, the rest of which, if any, is streamed from the
+	 * archive. An entry which grows past the size limit is removed.
+	 *
+	 * @param staged Whether to write to a temporary object which is copied
+	 * over the file once the entry has been written.
+	 */
+	private String write(IRODSFile target, byte[] data, InputStream rest, boolean staged) {
+		String path = target.getAbsolutePath();
+		IRODSFile file = target;
+		boolean tooLarge = false;
+		try {
+			IRODSFileFactory fileFactory = davisSession.getFileFactory();
+			if (staged)
+				file = fileFactory.instanceIRODSFile(target.getParent(), FSUtilities.getTemporaryName(target, "expand"));
+			OutputStream output = new BufferedOutputStream(fileFactory.instanceIRODSFileOutputStream(file), 1024*256);
+			try {
+				output.write(data);
+				if (rest != null) {
+					long total = data.length;
+					byte[] buf = new byte[64*1024];
+					int count;
+					while ((count = rest.read(buf)) != -1) {
+						if (sizeLimit > 0 && total+count > sizeLimit) {
+							tooLarge = true;
+							break;
+						}
+						output.write(buf, 0, count);
+						total += count;
+					}
+				}
+				output.flush();
+			} finally {
+				output.close();
+			}
+		} catch (JargonException e) {
+			Log.log(Log.DEBUG, "Failed to write "+path+": "+e);
+			if (staged)
+				file.deleteWithForceOption();
+			return e.getMessage();
+		} catch (IOException e) {
+			Log.log(Log.DEBUG, "Failed to write "+path+": "+e);
+			if (staged)
+				file.deleteWithForceOption();
+			return e.getMessage();
+		}
+		if (tooLarge) {
+			if (staged)
+				file.deleteWithForceOption();
+			else
+				file.delete();
+			return "File is larger than the size limit";
+		}
+		if (staged && !FSUtilities.overwrite(target, file, davisSession))
+			return "Failed to replace existing file";
+		return OK;
+	}
+
+	private void setResult(String name, String result) {
+		synchronized (results) {
+			results.put(name, result);
+		}
+	}
+
+	private class WriteTask implements Runnable {
+
+		private String name;
+		private String path;
+		private byte[] data;
+
+		public WriteTask(String name, String path, byte[] data) {
+			this.name = name;
+			this.path = path;
+			this.data = data;
+		}
+
+		public void run() {
+			setResult(name, write(path, data));
+		}
+	}
+
+	/**
+	 * Checks whether an entry may be written.
+	 */
+	public interface EntryCheck {
+
+		/**
+		 * @return An HTTP status, <code>SC_OK</code> if the file may be written.
+		 */
+		public int check(IRODSFile file) throws IOException;
+	}
+
+	/**
+	 * Minimal reader for POSIX (ustar) and GNU tar archives. Reading from the
+	 * stream returns the data of the current entry only.
+	 */
+	private static class TarInputStream extends FilterInputStream {
+
+		private static final int BLOCK = 512;
+
+		private String name;
+		private char type;
+		private long size;
+		private long remaining = 0;
+
+		public TarInputStream(InputStream in) {
+			super(in);
+		}
+
+		/**
+		 * Advances to the next entry.
+		 *
+		 * @return false at the end of the archive.
+		 */
+		public boolean getNextEntry() throws IOException {
+			skipToNextHeader();
+			String longName = null;
+			byte[] header = new byte[BLOCK];
+			while (true) {
+				if (!readBlock(header) || header[0] == 0)
+					return false;
+				if (!isChecksumValid(header))
+					throw new IOException("Not a valid zip, tar or gzipped tar archive");
+				name = field(header, 0, 100);
+				size = number(header, 124, 12);
+				if (size < 0)
+					throw new IOException("Invalid tar entry size");
+				type = (char)header[156];
+				if (field(header, 257, 5).equals("ustar")) {
+					String prefix = field(header, 345, 155);
+					if (prefix.length() > 0)
+						name = prefix+"/"+name;
+				}
+				remaining = size;
+				if (type == 'L') {	// GNU long name, the name of the next entry is the content of this one
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					byte[] buf = new byte[BLOCK];
+					int count;
+					while ((count = read(buf)) != -1)
+						buffer.write(buf, 0, count);
+					longName = new String(buffer.toByteArray(), "UTF-8").trim();
+					skipToNextHeader();
+				} else if (type == 'x' || type == 'g') {	// pax headers aren't supported, skip them
+					skipToNextHeader();
+				} else {
+					if (longName != null)
+						name = longName;
+					return true;
+				}
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public boolean isDirectory() {
+			return type == '5' || (type != 'L' && name.endsWith("/"));
+		}
+
+		public boolean isFile() {
+			return (type == '0' || type == 0 || type == '7') && !name.endsWith("/");
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b) throws IOException {
+			return read(b, 0, b.length);
+		}
+
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int count = in.read(b, offset, (int)Math.min(length, remaining));
+			if (count == -1)
+				throw new EOFException("Unexpected end of archive");
+			remaining -= count;
+			return count;
+		}
+
+		private void skipToNextHeader() throws IOException {
+			long padding = (BLOCK - size % BLOCK) % BLOCK;
+			long skip = remaining + padding;
+			while (skip > 0) {
+				long skipped = in.skip(skip);
+				if (skipped <= 0) {
+					if (in.read() == -1)
+						throw new EOFException("Unexpected end of archive");
+					skipped = 1;
+				}
+				skip -= skipped;
+			}
+			remaining = 0;
+			size = 0;
+		}
+
+		private boolean readBlock(byte[] block) throws IOException {
+			int offset = 0;
+			while (offset < block.length) {
+				int count = in.read(block, offset, block.length-offset);
+				if (count == -1)
+					return false;
+				offset += count;
+			}
+			return true;
+		}
+
+		/**
+		 * Checks a header against its checksum, the sum of its bytes with the
+		 * checksum field counted as spaces. Some old tars summed signed bytes.
+		 */
+		private static boolean isChecksumValid(byte[] header) throws IOException {
+			long unsigned = 0;
+			long signed = 0;
+			for (int i = 0; i < BLOCK; i++) {
+				int b = i >= 148 && i < 156 ? ' ' : header[i];
+				unsigned += b & 0xff;
+				signed += b;
+			}
+			long checksum = number(header, 148, 8);
+			return checksum == unsigned || checksum == signed;
+		}
+
+		/**
+		 * Reads a numeric field, octal, or base-256 as GNU tar writes sizes of
+		 * 8GB and over.
+		 */
+		private static long number(byte[] header, int offset, int length) throws IOException {
+			if ((header[offset] & 0x80) != 0) {
+				long value = header[offset] & 0x3f;
+				if ((header[offset] & 0x40) != 0)
+					return -1;	// Negative
+				for (int i = offset+1; i < offset+length; i++)
+					value = (value << 8) | (header[i] & 0xff);
+				return value;
+			}
+			String value = field(header, offset, length);
+			if (value.length() == 0)
+				return 0;
+			try {
+				return Long.parseLong(value, 8);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid tar header field: "+value);
+			}
+		}
+
+		private static String field(byte[] header, int offset, int length) throws IOException {
+			int end = offset;
+			while (end < offset+length && header[end] != 0)
+				end++;
+			return new String(header, offset, end-offset, "UTF-8").trim();
+		}
+	}
+}
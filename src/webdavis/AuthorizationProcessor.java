@@ -2,8 +2,11 @@ package webdavis;
 
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -19,20 +22,30 @@ import org.irods.jargon.core.connection.AuthScheme;
 
 public class AuthorizationProcessor {
 
-	private Map<String, DavisSession> connectionPool;
-	private static AuthorizationProcessor self;
+	private final SessionRegistry connectionPool;
+	private final ConcurrentHashMap<String, FutureTask<DavisSession>> logins=new ConcurrentHashMap<String, FutureTask<DavisSession>>();	// In progress, by session ID
+	private final CredentialCache credentials;
+	private final GSSCredentialCache gssCredentials;
+	private static volatile AuthorizationProcessor self;
 	protected long nonceSecret=this.hashCode() ^ System.currentTimeMillis();
 	private DavisConfig davisConfig;
 	
 	protected AuthorizationProcessor(){
-		connectionPool=new HashMap<String, DavisSession>();
+		connectionPool=new SessionRegistry();
 		davisConfig=Davis.getConfig();
+		credentials=new CredentialCache(davisConfig.getLoginCacheTTL());
+		gssCredentials=new GSSCredentialCache(davisConfig.getMyproxyRenewal());
 	}
 	public static AuthorizationProcessor getInstance(){
-		if (self==null){
+		AuthorizationProcessor processor=self;
+		if (processor!=null)
+			return processor;
+		synchronized (AuthorizationProcessor.class) {
+			if (self!=null)
+				return self;
 			if (Davis.getConfig().getAuthClass()!=null){
 				try {
-					self=(AuthorizationProcessor) Class.forName(Davis.getConfig().getAuthClass()).newInstance();
+					processor=(AuthorizationProcessor) Class.forName(Davis.getConfig().getAuthClass()).newInstance();
 					Log.log(Log.DEBUG, Davis.getConfig().getAuthClass()+" init'ed.");
 				} catch (InstantiationException e) {
 					// TODO Auto-generated catch block
@@ -45,9 +58,10 @@ public class AuthorizationProcessor {
 					e.printStackTrace();
 				}
 			}
-			if (self==null) self=new AuthorizationProcessor();
+			if (processor==null) processor=new AuthorizationProcessor();
+			self=processor;
+			return processor;
 		}
-		return self;
 	}
 	
 	// For basic auth
@@ -57,19 +71,15 @@ public class AuthorizationProcessor {
 		DavisSession davisSession=connectionPool.get(sessionID); // Look for existing Davis session
 		if (davisSession != null && reset) { // Session exists and reset requested
 			Log.log(Log.INFORMATION, "reset session "+sessionID);
-			try {
-				davisSession.disconnect();
-			} catch (RuntimeException e) {
-				Log.log(Log.WARNING, "Jargon failed to close session: "+davisSession+" - "+e.getMessage());
-			}
-			connectionPool.remove(sessionID);
+			if (connectionPool.remove(sessionID, davisSession))
+				disconnect(davisSession);
 		}else 
-		if (davisSession !=null && davisSession.isConnected()) { // Session exists and is alive
+		if (davisSession !=null && ConnectionMonitor.getInstance().isAlive(davisSession)) { // Session exists and is alive
 			Log.log(Log.DEBUG, "Got existing davisSession: "+davisSession);
 			return davisSession;
 		}
 		// No session found, or reset requested - create new session.
-		return login(authorization, null, null, null);	
+		return login(sessionID, authorization, null, null, null);	
 	}
 	
 	// For shib
@@ -79,19 +89,15 @@ public class AuthorizationProcessor {
 		DavisSession davisSession=connectionPool.get(sessionID); // Look for existing Davis session
 		if (davisSession !=null && reset) { // Session exists and reset requested
 			Log.log(Log.INFORMATION, "reset session "+sessionID);
-			try {
-				davisSession.disconnect();
-			} catch (RuntimeException e) {
-				Log.log(Log.WARNING, "Jargon failed to close session: "+davisSession+" - "+e.getMessage());
-			}
-			connectionPool.remove(sessionID);
+			if (connectionPool.remove(sessionID, davisSession))
+				disconnect(davisSession);
 		}else 
-		if (davisSession != null && davisSession.isConnected()){ // Session exists and is alive
+		if (davisSession != null && ConnectionMonitor.getInstance().isAlive(davisSession)){ // Session exists and is alive
 			Log.log(Log.DEBUG, "Got existing davisSession: "+davisSession);
 			return davisSession;
 		}
 		// No session found, or reset requested
-		return login(null, sharedToken, commonName, shibSessionID);
+		return login(sessionID, null, sharedToken, commonName, shibSessionID);
 	}
 	
 	protected String getUsername(String authorization){
@@ -112,30 +118,32 @@ public class AuthorizationProcessor {
 			return null;
 		}
 	}
-	private void clearOldSessionForTheSameUser(String user){
-		String sessionID=null;
-		for (String key:connectionPool.keySet()){
-			if (key.startsWith(user+"|")){
-				sessionID=key;
-				break;
-			}
-		}
-		if (sessionID!=null){
-			try {
-				connectionPool.get(sessionID).disconnect();
-			} catch (RuntimeException e) {
-				Log.log(Log.WARNING, "Jargon failed to close session: "+e.getMessage());
-			}
-			connectionPool.remove(sessionID);
-			Log.log(Log.INFORMATION,"removed old session from pool:"+sessionID);
+	private void disconnect(DavisSession session){
+		try {
+			session.disconnect();
+		} catch (RuntimeException e) {
+			Log.log(Log.WARNING, "Jargon failed to close session: "+session+" - "+e.getMessage());
 		}
 	}
 
-    protected GSSCredential myproxyLogin(String user, char[] password, String host)
+    /**
+     * Returns a credential from MyProxy for a user, cached for its lifetime,
+     * so logging in again doesn't go back to the MyProxy server.
+     */
+    protected GSSCredential myproxyLogin(final String user, final char[] password, final String host)
     {
-        Log.log(Log.DEBUG,"logging in with myproxy: "+ host);
         if (host == null || host.equals(""))
             return null;
+        return gssCredentials.get(host, user, password, new Callable<GSSCredential>() {
+            public GSSCredential call() {
+                return retrieveMyproxyCredential(user, password, host);
+            }
+        });
+    }
+
+    private GSSCredential retrieveMyproxyCredential(String user, char[] password, String host)
+    {
+        Log.log(Log.DEBUG,"logging in with myproxy: "+ host);
         
         try{
             MyProxy mp = new MyProxy(host, 7512);
@@ -168,7 +176,39 @@ public class AuthorizationProcessor {
         }
     }
 	
-	private DavisSession login(String authorization, String sharedToken, String commonName, String shibSessionID){
+	/**
+	 * Logs in, or waits for a login in progress for the same session ID (the
+	 * same credentials) to finish and shares its result, so a client opening
+	 * many connections at once is only authenticated once.
+	 */
+	private DavisSession login(final String sessionID, final String authorization, final String sharedToken, final String commonName, final String shibSessionID){
+		FutureTask<DavisSession> task=new FutureTask<DavisSession>(new Callable<DavisSession>() {
+			public DavisSession call() {
+				return doLogin(sessionID, authorization, sharedToken, commonName, shibSessionID);
+			}
+		});
+		FutureTask<DavisSession> running=logins.putIfAbsent(sessionID, task);
+		if (running==null){
+			try {
+				task.run();
+			} finally {
+				logins.remove(sessionID, task);
+			}
+			running=task;
+		}else
+			Log.log(Log.DEBUG, "waiting for login in progress for "+sessionID);
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Log.log(Log.WARNING, "Authentication failed: "+DavisUtilities.getStackTrace(e.getCause()));
+			return null;
+		}
+	}
+
+	private DavisSession doLogin(String sessionID, String authorization, String sharedToken, String commonName, String shibSessionID){
 		
 		String idpName = null;
 		String user = null;
@@ -178,10 +218,9 @@ public class AuthorizationProcessor {
 		String defaultResource=davisConfig.getDefaultResource();
 		String serverName=davisConfig.getServerName();
 		GSSCredential gssCredential=null;
-		String sessionID=null;
+		ServerBalancer.Endpoint endpoint=null;
 		
 		if (sharedToken !=null && commonName !=null && sharedToken.length() > 0 && commonName.length() > 0){ // Shib session?
-			sessionID = "|"+SimpleMD5.MD5(sharedToken+":"+shibSessionID) + "*shib|";
 			ShibUtil shibUtil=new ShibUtil();
 			Map result;
 			if (sharedToken !=null && commonName !=null && (result=shibUtil.passInShibSession(sharedToken,commonName)) != null){  //found shib session, get username/password
@@ -204,8 +243,6 @@ public class AuthorizationProcessor {
 			int index = authInfo.indexOf(':');
 			user = (index != -1) ? authInfo.substring(0, index) : authInfo;
 			password = (index != -1) ? authInfo.substring(index + 1).toCharArray() : "".toCharArray();
-			// sessionID is user|MD5(authorization)*basic|
-			sessionID=user+"|"+SimpleMD5.MD5(authorization) + "*basic|";
 			authUser=user;
 
 			idpName=davisConfig.getDefaultIdp();
@@ -342,12 +379,13 @@ public class AuthorizationProcessor {
 			if (gssCredential!=null){
 				Log.log(Log.DEBUG,"login with gssCredential");
 				davisSession = new DavisSession();
-				account = GSIIRODSAccount.instance(davisConfig.getServerName(),davisConfig.getServerPort(),gssCredential,defaultResource);
+				endpoint = ServerBalancer.getInstance().select(user);
+				account = GSIIRODSAccount.instance(endpoint.getHost(),endpoint.getPort(),gssCredential,defaultResource);
 //					account = new IRODSAccount(davisConfig.getServerName(),davisConfig.getServerPort(),"","","",davisConfig.getZoneName(),davisConfig.getDefaultResource());
 //					((IRODSAccount)account).setGSSCredential(gssCredential);
 				davisSession.setZone(davisConfig.getZoneName());
-				davisSession.setServerName(davisConfig.getServerName());
-				davisSession.setServerPort(davisConfig.getServerPort());
+				davisSession.setServerName(endpoint.getHost());
+				davisSession.setServerPort(endpoint.getPort());
 				davisSession.setDefaultResource(defaultResource);
 				try {
 					davisSession.setDn(gssCredential.getName().toString());
@@ -358,18 +396,27 @@ public class AuthorizationProcessor {
 				Log.log(Log.DEBUG, "Davis session created.");
 			}else if (user!=null&&password!=null){
 				Log.log(Log.DEBUG,"login with username/password");
-				account = new IRODSAccount(davisConfig.getServerName(), davisConfig.getServerPort(), user, new String(password), "/" + davisConfig.getZoneName() + "/home/" + user, davisConfig.getZoneName(), defaultResource);
+				endpoint = ServerBalancer.getInstance().select(user);
+				account = new IRODSAccount(endpoint.getHost(), endpoint.getPort(), user, new String(password), "/" + davisConfig.getZoneName() + "/home/" + user, davisConfig.getZoneName(), defaultResource);
 				davisSession = new DavisSession();
-				davisSession.setServerName(davisConfig.getServerName());
-				davisSession.setServerPort(davisConfig.getServerPort());
+				davisSession.setServerName(endpoint.getHost());
+				davisSession.setServerPort(endpoint.getPort());
 				davisSession.setAccount(user);
 				davisSession.setZone(davisConfig.getZoneName());
 				davisSession.setDefaultResource(defaultResource);
 				if (idpName != null && idpName.equalsIgnoreCase("pam")) account.setAuthenticationScheme(AuthScheme.PAM);
 			}
 			String[] resList = null;
-			Log.log(Log.DEBUG, "Creating IRODSFileSystem");
-			FSUtilities.establishIRODSFileSystemConnection(account);
+			// Basic auth credentials accepted a moment ago needn't be checked again, the connection authenticates when it's made
+			boolean verify=authorization==null||gssCredential!=null||!credentials.isVerified(authorization);
+			if (verify){
+				Log.log(Log.DEBUG, "Creating IRODSFileSystem");
+				FSUtilities.establishIRODSFileSystemConnection(account);
+				CircuitBreaker.getInstance().success(account.getHost(), account.getPort());
+				if (authorization!=null&&gssCredential==null)
+					credentials.verified(authorization);
+			}else
+				Log.log(Log.DEBUG, "Credentials verified recently, not authenticating again");
 			homeDir = account.getHomeDirectory();
 			if (davisSession.getAccount() == null || davisSession.getAccount().equals("")){
 				user = account.getUserName(); //FSUtilities.getiRODSUsernameByDN(irodsFileSystem, davisSession.getDn());
@@ -414,16 +461,21 @@ public class AuthorizationProcessor {
 					+ " defaultRes=" + davisSession.getDefaultResource()
 					+ " zone=" + davisSession.getZone());
 		} catch (Exception e) {
-			e.printStackTrace();
-			Log.log(Log.WARNING, "Authentication failed.");
+			Log.log(Log.WARNING, "Authentication failed: "+e);
+			if (endpoint!=null&&CircuitBreaker.isConnectionFailure(e))
+				CircuitBreaker.getInstance().failure(endpoint.getHost(), endpoint.getPort());
 			return null;
 		}
 		if (davisSession!=null){
 			davisSession.setSessionID(sessionID);
-			if (authUser!=null) {
-				clearOldSessionForTheSameUser(authUser);
+			ServerBalancer.getInstance().loggedIn(davisSession.getAccount(), endpoint);
+			// A basic auth user's sessions with other credentials are removed
+			for (DavisSession old:connectionPool.register(sessionID, authUser, davisSession, authUser!=null)){
+				if (old.getSessionID().equals(sessionID))
+					continue;	// Replaced by a concurrent login, its connection is ours
+				disconnect(old);
+				Log.log(Log.INFORMATION,"removed old session from pool:"+old.getSessionID());
 			}
-			connectionPool.put(sessionID, davisSession);
 		}
 		return davisSession;
 	}
@@ -504,40 +556,33 @@ public class AuthorizationProcessor {
         
         return new String(Base64.encodeBase64(nounce));
     }
+	public CredentialCache getCredentialCache() {
+		return credentials;
+	}
+	public GSSCredentialCache getGSSCredentialCache() {
+		return gssCredentials;
+	}
 	public void destroyConnectionPool() {
-		for (DavisSession session:connectionPool.values()){
-			try {
-				session.disconnect();
-			} catch (RuntimeException e) {
-				Log.log(Log.WARNING, "Jargon failed to close session: "+session+" - "+e.getMessage());
-			}
-		}
-		connectionPool=null;
-		
+		for (DavisSession session:connectionPool.clear())
+			disconnect(session);
 	}
 	public void destroy(String sessionID) {
-		DavisSession session=connectionPool.get(sessionID);
+		// Releasing the last HTTP session and removing the Davis session is atomic
+		DavisSession session=connectionPool.release(sessionID);
 		if (session!=null){
-			session.descreaseSharedNumber();
-			if (!session.isShared()){
-				Log.log(Log.DEBUG,"destroying:"+session);
-				try {
-					session.disconnect();
-				} catch (RuntimeException e) {
-					Log.log(Log.WARNING, "Jargon failed to close session: "+session+" - "+e.getMessage());
-				}
-				connectionPool.remove(sessionID);
-				Log.log(Log.INFORMATION,"num of connections in pool:"+connectionPool.size());
-			}else{
+			Log.log(Log.DEBUG,"destroying:"+session);
+			disconnect(session);
+			Log.log(Log.INFORMATION,"num of connections in pool:"+connectionPool.size());
+		}else{
+			session=connectionPool.get(sessionID);
+			if (session!=null)
 				Log.log(Log.DEBUG,"connection is being used:"+session);
-			}
 		}
-		
 	}
 	public DavisSession getDavisSessionByID(String sessionID) {
 		Log.log(Log.DEBUG, "Getting Davis seesion by ID: "+sessionID);
 		DavisSession session=connectionPool.get(sessionID);
-		if (!session.isConnected()){
+		if (session==null || !ConnectionMonitor.getInstance().isAlive(session)){
 //			session.disconnect();
 //			connectionPool.remove(sessionID);
 			return null;
@@ -0,0 +1,265 @@
+package webdavis;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops requests waiting on an iRODS server which is down.
+ *
+ * Each server endpoint has a breaker. It's closed while the server works,
+ * and opens after a number of connection failures in a row. While it's
+ * open, requests for the server are refused at once, instead of each
+ * holding a thread while it retries. A daemon thread checks whether the
+ * server is reachable again every retry interval; when it is the breaker
+ * is half open, and lets one request at a time through to try it. A
+ * success closes the breaker, a failure opens it again.
+ *
+ * The background check only opens a TCP connection to the server, so it
+ * needs no credentials. A trial request which neither succeeds nor fails
+ * (it's refused for its credentials, say) lets another through after the
+ * retry interval.
+ */
+public class CircuitBreaker {
+
+	private static final int CLOSED = 0;
+	private static final int OPEN = 1;
+	private static final int HALF_OPEN = 2;
+
+	private static final String[] STATES = {"closed", "open", "half open"};
+
+	private static final CircuitBreaker self = new CircuitBreaker();
+
+	private final Map<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private CircuitBreaker() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				probe();
+			}
+		}, "Davis circuit breaker");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static CircuitBreaker getInstance() {
+		return self;
+	}
+
+	/**
+	 * Returns whether a request may use a server. When the breaker is half
+	 * open this lets one request through to try the server, so it should be
+	 * called once for each request.
+	 */
+	public boolean allowRequest(String host, int port) {
+		if (getThreshold() <= 0)
+			return true;
+		Breaker breaker = breakers.get(getKey(host, port));
+		if (breaker == null)
+			return true;
+		synchronized (breaker) {
+			if (breaker.state == CLOSED)
+				return true;
+			long now = System.currentTimeMillis();
+			if (breaker.state == HALF_OPEN && now-breaker.trialStarted >= getRetryInterval()) {
+				breaker.trialStarted = now;
+				return true;
+			}
+		}
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Returns whether requests for a server are being refused.
+	 */
+	public boolean isOpen(String host, int port) {
+		Breaker breaker = breakers.get(getKey(host, port));
+		if (breaker == null)
+			return false;
+		synchronized (breaker) {
+			return breaker.state == OPEN;
+		}
+	}
+
+	/**
+	 * Returns whether a server which was down is being tried again.
+	 */
+	public boolean isHalfOpen(String host, int port) {
+		Breaker breaker = breakers.get(getKey(host, port));
+		if (breaker == null)
+			return false;
+		synchronized (breaker) {
+			return breaker.state == HALF_OPEN;
+		}
+	}
+
+	/**
+	 * Returns how many seconds a client refused by the breaker should wait
+	 * before trying again.
+	 */
+	public long getRetryAfter(String host, int port) {
+		Breaker breaker = breakers.get(getKey(host, port));
+		long wait = getRetryInterval();
+		if (breaker != null)
+			synchronized (breaker) {
+				if (breaker.state == OPEN)
+					wait = breaker.nextProbe-System.currentTimeMillis();
+			}
+		return Math.max((wait+999)/1000, 1);
+	}
+
+	/**
+	 * Records that a server was used successfully.
+	 */
+	public void success(String host, int port) {
+		Breaker breaker = breakers.get(getKey(host, port));
+		if (breaker == null)
+			return;
+		synchronized (breaker) {
+			breaker.failures = 0;
+			if (breaker.state != CLOSED) {
+				breaker.state = CLOSED;
+				Log.log(Log.WARNING, "iRODS server "+getKey(host, port)+" is back, closing circuit breaker");
+			}
+		}
+	}
+
+	/**
+	 * Records that a connection to a server failed.
+	 */
+	public void failure(String host, int port) {
+		int threshold = getThreshold();
+		if (threshold <= 0)
+			return;
+		Breaker breaker = getBreaker(getKey(host, port));
+		synchronized (breaker) {
+			breaker.failures++;
+			if (breaker.state == HALF_OPEN || (breaker.state == CLOSED && breaker.failures >= threshold)) {
+				breaker.state = OPEN;
+				breaker.openedCount++;
+				breaker.nextProbe = System.currentTimeMillis()+getRetryInterval();
+				Log.log(Log.WARNING, "iRODS server "+getKey(host, port)+" failed "+breaker.failures+" times, opening circuit breaker");
+			}
+		}
+	}
+
+	/**
+	 * Returns whether an exception, or one it was caused by, shows that the
+	 * server couldn't be reached, rather than that it refused the request.
+	 */
+	public static boolean isConnectionFailure(Throwable throwable) {
+		for (int i = 0; throwable != null && i < 10; i++) {
+			if (throwable instanceof SocketException || throwable instanceof SocketTimeoutException
+					|| throwable instanceof UnknownHostException)
+				return true;
+			throwable = throwable.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of requests refused while a breaker was open.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public String toString() {
+		StringBuffer buffer = new StringBuffer("rejected: "+getRejectedCount());
+		for (Map.Entry<String, Breaker> entry : breakers.entrySet()) {
+			Breaker breaker = entry.getValue();
+			synchronized (breaker) {
+				buffer.append("   "+entry.getKey()+": "+STATES[breaker.state]+" (opened "+breaker.openedCount+" times)");
+			}
+		}
+		return buffer.toString();
+	}
+
+	private Breaker getBreaker(String key) {
+		Breaker breaker = breakers.get(key);
+		if (breaker == null) {
+			breaker = new Breaker();
+			Breaker existing = ((ConcurrentHashMap<String, Breaker>) breakers).putIfAbsent(key, breaker);
+			if (existing != null)
+				breaker = existing;
+		}
+		return breaker;
+	}
+
+	private static String getKey(String host, int port) {
+		return host+":"+port;
+	}
+
+	private void probe() {
+		while (true) {
+			long interval = getRetryInterval();
+			try {
+				Thread.sleep(Math.max(Math.min(interval/4, 1000), 100));
+			} catch (InterruptedException e) {
+				// Daemon thread, carry on
+			}
+			for (Map.Entry<String, Breaker> entry : breakers.entrySet()) {
+				Breaker breaker = entry.getValue();
+				synchronized (breaker) {
+					if (breaker.state != OPEN || System.currentTimeMillis() < breaker.nextProbe)
+						continue;
+				}
+				String key = entry.getKey();
+				int index = key.lastIndexOf(':');
+				boolean reachable = isReachable(key.substring(0, index), Integer.parseInt(key.substring(index+1)), (int) Math.min(interval, 5000));
+				synchronized (breaker) {
+					if (breaker.state != OPEN)
+						continue;
+					if (reachable) {
+						breaker.state = HALF_OPEN;
+						breaker.trialStarted = 0;
+						Log.log(Log.WARNING, "iRODS server "+key+" is reachable, trying requests");
+					} else
+						breaker.nextProbe = System.currentTimeMillis()+interval;
+				}
+			}
+		}
+	}
+
+	private static boolean isReachable(String host, int port, int timeout) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			return true;
+		} catch (IOException e) {
+			Log.log(Log.DEBUG, "iRODS server "+host+":"+port+" is unreachable: "+e);
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private static int getThreshold() {
+		return Davis.getConfig() == null ? 5 : Davis.getConfig().getCircuitBreakerThreshold();
+	}
+
+	private static long getRetryInterval() {
+		return Davis.getConfig() == null ? 10000 : Davis.getConfig().getCircuitBreakerRetryInterval();
+	}
+
+	private static class Breaker {
+
+		// Guarded by the breaker
+		private int state = CLOSED;
+		private int failures = 0;
+		private long nextProbe = 0;
+		private long trialStarted = 0;
+		private long openedCount = 0;
+	}
+}
@@ -0,0 +1,317 @@
+package webdavis;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.irods.jargon.core.pub.io.IRODSFile;
+
+/**
+ * A lock manager for a cluster of Davis servers behind a load balancer,
+ * which keeps its locks in a shared <code>LockStore</code> so a lock taken
+ * through one server is honoured by all of them.
+ *
+ * Each server caches the store's locks in its own index, and lock checks
+ * are answered from the cache after checking the store's version, which is
+ * all a check costs unless the locks have changed. The check is limited to
+ * once every "checkInterval" ms, so a PROPFIND of a large collection doesn't
+ * go to the store for each child, at the cost of seeing other servers'
+ * changes that much later. LOCK, refresh and
+ * UNLOCK are made inside an update of the store, against its current
+ * locks, so conflicting locks can't be granted by different servers.
+ *
+ * Every server times out the locks it has cached; whichever gets there
+ * first removes the lock from the store. Removals are made by a thread of
+ * their own, so a slow store doesn't hold up the expiry service.
+ */
+public class ClusterLockManager extends DefaultLockManager {
+
+    private final LockStore store;
+
+    private final long checkInterval;
+
+    private volatile long version = -1;
+
+    private volatile long checked = 0;
+
+    // Guarded by the index
+    private Map<String, LockStore.Record> pending;
+
+    private boolean replaying = false;
+
+    private final ExecutorService remover =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Davis lock store removal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public ClusterLockManager(long defaultTimeout, long maximumTimeout,
+            LockStore store, long checkInterval) throws IOException {
+        super(defaultTimeout, maximumTimeout);
+        this.store = store;
+        this.checkInterval = checkInterval;
+        reload();
+    }
+
+    public LockStore getStore() {
+        return store;
+    }
+
+    public boolean isLocked(IRODSFile resource, String lockToken)
+            throws IOException {
+        ensureCurrent();
+        return super.isLocked(resource, lockToken);
+    }
+
+    public Lock[] getActiveLocks(IRODSFile resource) throws IOException {
+        ensureCurrent();
+        return super.getActiveLocks(resource);
+    }
+
+    public String lock(final IRODSFile resource,
+            final DavisSession davisSession, final LockInfo lockInfo)
+                    throws LockException, IOException {
+        final String[] lockToken = new String[1];
+        synchronized (index) {
+            update(new Change() {
+                public boolean change(Map<String, LockStore.Record> records)
+                        throws IOException, LockException {
+                    synchronize(records);
+                    lockToken[0] = ClusterLockManager.super.lock(resource,
+                            davisSession, lockInfo);
+                    return true;
+                }
+            });
+        }
+        return lockToken[0];
+    }
+
+    public void refresh(final IRODSFile resource,
+            final DavisSession davisSession, final String[] lockTokens,
+                    final long timeout) throws LockException, IOException {
+        synchronized (index) {
+            update(new Change() {
+                public boolean change(Map<String, LockStore.Record> records)
+                        throws IOException, LockException {
+                    synchronize(records);
+                    ClusterLockManager.super.refresh(resource, davisSession,
+                            lockTokens, timeout);
+                    return true;
+                }
+            });
+        }
+    }
+
+    public void unlock(final IRODSFile resource,
+            final DavisSession davisSession, final String lockToken)
+                    throws LockException, IOException {
+        synchronized (index) {
+            update(new Change() {
+                public boolean change(Map<String, LockStore.Record> records)
+                        throws IOException, LockException {
+                    synchronize(records);
+                    ClusterLockManager.super.unlock(resource, davisSession,
+                            lockToken);
+                    return true;
+                }
+            });
+        }
+    }
+
+    protected void locked(BasicLock lock) {
+        if (pending != null) pending.put(lock.getToken(), toRecord(lock));
+    }
+
+    protected void refreshed(BasicLock lock) {
+        if (pending != null) pending.put(lock.getToken(), toRecord(lock));
+    }
+
+    protected void unlocked(BasicLock lock) {
+        if (replaying) return;
+        if (pending != null) {
+            pending.remove(lock.getToken());
+            return;
+        }
+        // The lock has expired on this server
+        final String lockToken = lock.getToken();
+        remover.execute(new Runnable() {
+            public void run() {
+                try {
+                    update(new Change() {
+                        public boolean change(
+                                Map<String, LockStore.Record> records) {
+                            // Unless another server has refreshed it since
+                            LockStore.Record record = records.get(lockToken);
+                            if (record == null || !record.isExpired(
+                                    System.currentTimeMillis())) return false;
+                            records.remove(lockToken);
+                            return true;
+                        }
+                    });
+                } catch (Exception ex) {
+                    Log.log(Log.WARNING, "Unable to remove expired lock " +
+                            "{0} from the lock store: {1}",
+                                    new Object[] { lockToken, ex });
+                }
+            }
+        });
+    }
+
+    /**
+     * Reloads the cache if the store has changed since it was loaded. If the
+     * store can't be read, the cached locks are used.
+     */
+    private void ensureCurrent() {
+        // Updates synchronize the cache themselves
+        if (Thread.holdsLock(index)) return;
+        long now = System.currentTimeMillis();
+        if (checkInterval > 0 && now - checked < checkInterval) return;
+        try {
+            long current = store.getVersion();
+            checked = now;
+            if (current != version) reload();
+        } catch (IOException ex) {
+            Log.log(Log.WARNING, "Unable to read the lock store, using " +
+                    "cached locks: {0}", ex);
+        }
+    }
+
+    private void reload() throws IOException {
+        synchronized (index) {
+            Map<String, LockStore.Record> records =
+                    new HashMap<String, LockStore.Record>();
+            long current = store.read(records);
+            replay(records);
+            version = current;
+            checked = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Makes a change to the store while holding the index, and keeps the
+     * cache's version if the change was made to the cached locks.
+     */
+    private void update(Change change) throws IOException, LockException {
+        synchronized (index) {
+            long updated = store.update(change);
+            if (change.current == version) version = updated;
+            checked = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Changes the cache to hold the given locks, without reporting the
+     * changes to the store.
+     */
+    private void replay(Map<String, LockStore.Record> records) {
+        replaying = true;
+        try {
+            List<BasicLock> cached = new ArrayList<BasicLock>();
+            Iterator<?> values = locks.values().iterator();
+            while (values.hasNext()) cached.add((BasicLock) values.next());
+            for (int i = 0; i < cached.size(); i++) {
+                BasicLock lock = cached.get(i);
+                if (!records.containsKey(lock.getToken())) lock.unlock();
+            }
+            long now = System.currentTimeMillis();
+            Iterator<LockStore.Record> iterator = records.values().iterator();
+            while (iterator.hasNext()) {
+                LockStore.Record record = iterator.next();
+                if (record.isExpired(now)) continue;
+                long timeout = record.getExpires() == -1 ?
+                        DavisUtilities.INFINITE_TIMEOUT :
+                                record.getExpires() - now;
+                BasicLock lock = (BasicLock) locks.get(record.getToken());
+                if (lock == null) {
+                    LockInfo lockInfo = new LockInfo();
+                    lockInfo.setExclusive(record.isExclusive());
+                    lockInfo.setDepth(record.getDepth());
+                    lockInfo.setTimeout(timeout);
+                    if (record.getOwner() != null) {
+                        lockInfo.setOwner(JournaledLockManager.toOwner(
+                                record.getOwner()));
+                    }
+                    DavisSession owner = new DavisSession();
+                    owner.setSessionID(record.getSessionID());
+                    owner.setAccount(record.getAccount());
+                    restore(record.getPath(), owner, record.getToken(),
+                            lockInfo);
+                } else if (lock.getExpires() != record.getExpires()) {
+                    lock.refresh(timeout);
+                }
+            }
+        } catch (IOException ex) {
+            // Nothing here touches the server
+            Log.log(Log.WARNING, "Unable to cache locks: {0}", ex);
+        } finally {
+            replaying = false;
+        }
+    }
+
+    private static LockStore.Record toRecord(BasicLock lock) {
+        String owner = null;
+        try {
+            if (lock.getOwner() != null) {
+                owner = JournaledLockManager.toString(lock.getOwner());
+            }
+        } catch (Exception ex) {
+            Log.log(Log.WARNING, "Unable to record owner of lock {0}: {1}",
+                    new Object[] { lock.getToken(), ex });
+        }
+        DavisSession davisSession = lock.getDavisSession();
+        return new LockStore.Record(lock.getToken(), lock.getPath(),
+                lock.isExclusive(), lock.getDepth(), owner,
+                davisSession == null ? null : davisSession.getSessionID(),
+                davisSession == null ? null : davisSession.getAccount(),
+                lock.getExpires());
+    }
+
+    /**
+     * A change to the store, made with the store's records pending so the
+     * lock manager's hooks record what the change does.
+     */
+    private abstract class Change implements LockStore.Update {
+
+        private long current;
+
+        public boolean apply(long version, Map<String, LockStore.Record> records)
+                throws IOException, LockException {
+            current = version;
+            pending = records;
+            try {
+                return change(records);
+            } finally {
+                pending = null;
+            }
+        }
+
+        public abstract boolean change(Map<String, LockStore.Record> records)
+                throws IOException, LockException;
+
+        /**
+         * Drops expired records from the store's current locks, and brings
+         * the cache up to date with them.
+         */
+        protected void synchronize(Map<String, LockStore.Record> records) {
+            long now = System.currentTimeMillis();
+            Iterator<LockStore.Record> iterator = records.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isExpired(now)) iterator.remove();
+            }
+            if (current != version) replay(records);
+            version = current;
+        }
+
+    }
+
+}
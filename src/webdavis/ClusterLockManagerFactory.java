@@ -0,0 +1,65 @@
+package webdavis;
+
+import java.util.Properties;
+
+/**
+ * A lock manager factory which vends <code>ClusterLockManager</code>
+ * instances, sharing locks between the servers of a cluster through a
+ * <code>LockStore</code>.
+ *
+ * Properties:
+ *   defaultTimeout, maximumTimeout - as for the default factory.
+ *   store - the <code>LockStore</code> class, "webdavis.FileLockStore" by
+ *   default. All the properties are passed on to the store.
+ *   checkInterval - how often in ms to check the store for other servers'
+ *   changes, 1000 by default. Other servers' LOCKs and UNLOCKs can be seen
+ *   up to that much later; 0 checks on every lock check.
+ */
+public class ClusterLockManagerFactory extends LockManagerFactory {
+
+    private long defaultTimeout = DavisUtilities.INFINITE_TIMEOUT;
+
+    private long maximumTimeout = DavisUtilities.INFINITE_TIMEOUT;
+
+    private String store = FileLockStore.class.getName();
+
+    private long checkInterval = 1000;
+
+    private Properties properties = new Properties();
+
+    public void setProperties(Properties properties) {
+        this.properties = properties;
+        String defaultTimeout = properties.getProperty("defaultTimeout");
+        if (defaultTimeout != null) {
+            this.defaultTimeout = Long.parseLong(defaultTimeout);
+        }
+        String maximumTimeout = properties.getProperty("maximumTimeout");
+        if (maximumTimeout != null) {
+            this.maximumTimeout = Long.parseLong(maximumTimeout);
+        }
+        String store = properties.getProperty("store");
+        if (store != null) {
+            this.store = store.trim();
+        }
+        String checkInterval = properties.getProperty("checkInterval");
+        if (checkInterval != null) {
+            this.checkInterval = Long.parseLong(checkInterval);
+        }
+    }
+
+    public LockManager newLockManager() {
+        try {
+            LockStore lockStore = (LockStore) Class.forName(store)
+                    .getDeclaredConstructor().newInstance();
+            lockStore.init(properties);
+            return new ClusterLockManager(defaultTimeout, maximumTimeout,
+                    lockStore, checkInterval);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IllegalStateException("Unable to open lock store " +
+                    store + ": " + ex.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package webdavis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.io.IRODSFile;
+import org.json.simple.JSONObject;
+
+/**
+ * Creates a set of collections below a target collection in one request.
+ *
+ * The paths are made into a tree. Each collection is created by a task on a
+ * <code>SessionWorkerPool</code>, which starts tasks for its children once
+ * it exists, so parents are always created before their children and the
+ * children of any collection, however deep, are created in parallel. If a
+ * collection can't be created, its descendants are reported as failed
+ * without being attempted.
+ *
+ * Each collection is checked as a MKCOL of it would be, against the locks on
+ * it through the caller's <code>ArchiveExpander.EntryCheck</code>, and is
+ * reported as <code>LOCKED</code> if it may not be created.
+ */
+public class CollectionCreator {
+
+	public static final String CREATED = "created";
+	public static final String EXISTS = "exists";
+	public static final String LOCKED = "423 Locked";
+
+	private DavisSession davisSession;
+	private String target;
+	private int threads;
+	private ArchiveExpander.EntryCheck check;
+	private Map<String, String> results = Collections.synchronizedMap(new TreeMap<String, String>());
+	private SessionWorkerPool pool;
+	private int pending = 0;	// Tasks submitted and not finished, guarded by this
+
+	public CollectionCreator(DavisSession davisSession, IRODSFile target, int threads, ArchiveExpander.EntryCheck check) {
+		this.davisSession = davisSession;
+		this.target = target.getAbsolutePath();
+		this.threads = threads;
+		this.check = check;
+	}
+
+	/**
+	 * Creates the given collections, along with any missing parents.
+	 *
+	 * @param paths Collection paths relative to the target collection.
+	 * @return A map of relative path to <code>CREATED</code>, <code>EXISTS</code>, <code>LOCKED</code> or an error message.
+	 */
+	public Map<String, String> create(List<String> paths) {
+		Node root = new Node(null);
+		for (int i = 0; i < paths.size(); i++) {
+			String path = DavisUtilities.normaliseRelativePath(paths.get(i));
+			if (path == null) {
+				results.put(paths.get(i), "Invalid path");
+				continue;
+			}
+			String[] segments = path.split("/");
+			Node node = root;
+			for (int j = 0; j < segments.length; j++) {
+				Node child = node.children.get(segments[j]);
+				if (child == null) {
+					child = new Node(node.path == null ? segments[j] : node.path+"/"+segments[j]);
+					node.children.put(segments[j], child);
+				}
+				node = child;
+			}
+		}
+		pool = new SessionWorkerPool(davisSession, threads);
+		try {
+			submitChildren(root);
+			// Tasks submit their children, so wait for all of them before shutting the pool down
+			synchronized (this) {
+				while (pending > 0)
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return results;
+	}
+
+	/**
+	 * Converts a tree of JSON objects (each key a collection name, each value
+	 * the object describing its children) into a list of relative paths.
+	 */
+	public static List<String> flatten(JSONObject tree) {
+		List<String> paths = new ArrayList<String>();
+		flatten(tree, "", paths);
+		return paths;
+	}
+
+	private static void flatten(JSONObject tree, String prefix, List<String> paths) {
+		for (Object key : tree.keySet()) {
+			String path = prefix+key;
+			paths.add(path);
+			Object children = tree.get(key);
+			if (children instanceof JSONObject)
+				flatten((JSONObject)children, path+"/", paths);
+		}
+	}
+
+	private void submitChildren(Node node) {
+		Iterator<Node> iterator = node.children.values().iterator();
+		while (iterator.hasNext()) {
+			final Node child = iterator.next();
+			synchronized (this) {
+				pending++;
+			}
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						createNode(child);
+					} finally {
+						synchronized (CollectionCreator.this) {
+							if (--pending == 0)
+								CollectionCreator.this.notifyAll();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private void createNode(Node node) {
+		String result = createCollection(target+IRODSFile.PATH_SEPARATOR+node.path);
+		results.put(node.path, result);
+		if (result.equals(CREATED) || result.equals(EXISTS))
+			submitChildren(node);
+		else
+			failDescendants(node, node.path);
+	}
+
+	private void failDescendants(Node node, String failedParent) {
+		Iterator<Node> iterator = node.children.values().iterator();
+		while (iterator.hasNext()) {
+			Node child = iterator.next();
+			results.put(child.path, "Parent collection "+failedParent+" could not be created");
+			failDescendants(child, failedParent);
+		}
+	}
+
+	private String createCollection(String path) {
+		try {
+			IRODSFile collection = davisSession.getFileFactory().instanceIRODSFile(path);
+			if (check != null && check.check(collection) != HttpServletResponse.SC_OK)
+				return LOCKED;
+			if (collection.mkdir())
+				return CREATED;
+			if (collection.isDirectory())	// mkdir fails if the collection is already there
+				return EXISTS;
+			if (collection.exists())
+				return "A file with this name already exists";
+			return "Failed to create collection";
+		} catch (JargonException e) {
+			return e.getMessage();
+		} catch (IOException e) {
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * A collection to create, and the collections to create in it.
+	 */
+	private static class Node {
+
+		private final String path;	// Relative to the target, null for the target
+		private final Map<String, Node> children = new TreeMap<String, Node>();
+
+		public Node(String path) {
+			this.path = path;
+		}
+	}
+}
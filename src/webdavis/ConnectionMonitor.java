@@ -0,0 +1,252 @@
+package webdavis;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irods.jargon.core.connection.AbstractIRODSMidLevelProtocol;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.MiscSvrInfo;
+import org.irods.jargon.core.pub.IRODSFileSystem;
+
+/**
+ * Tracks whether iRODS connections are alive without a round trip on every
+ * request.
+ *
+ * Requests, and the workers they start, mark the connection they use busy
+ * while they run, and requests mark it alive when they succeed. A daemon thread sends a heartbeat on connections which have
+ * been idle for longer than the heartbeat interval, which also stops the
+ * server timing them out, and marks connections which don't answer dead.
+ * A request only costs a local check of the connection it has checked out:
+ * the connection is usable unless it's been marked dead or its socket is
+ * closed, and is replaced if it isn't. When a request fails, its
+ * connection is probed to see whether it was lost.
+ *
+ * A failed heartbeat only shows that one socket was lost, which a firewall
+ * dropping idle connections does to many at once, so it doesn't count
+ * against the server's <code>CircuitBreaker</code>. The connection is just
+ * dropped by the <code>ConnectionPool</code>. A server counts as failed
+ * once for a heartbeat sweep in which none of its connections answered.
+ *
+ * A connection is used by one thread at a time (Jargon keeps one per thread
+ * and account, and the <code>ConnectionPool</code> hands them between
+ * threads), so the heartbeat never touches a connection while a request is
+ * using it.
+ */
+public class ConnectionMonitor {
+
+	private static final ConnectionMonitor self = new ConnectionMonitor();
+
+	private final Map<AbstractIRODSMidLevelProtocol, Entry> entries = new ConcurrentHashMap<AbstractIRODSMidLevelProtocol, Entry>();
+
+	private final AtomicLong heartbeatCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong reconnectCount = new AtomicLong();
+
+	private ConnectionMonitor() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				beat();
+			}
+		}, "Davis heartbeat");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static ConnectionMonitor getInstance() {
+		return self;
+	}
+
+	/**
+	 * Returns whether the current thread's connection for a session can be
+	 * used, without contacting the server.
+	 */
+	public boolean isAlive(DavisSession davisSession) {
+		return check(davisSession) == null;
+	}
+
+	/**
+	 * Returns why the current thread's connection for a session can't be used,
+	 * or null if it can. Nothing is sent to the server. A thread with no
+	 * connection will be given a usable one from the pool, so this is called
+	 * once a connection has been checked out.
+	 */
+	public String check(DavisSession davisSession) {
+		AbstractIRODSMidLevelProtocol connection = ConnectionPool.getThreadConnection(davisSession.getIRODSAccount());
+		if (connection == null)
+			return null;
+		if (isDead(connection))
+			return "connection failed its last heartbeat";
+		if (!connection.isConnected())
+			return "connection closed";
+		return null;
+	}
+
+	/**
+	 * Returns whether a connection failed its last heartbeat.
+	 */
+	public boolean isDead(AbstractIRODSMidLevelProtocol connection) {
+		Entry entry = entries.get(connection);
+		return entry != null && entry.dead;
+	}
+
+	/**
+	 * Marks the current thread's connection for a session busy for a
+	 * request. Waits if a heartbeat is being sent on it.
+	 *
+	 * @return The connection, to be passed to <code>end</code>.
+	 */
+	public AbstractIRODSMidLevelProtocol begin(DavisSession davisSession) throws IOException {
+		AbstractIRODSMidLevelProtocol connection = davisSession.currentConnection();
+		Entry entry = getEntry(connection);
+		synchronized (entry) {
+			entry.busy++;
+		}
+		return connection;
+	}
+
+	/**
+	 * Marks a connection idle at the end of a request.
+	 *
+	 * @param succeeded Whether the request succeeded, showing the connection
+	 * is alive.
+	 */
+	public void end(AbstractIRODSMidLevelProtocol connection, boolean succeeded) {
+		Entry entry = entries.get(connection);
+		if (entry == null)
+			return;
+		synchronized (entry) {
+			entry.busy--;
+			entry.lastUsed = System.currentTimeMillis();
+			if (succeeded)
+				entry.dead = false;
+		}
+	}
+
+	/**
+	 * Sends a heartbeat on a connection, marking it dead if it doesn't answer.
+	 *
+	 * @return Whether the connection answered.
+	 */
+	public boolean probe(AbstractIRODSMidLevelProtocol connection) {
+		Entry entry = getEntry(connection);
+		synchronized (entry) {
+			heartbeatCount.incrementAndGet();
+			try {
+				long start = System.currentTimeMillis();
+				connection.irodsFunction(MiscSvrInfo.PI_TAG, "", MiscSvrInfo.API_NBR);
+				entry.lastUsed = System.currentTimeMillis();
+				entry.dead = false;
+				CircuitBreaker.getInstance().success(connection.getIrodsAccount().getHost(), connection.getIrodsAccount().getPort());
+				ServerBalancer.getInstance().latency(connection.getIrodsAccount().getHost(), connection.getIrodsAccount().getPort(), entry.lastUsed-start);
+				return true;
+			} catch (Exception e) {
+				failedCount.incrementAndGet();
+				entry.dead = true;
+				Log.log(Log.WARNING, "iRODS connection "+connection+" failed heartbeat: "+e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Drops the current thread's connection for a session, so the next
+	 * operation makes a new one with the session's account.
+	 */
+	public void reconnect(DavisSession davisSession) throws IOException {
+		AbstractIRODSMidLevelProtocol connection = davisSession.currentConnection();
+		entries.remove(connection);
+		reconnectCount.incrementAndGet();
+		davisSession.resetAccessObjects();
+		try {
+			IRODSFileSystem.instance().getIrodsSession().discardSessionForErrors(davisSession.getIRODSAccount());
+		} catch (JargonException e) {
+			Log.log(Log.WARNING, "Failed to discard connection for "+davisSession.getIRODSAccount()+": "+e);
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	public long getHeartbeatCount() {
+		return heartbeatCount.get();
+	}
+
+	/**
+	 * Returns the number of heartbeats which found a connection dead.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getReconnectCount() {
+		return reconnectCount.get();
+	}
+
+	public String toString() {
+		return "connections: "+entries.size()+"   heartbeats: "+getHeartbeatCount()+"   failed: "+getFailedCount()
+				+"   reconnects: "+getReconnectCount();
+	}
+
+	private Entry getEntry(AbstractIRODSMidLevelProtocol connection) {
+		Entry entry = entries.get(connection);
+		if (entry == null) {
+			entry = new Entry();
+			Entry existing = ((ConcurrentHashMap<AbstractIRODSMidLevelProtocol, Entry>) entries).putIfAbsent(connection, entry);
+			if (existing != null)
+				entry = existing;
+		}
+		return entry;
+	}
+
+	private void beat() {
+		while (true) {
+			long interval = Davis.getConfig() == null ? 0 : Davis.getConfig().getConnectionHeartbeatInterval();
+			try {
+				Thread.sleep(interval > 0 ? Math.max(interval/4, 1000) : 60000);
+			} catch (InterruptedException e) {
+				// Daemon thread, carry on
+			}
+			if (interval <= 0)
+				continue;
+			long now = System.currentTimeMillis();
+			Set<String> failed = new HashSet<String>();
+			Set<String> answered = new HashSet<String>();
+			Iterator<Map.Entry<AbstractIRODSMidLevelProtocol, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<AbstractIRODSMidLevelProtocol, Entry> mapEntry = iterator.next();
+				AbstractIRODSMidLevelProtocol connection = mapEntry.getKey();
+				Entry entry = mapEntry.getValue();
+				if (!connection.isConnected()) {
+					iterator.remove();
+					continue;
+				}
+				String server = connection.getIrodsAccount().getHost()+":"+connection.getIrodsAccount().getPort();
+				synchronized (entry) {
+					if (entry.busy > 0 || entry.dead || now-entry.lastUsed < interval)
+						continue;
+					if (probe(connection))
+						answered.add(server);
+					else
+						failed.add(server);
+				}
+			}
+			// At most one failure a sweep for each server, and none if any of its connections answered
+			failed.removeAll(answered);
+			for (String server : failed) {
+				int index = server.lastIndexOf(':');
+				CircuitBreaker.getInstance().failure(server.substring(0, index), Integer.parseInt(server.substring(index+1)));
+			}
+		}
+	}
+
+	private static class Entry {
+
+		// Guarded by the entry
+		private int busy = 0;
+		private volatile long lastUsed = System.currentTimeMillis();
+		private volatile boolean dead = false;
+	}
+}
@@ -0,0 +1,515 @@
+package webdavis;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irods.jargon.core.connection.AbstractIRODSMidLevelProtocol;
+import org.irods.jargon.core.connection.GSIIRODSAccount;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.connection.IRODSSession;
+
+/**
+ * Pools of iRODS connections, one per account, shared by the threads
+ * serving requests for that account.
+ *
+ * An account is identified by its user, zone, server and credential, so
+ * only sessions which logged in as the same user with the same password or
+ * certificate share connections. The anonymous account, which every
+ * anonymous client uses, has a pool of its own size.
+ *
+ * Jargon keeps the connection a thread uses for an account in a thread
+ * local map, and makes one when there isn't one. A thread checks out a
+ * connection for the whole of a request by having it put in its map, and
+ * checks it in at the end by taking it out again, so Jargon's own calls
+ * use the pooled connection without knowing about the pool. If no
+ * connection is idle and the pool isn't full, the thread is left to make a
+ * new one, which joins the pool when it's checked in; if the pool is full
+ * the thread waits for one to be checked in. A connection made outside the
+ * pool, while logging in, is adopted when its thread checks out.
+ *
+ * Idle connections beyond the minimum are closed when they've been idle for
+ * longer than the idle timeout. Connections which are closed or have been
+ * marked dead by the <code>ConnectionMonitor</code> are dropped when they're
+ * checked in or out, or when they're found idle by the eviction thread.
+ */
+public class ConnectionPool {
+
+	private static final ConnectionPool self = new ConnectionPool();
+
+	private final Map<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+
+	private static final ThreadLocal<Map<String, Holder>> checkedOut = new ThreadLocal<Map<String, Holder>>() {
+		protected Map<String, Holder> initialValue() {
+			return new HashMap<String, Holder>();
+		}
+	};
+
+	private final AtomicLong checkoutCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private volatile long maxWait = 0;
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private ConnectionPool() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				evict();
+			}
+		}, "Davis connection pool");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static ConnectionPool getInstance() {
+		return self;
+	}
+
+	/**
+	 * Returns the connection the current thread has for an account, without
+	 * making one if it has none.
+	 */
+	public static AbstractIRODSMidLevelProtocol getThreadConnection(IRODSAccount account) {
+		Map<String, AbstractIRODSMidLevelProtocol> connections = IRODSSession.sessionMap.get();
+		return connections == null ? null : connections.get(account.toString());
+	}
+
+	/**
+	 * Checks out a connection for an account to the current thread, until
+	 * <code>checkIn</code> is called. Checking out again on the same thread
+	 * before then just counts.
+	 *
+	 * @throws ExhaustedException If the pool is full and no connection was
+	 * checked in within the maximum wait.
+	 */
+	public void checkOut(IRODSAccount account) throws ExhaustedException {
+		if (!checkOut(account, getMaxWait()))
+			throw new ExhaustedException("All connections for "+account.getUserName()+" are in use");
+	}
+
+	/**
+	 * Checks out a connection for an account to the current thread if one can
+	 * be had without waiting.
+	 *
+	 * @return Whether a connection was checked out. If not, the thread uses a
+	 * connection of its own, outside the pool.
+	 */
+	public boolean tryCheckOut(IRODSAccount account) {
+		try {
+			return checkOut(account, 0);
+		} catch (ExhaustedException e) {
+			return false;
+		}
+	}
+
+	private boolean checkOut(IRODSAccount account, long wait) throws ExhaustedException {
+		String key = account.toString();	// Jargon's key for the thread's connection
+		Map<String, Holder> held = checkedOut.get();
+		Holder holder = held.get(key);
+		if (holder != null) {
+			holder.depth++;
+			return true;
+		}
+		AbstractIRODSMidLevelProtocol existing = getThreadConnection(account);
+		List<AbstractIRODSMidLevelProtocol> dropped = new ArrayList<AbstractIRODSMidLevelProtocol>();
+		AbstractIRODSMidLevelProtocol connection = null;
+		Pool pool;
+		try {
+			String identity = getIdentity(account);
+			while (true) {
+				pool = getPool(identity, account);
+				synchronized (pool) {
+					if (pool.closed)
+						continue;	// Evicted meanwhile
+					if (existing != null) {
+						pool.total++;	// Made outside the pool
+						break;
+					}
+					long start = System.currentTimeMillis();
+					long deadline = start+wait;
+					boolean waited = false;
+					while (connection == null) {
+						if (!pool.idle.isEmpty()) {
+							Idle idle = pool.idle.removeFirst();
+							if (isUsable(idle.connection))
+								connection = idle.connection;
+							else {
+								pool.total--;
+								dropped.add(idle.connection);
+							}
+							continue;
+						}
+						if (pool.total < pool.maxSize) {
+							pool.total++;	// Jargon makes the connection when it's first used
+							break;
+						}
+						long remaining = deadline-System.currentTimeMillis();
+						if (remaining <= 0 || pool.closed) {
+							if (wait > 0)
+								timeoutCount.incrementAndGet();
+							return false;
+						}
+						waited = true;
+						try {
+							pool.wait(remaining);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new ExhaustedException("Interrupted waiting for a connection");
+						}
+					}
+					if (waited) {
+						long time = System.currentTimeMillis()-start;
+						waitCount.incrementAndGet();
+						waitTime.addAndGet(time);
+						if (time > maxWait)
+							maxWait = time;
+					}
+					break;
+				}
+			}
+			synchronized (pool) {
+				pool.active++;
+			}
+		} finally {
+			close(dropped, droppedCount);
+		}
+		if (connection != null) {
+			Map<String, AbstractIRODSMidLevelProtocol> connections = IRODSSession.sessionMap.get();
+			if (connections == null) {
+				connections = new HashMap<String, AbstractIRODSMidLevelProtocol>();
+				IRODSSession.sessionMap.set(connections);
+			}
+			connections.put(key, connection);
+		}
+		held.put(key, new Holder(pool));
+		checkoutCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the current thread's connection for an account to the pool.
+	 */
+	public void checkIn(IRODSAccount account) {
+		String key = account.toString();
+		Map<String, Holder> held = checkedOut.get();
+		Holder holder = held.get(key);
+		if (holder == null || --holder.depth > 0)
+			return;
+		held.remove(key);
+		AbstractIRODSMidLevelProtocol connection = null;
+		Map<String, AbstractIRODSMidLevelProtocol> connections = IRODSSession.sessionMap.get();
+		if (connections != null) {
+			connection = connections.remove(key);
+			if (connections.isEmpty())
+				IRODSSession.sessionMap.set(null);
+		}
+		Pool pool = holder.pool;
+		boolean drop = false;
+		synchronized (pool) {
+			pool.active--;
+			if (connection == null)
+				pool.total--;	// Never made, or closed during the request
+			else if (!pool.closed && isUsable(connection))
+				pool.idle.addFirst(new Idle(connection));
+			else {
+				pool.total--;
+				drop = true;
+			}
+			pool.notifyAll();
+		}
+		if (drop) {
+			List<AbstractIRODSMidLevelProtocol> dropped = new ArrayList<AbstractIRODSMidLevelProtocol>();
+			dropped.add(connection);
+			close(dropped, droppedCount);
+		}
+	}
+
+	/**
+	 * Closes the idle connections for an account, for instance when its
+	 * credentials are replaced. Connections checked out at the time are
+	 * closed when they're checked in.
+	 */
+	public void close(IRODSAccount account) {
+		Pool pool = pools.remove(getIdentity(account));
+		if (pool == null)
+			return;
+		List<AbstractIRODSMidLevelProtocol> dropped = new ArrayList<AbstractIRODSMidLevelProtocol>();
+		synchronized (pool) {
+			pool.closed = true;
+			while (!pool.idle.isEmpty()) {
+				dropped.add(pool.idle.removeFirst().connection);
+				pool.total--;
+			}
+			pool.notifyAll();
+		}
+		close(dropped, droppedCount);
+	}
+
+	/**
+	 * Returns the number of connections checked out.
+	 */
+	public int getActiveCount() {
+		int count = 0;
+		for (Pool pool : pools.values())
+			synchronized (pool) {
+				count += pool.active;
+			}
+		return count;
+	}
+
+	public int getIdleCount() {
+		int count = 0;
+		for (Pool pool : pools.values())
+			synchronized (pool) {
+				count += pool.idle.size();
+			}
+		return count;
+	}
+
+	/**
+	 * Returns the number of pooled connections, idle or checked out, to a
+	 * server.
+	 */
+	public int getConnectionCount(String endpoint) {
+		int count = 0;
+		for (Pool pool : pools.values())
+			if (pool.endpoint.equals(endpoint))
+				synchronized (pool) {
+					count += pool.total;
+				}
+		return count;
+	}
+
+	public long getCheckoutCount() {
+		return checkoutCount.get();
+	}
+
+	/**
+	 * Returns the number of check outs which had to wait for a connection.
+	 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/**
+	 * Returns the total time spent waiting for connections, in ms.
+	 */
+	public long getWaitTime() {
+		return waitTime.get();
+	}
+
+	public long getMaxWaitTime() {
+		return maxWait;
+	}
+
+	/**
+	 * Returns the number of check outs which gave up waiting.
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	/**
+	 * Returns the number of connections dropped because they were closed or
+	 * dead, or their session ended.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public String toString() {
+		return "accounts: "+pools.size()+"   active: "+getActiveCount()+"   idle: "+getIdleCount()+"   checkouts: "+getCheckoutCount()
+				+"   waits: "+getWaitCount()+" ("+getWaitTime()+" ms, max "+getMaxWaitTime()+" ms)   timeouts: "+getTimeoutCount()
+				+"   evicted: "+getEvictedCount()+"   dropped: "+getDroppedCount();
+	}
+
+	private Pool getPool(String key, IRODSAccount account) {
+		Pool pool = pools.get(key);
+		if (pool == null) {
+			pool = new Pool(account.getHost()+":"+account.getPort(), isAnonymous(account) ? getAnonymousMaxSize() : getMaxSize());
+			Pool existing = ((ConcurrentHashMap<String, Pool>) pools).putIfAbsent(key, pool);
+			if (existing != null)
+				pool = existing;
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns what identifies the connections an account may share: its
+	 * user, zone, server and authentication, and a digest of its password or
+	 * the identity of its GSI credential.
+	 */
+	private static String getIdentity(IRODSAccount account) {
+		StringBuffer identity = new StringBuffer();
+		identity.append(account.getUserName()).append('#').append(account.getZone()).append('@').append(account.getHost())
+				.append(':').append(account.getPort()).append(' ').append(account.getAuthenticationScheme());
+		if (account instanceof GSIIRODSAccount)
+			identity.append(' ').append(System.identityHashCode(((GSIIRODSAccount) account).getGSSCredential()));
+		else if (account.getPassword() != null)
+			try {
+				byte[] digest = MessageDigest.getInstance("SHA-256").digest(account.getPassword().getBytes("UTF-8"));
+				identity.append(' ');
+				for (int i = 0; i < digest.length; i++)
+					identity.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e.getMessage());
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		return identity.toString();
+	}
+
+	private static boolean isAnonymous(IRODSAccount account) {
+		if (account.isAnonymousAccount())
+			return true;
+		String anonymous = Davis.getConfig() == null ? null : Davis.getConfig().getAnonymousUsername();
+		return anonymous != null && anonymous.equals(account.getUserName());
+	}
+
+	private static boolean isUsable(AbstractIRODSMidLevelProtocol connection) {
+		return connection.isConnected() && !ConnectionMonitor.getInstance().isDead(connection);
+	}
+
+	private void close(List<AbstractIRODSMidLevelProtocol> connections, AtomicLong count) {
+		for (int i = 0; i < connections.size(); i++) {
+			AbstractIRODSMidLevelProtocol connection = connections.get(i);
+			count.incrementAndGet();
+			try {
+				// Not disconnect(), which closes the current thread's connection for the account
+				if (connection.isConnected())
+					connection.directDisconnect();
+			} catch (Exception e) {
+				Log.log(Log.DEBUG, "Failed to close pooled connection "+connection+": "+e);
+			}
+		}
+	}
+
+	private void evict() {
+		while (true) {
+			long timeout = getIdleTimeout();
+			try {
+				Thread.sleep(Math.max(timeout/4, 1000));
+			} catch (InterruptedException e) {
+				// Daemon thread, carry on
+			}
+			long now = System.currentTimeMillis();
+			int minSize = getMinSize();
+			List<AbstractIRODSMidLevelProtocol> evicted = new ArrayList<AbstractIRODSMidLevelProtocol>();
+			List<AbstractIRODSMidLevelProtocol> dropped = new ArrayList<AbstractIRODSMidLevelProtocol>();
+			Iterator<Map.Entry<String, Pool>> iterator = pools.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Pool> entry = iterator.next();
+				Pool pool = entry.getValue();
+				synchronized (pool) {
+					Iterator<Idle> idle = pool.idle.iterator();
+					while (idle.hasNext()) {
+						AbstractIRODSMidLevelProtocol connection = idle.next().connection;
+						if (!isUsable(connection)) {
+							idle.remove();
+							pool.total--;
+							dropped.add(connection);
+						}
+					}
+					// The least recently used connections are at the end
+					while (!pool.idle.isEmpty() && pool.total > minSize && now-pool.idle.getLast().since >= timeout) {
+						evicted.add(pool.idle.removeLast().connection);
+						pool.total--;
+					}
+					if (pool.total == 0) {
+						pool.closed = true;
+						iterator.remove();
+					}
+				}
+			}
+			close(evicted, evictedCount);
+			close(dropped, droppedCount);
+		}
+	}
+
+	private static int getMinSize() {
+		return Davis.getConfig() == null ? 0 : Davis.getConfig().getConnectionPoolMinSize();
+	}
+
+	private static int getMaxSize() {
+		return Davis.getConfig() == null ? 8 : Davis.getConfig().getConnectionPoolMaxSize();
+	}
+
+	private static int getAnonymousMaxSize() {
+		return Davis.getConfig() == null ? 32 : Davis.getConfig().getConnectionPoolAnonymousMaxSize();
+	}
+
+	private static long getIdleTimeout() {
+		return Davis.getConfig() == null ? 300000 : Davis.getConfig().getConnectionPoolIdleTimeout();
+	}
+
+	private static long getMaxWait() {
+		return Davis.getConfig() == null ? 30000 : Davis.getConfig().getConnectionPoolMaxWait();
+	}
+
+	/**
+	 * Thrown when no connection could be checked out in time.
+	 */
+	public static class ExhaustedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public ExhaustedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The connections for one account. <code>total</code> counts the idle and
+	 * checked out connections, including those Jargon hasn't made yet.
+	 */
+	private static class Pool {
+
+		private final String endpoint;	// host:port
+		private final int maxSize;
+		// Guarded by the pool
+		private final LinkedList<Idle> idle = new LinkedList<Idle>();
+		private int total = 0;
+		private int active = 0;
+		private boolean closed = false;
+
+		public Pool(String endpoint, int maxSize) {
+			this.endpoint = endpoint;
+			this.maxSize = maxSize;
+		}
+	}
+
+	private static class Idle {
+
+		private final AbstractIRODSMidLevelProtocol connection;
+		private final long since = System.currentTimeMillis();
+
+		public Idle(AbstractIRODSMidLevelProtocol connection) {
+			this.connection = connection;
+		}
+	}
+
+	private static class Holder {
+
+		private final Pool pool;
+		private int depth = 1;
+
+		public Holder(Pool pool) {
+			this.pool = pool;
+		}
+	}
+}
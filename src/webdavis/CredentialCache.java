@@ -0,0 +1,96 @@
+package webdavis;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Remembers for a short time which credentials iRODS has accepted, so a
+ * session which is reset or logged in again with the same credentials
+ * doesn't have to be authenticated again before it's used.
+ *
+ * Credentials aren't kept: only a salted hash of each, in memory, with a salt
+ * chosen at random when the cache is made. Entries are removed by the
+ * <code>ExpiryService</code> when their time is up.
+ */
+public class CredentialCache {
+
+	private final long ttl;
+	private final byte[] salt = new byte[16];
+	private final ConcurrentHashMap<String, Object> verified = new ConcurrentHashMap<String, Object>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * @param ttl How long a credential is remembered, in ms. 0 disables the
+	 * cache.
+	 */
+	public CredentialCache(long ttl) {
+		this.ttl = ttl;
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * Returns whether a credential was accepted within the last TTL.
+	 */
+	public boolean isVerified(String credential) {
+		if (ttl <= 0)
+			return false;
+		if (verified.containsKey(hash(credential))) {
+			hitCount.incrementAndGet();
+			return true;
+		}
+		missCount.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Records that a credential has been accepted.
+	 */
+	public void verified(String credential) {
+		if (ttl <= 0)
+			return;
+		final String hash = hash(credential);
+		final Object entry = new Object();
+		verified.put(hash, entry);
+		ExpiryService.getInstance().schedule(new Runnable() {
+			public void run() {
+				verified.remove(hash, entry);
+			}
+		}, ttl);
+	}
+
+	public int size() {
+		return verified.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public String toString() {
+		return "credentials: "+size()+"   hits: "+getHitCount()+"   misses: "+getMissCount();
+	}
+
+	private String hash(String credential) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			return new String(Base64.encodeBase64(digest.digest(credential.getBytes("UTF-8"))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+}
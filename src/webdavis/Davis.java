@@ -1,6 +1,7 @@
 package webdavis;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
@@ -31,6 +32,7 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import org.apache.commons.codec.binary.Base64;
+import org.irods.jargon.core.connection.AbstractIRODSMidLevelProtocol;
 
 /**
  * This servlet provides a WebDAV gateway to SRB/iRods shared resources.
@@ -138,6 +140,13 @@ public class Davis extends HttpServlet {
 		// filter = null;
 		// }
 		ServletContext context = getServletContext();
+		Object lockManager = context.getAttribute(LOCK_MANAGER);
+		if (lockManager instanceof Closeable)
+			try {
+				((Closeable) lockManager).close();
+			} catch (IOException e) {
+				Log.log(Log.WARNING, "Unable to close lock manager: "+e);
+			}
 		context.removeAttribute(LOCK_MANAGER);
 		// context.removeAttribute(RESOURCE_FILTER);
 //		context.removeAttribute(REQUEST_URI_CHARSET);
@@ -213,6 +222,8 @@ public class Davis extends HttpServlet {
 	protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
 
 		HttpSession httpSession = request.getSession(false); // Get session but don't create a new one if not found
+		if (httpSession == null)
+			SessionStateManager.getInstance().restore(request); // Logged in on another server? Still a new HTTP session here
 		String pathInfo = request.getPathInfo();
 //		String uri=request.getRequestURI();
 //		String queryString = request.getQueryString();
@@ -296,6 +307,12 @@ public class Davis extends HttpServlet {
 		if (request.getQueryString() != null && request.getQueryString().indexOf("reset") > -1)
 			reset=true;
 
+		// While iRODS is down, fail at once rather than hold a thread retrying
+		ServerBalancer balancer = ServerBalancer.getInstance();
+		if (!balancer.allowRequest()) {
+			unavailable(response);
+			return;
+		}
 		int tries = 0;
 		while (true) {
 			authorization = null;
@@ -377,15 +394,40 @@ public class Davis extends HttpServlet {
 				fail(request, response);
 				return;
 			}
-			String message = FSUtilities.testConnection(davisSession);
-			if (message == null || reset) 
-				break;
+			// A session's connections all go to the server it logged in to, so while that's down log in to another one
+			String host = davisSession.getIRODSAccount().getHost();
+			int port = davisSession.getIRODSAccount().getPort();
+			if (CircuitBreaker.getInstance().isOpen(host, port)) {
+				if (tries++ > DavisConfig.MAXCONNECTIONRETRIES || !balancer.isAvailable()) {
+					unavailable(response);
+					return;
+				}
+				Log.log(Log.WARNING, "iRODS server "+host+":"+port+" of session "+davisSession.getSessionID()+" is down, logging in to another server");
+				reset = true;
+				davisSession = null;
+				continue;
+			}
+			// Local check of a connection this thread made while logging in, pooled ones are checked once checked out
+			String message = ConnectionMonitor.getInstance().check(davisSession);
+			if (message == null || reset) {
+				// A new HTTP session shares the Davis session, unless it was destroyed since we found it
+				if ((httpSession != null && !reset) || davisSession.increaseSharedNumber())
+					break;
+				Log.log(Log.DEBUG, "Davis session "+davisSession.getSessionID()+" was destroyed while being shared, logging in again");
+				davisSession = null;
+				continue;
+			}
 			if (tries++ > DavisConfig.MAXCONNECTIONRETRIES) {
 				Log.log(Log.DEBUG, "Can't reconnect to server, giving up.");
 				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Can't reconnect to server.");
 				response.flushBuffer();
 				return;
 			}
+			if (!balancer.isAvailable()) {
+				Log.log(Log.DEBUG, "Circuit breaker opened while reconnecting, giving up.");
+				unavailable(response);
+				return;
+			}
 			Log.log(Log.WARNING, "Connection to server appears to have been lost for session "+davisSession.getSessionID()+" (connection test returned: "+message+"). Trying reset...");
 			reset = true;
 			davisSession = null;
@@ -397,8 +439,8 @@ public class Davis extends HttpServlet {
 			httpSession = request.getSession();
 			Log.log(Log.DEBUG, "Setting Davis session ID: "+davisSession.getSessionID());
 			httpSession.setAttribute(SESSION_ID, davisSession.getSessionID());
-			davisSession.increaseSharedNumber();
 		}
+		SessionStateManager.getInstance().save(request, response);
 		Log.log(Log.INFORMATION, "Final davisSession: " + davisSession);
 		long currentTime = new Date().getTime();
 		Log.log(Log.DEBUG, "Time after establishing session: "+(currentTime-profilingTimer.getTime()));
@@ -410,13 +452,26 @@ public class Davis extends HttpServlet {
 		if (currentTime - lastLogTime >= DavisConfig.MEMORYLOGPERIOD) {
 			lastLogTime = currentTime;
 			Log.log(Log./*INFORMATION*/WARNING, getMemoryUsage());
+			Log.log(Log./*INFORMATION*/WARNING, "Expiry service: "+ExpiryService.getInstance());
+			Log.log(Log./*INFORMATION*/WARNING, "Connection monitor: "+ConnectionMonitor.getInstance());
+			Log.log(Log./*INFORMATION*/WARNING, "Connection pool: "+ConnectionPool.getInstance());
+			Log.log(Log./*INFORMATION*/WARNING, "Login cache: "+AuthorizationProcessor.getInstance().getCredentialCache());
+			Log.log(Log./*INFORMATION*/WARNING, "MyProxy cache: "+AuthorizationProcessor.getInstance().getGSSCredentialCache());
+			Log.log(Log./*INFORMATION*/WARNING, "Circuit breaker: "+CircuitBreaker.getInstance());
+			Log.log(Log./*INFORMATION*/WARNING, "Servers: "+ServerBalancer.getInstance());
+			Log.log(Log./*INFORMATION*/WARNING, "Session state: "+SessionStateManager.getInstance());
 		}
 
 		MethodHandler handler = getHandler(request.getMethod());
 		if (handler != null) {
+			boolean readOnly = PropfindCache.isReadOnly(request);
+			if (!readOnly) {
+				PropfindCache.getInstance().invalidate();
+				DeadProperties.getInstance().invalidate();
+			}
 			try {
 				Log.log(Log.DEBUG, "Handler is {0}", handler.getClass());
-				handler.service(request, response, davisSession);
+				service(handler, request, response, davisSession);
 			} catch (Throwable throwable) {
 				Log.log(Log.WARNING, "**** UNHANDLED ERROR for:\n"+requestToString(request, Log.DEBUG)+"\n\n    Exception was: "+DavisUtilities.getStackTrace(throwable));
 				String firstStackElement = "";
@@ -441,6 +496,11 @@ public class Davis extends HttpServlet {
 				} else {
 					throw new ServletException(throwable);
 				}
+			} finally {
+				if (!readOnly) {
+					PropfindCache.getInstance().invalidate();	// Also drop anything cached while the change was being made
+					DeadProperties.getInstance().invalidate();
+				}
 			}
 		} else {
 			Log.log(Log.INFORMATION, "Unrecognized method: " + request.getMethod());
@@ -449,6 +509,80 @@ public class Davis extends HttpServlet {
 		Log.log(Log.DEBUG, "Time at end of service: "+(new Date().getTime()-profilingTimer.getTime()));
 	}
 
+	/**
+	 * Runs a handler with an iRODS connection checked out of the pool for the
+	 * session's account, tracking the liveness of the connection. If the
+	 * request fails because the connection was lost, and it's safe to repeat,
+	 * the connection is replaced and the request retried once.
+	 */
+	private void service(MethodHandler handler, HttpServletRequest request, HttpServletResponse response, DavisSession davisSession) 
+			throws ServletException, IOException {
+		ConnectionPool pool = ConnectionPool.getInstance();
+		try {
+			pool.checkOut(davisSession.getIRODSAccount());
+		} catch (ConnectionPool.ExhaustedException e) {
+			Log.log(Log.WARNING, "No connection for "+request.getMethod()+" "+request.getPathInfo()+": "+e.getMessage());
+			response.setHeader("Retry-After", "5");
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests for this account, please try again.");
+			return;
+		}
+		ConnectionMonitor monitor = ConnectionMonitor.getInstance();
+		try {
+			String message = monitor.check(davisSession);	// The connection checked out, if it's been made
+			if (message != null) {
+				Log.log(Log.WARNING, "Connection for session "+davisSession.getSessionID()+" can't be used ("+message+"), reconnecting");
+				monitor.reconnect(davisSession);
+			}
+			for (int attempt = 0; ; attempt++) {
+				AbstractIRODSMidLevelProtocol connection = monitor.begin(davisSession);
+				boolean succeeded = false;
+				try {
+					handler.service(request, response, davisSession);
+					succeeded = true;
+					CircuitBreaker.getInstance().success(davisSession.getServerName(), davisSession.getServerPort());
+					return;
+				} catch (IOException e) {
+					if (attempt > 0 || !isRepeatable(request) || response.isCommitted() || monitor.probe(connection))
+						throw e;
+					Log.log(Log.WARNING, "Connection lost during "+request.getMethod()+" "+request.getPathInfo()+" ("+e+"), reconnecting and retrying");
+				} catch (RuntimeException e) {
+					if (attempt > 0 || !isRepeatable(request) || response.isCommitted() || monitor.probe(connection))
+						throw e;
+					Log.log(Log.WARNING, "Connection lost during "+request.getMethod()+" "+request.getPathInfo()+" ("+e+"), reconnecting and retrying");
+				} finally {
+					monitor.end(connection, succeeded);
+				}
+				monitor.reconnect(davisSession);
+				response.reset();
+			}
+		} finally {
+			pool.checkIn(davisSession.getIRODSAccount());
+		}
+	}
+
+	/**
+	 * Refuses a request because the iRODS server is down, telling the client
+	 * when the server will next be tried.
+	 */
+	private void unavailable(HttpServletResponse response) throws IOException {
+		long retryAfter = ServerBalancer.getInstance().getRetryAfter();
+		Log.log(Log.DEBUG, "iRODS server is down, returning SERVICE_UNAVAILABLE");
+		response.setHeader("Retry-After", String.valueOf(retryAfter));
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The storage server is unavailable, please try again in "+retryAfter+" seconds.");
+		response.flushBuffer();
+	}
+
+	/**
+	 * Returns whether a request can be repeated without a different outcome:
+	 * an idempotent method, without a body which has already been read.
+	 */
+	private static boolean isRepeatable(HttpServletRequest request) {
+		String method = request.getMethod();
+		if (!(method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") || method.equals("PROPFIND")))
+			return false;
+		return request.getContentLength() <= 0 && request.getHeader("Transfer-Encoding") == null;
+	}
+
 	/**
 	 * Returns the <code>MethodHandler</code> for the specified method.
 	 * 
@@ -647,6 +781,7 @@ public class Davis extends HttpServlet {
 					Log.log(Log.DEBUG, "Returning form-based login page with error message to client.");
 					substitutions.put("failedmessage", "<span style=\"color:red\">Authentication Failed</span><br><br><small>Please ensure your username and password are correct,<br>and that cookies are enabled in your browser.<br><br></small>");
 					request.getSession().removeAttribute(FORMAUTHATTRIBUTENAME);
+					SessionStateManager.getInstance().remove(request);
 				} else {
 					if ((request.getHeader("referrer") != null) || (request.getHeader("referer") != null)) // Cookies might be blocked for this site
 						substitutions.put("failedmessage", "<small>Please ensure cookies are enabled for this site.</small><br><br>");
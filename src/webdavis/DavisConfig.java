@@ -36,6 +36,9 @@ public class DavisConfig {
 	public final static int CONNECTIONRETRYPAUSE = 1000;					// Pause between connection retries
 	public final static int GSSCREDENTIALLIFETIME = 8*60*60;				// Lifetime for GSS credentials (myproxy)
 	public final static String TAGMETAKEY = "DavisTagMeta";					// The key used by Davis for tag metadata
+	public final static String MD5METAKEY = "DavisMD5";						// The key used by Davis for upload MD5 checksum metadata
+	public final static String SHA256METAKEY = "DavisSHA256";				// The key used by Davis for upload SHA-256 checksum metadata
+	public final static String DEADPROPMETAPREFIX = "DavisProp:";			// The prefix of the keys used by Davis for WebDAV dead property metadata
 
 	/**
 	 * The name of the servlet context attribute containing the charset used to
@@ -112,6 +115,32 @@ public class DavisConfig {
     private boolean logDirtyReplicas;
     private String adminCredsFile;
     private String createUserScript;
+    private boolean registerUploadChecksums;
+    private long putSizeLimit = 0;
+    private int archiveExpansionThreads = 4;
+    private String propfindInfiniteDepth;
+    private int propfindMaxEntries = 10000;
+    private int propfindTimeLimit = 60;
+    private int propfindThreads = 4;
+    private long propfindCacheTTL = 2000;
+    private long propfindCacheSize = 32*1024*1024;
+    private long deadPropertyCacheTTL = 30000;
+    private int deadPropertyCacheSize = 100000;
+    private long connectionHeartbeatInterval = 60000;
+    private int connectionPoolMinSize = 0;
+    private int connectionPoolMaxSize = 8;
+    private int connectionPoolAnonymousMaxSize = 32;
+    private long connectionPoolIdleTimeout = 300000;
+    private long connectionPoolMaxWait = 30000;
+    private long loginCacheTTL = 60000;
+    private int circuitBreakerThreshold = 5;
+    private long circuitBreakerRetryInterval = 10000;
+    private List<String> serverEndpoints;
+    private String serverSelection = "least-connections";
+    private long shibUserCacheTTL = 600000;
+    private long myproxyRenewal = 900000;
+    private String sessionStore;
+    private long sessionStateTTL = 1800000;
     
     // General parameter substitutions for HTML file (substitutions not related to a file or request)
 	private Hashtable<String, String> generalSubstitutions;
@@ -388,6 +417,87 @@ public class DavisConfig {
 		logDirtyReplicas = Boolean.valueOf(getInitParameter("log-dirty-replicas", "true").trim()).booleanValue();
 		adminCredsFile = getInitParameter("admin-creds-file", "").trim();
 		createUserScript = getInitParameter("create-user-script-name", "").trim();
+		registerUploadChecksums = Boolean.valueOf(getInitParameter("register-upload-checksums", "true").trim()).booleanValue();
+		try {
+			putSizeLimit = Long.parseLong(getInitParameter("put-size-limit", "0").trim());
+		} catch (Exception e) {}
+		try {
+			archiveExpansionThreads = Integer.parseInt(getInitParameter("archive-expansion-threads", "4").trim());
+		} catch (Exception e) {}
+		propfindInfiniteDepth = getInitParameter("propfind-infinite-depth", "walk").trim();
+		try {
+			propfindMaxEntries = Integer.parseInt(getInitParameter("propfind-max-entries", "10000").trim());
+		} catch (Exception e) {}
+		try {
+			propfindTimeLimit = Integer.parseInt(getInitParameter("propfind-time-limit", "60").trim());
+		} catch (Exception e) {}
+		try {
+			propfindThreads = Integer.parseInt(getInitParameter("propfind-threads", "4").trim());
+		} catch (Exception e) {}
+		try {
+			propfindCacheTTL = Long.parseLong(getInitParameter("propfind-cache-ttl", "2000").trim());
+		} catch (Exception e) {}
+		try {
+			propfindCacheSize = Long.parseLong(getInitParameter("propfind-cache-size", "33554432").trim());
+		} catch (Exception e) {}
+		try {
+			deadPropertyCacheTTL = Long.parseLong(getInitParameter("dead-property-cache-ttl", "30000").trim());
+		} catch (Exception e) {}
+		try {
+			deadPropertyCacheSize = Integer.parseInt(getInitParameter("dead-property-cache-size", "100000").trim());
+		} catch (Exception e) {}
+		try {
+			connectionHeartbeatInterval = Long.parseLong(getInitParameter("connection-heartbeat-interval", "60000").trim());
+		} catch (Exception e) {}
+		try {
+			connectionPoolMinSize = Integer.parseInt(getInitParameter("connection-pool-min-size", "0").trim());
+		} catch (Exception e) {}
+		try {
+			connectionPoolMaxSize = Integer.parseInt(getInitParameter("connection-pool-max-size", "8").trim());
+		} catch (Exception e) {}
+		try {
+			connectionPoolAnonymousMaxSize = Integer.parseInt(getInitParameter("connection-pool-anonymous-max-size", "32").trim());
+		} catch (Exception e) {}
+		try {
+			connectionPoolIdleTimeout = Long.parseLong(getInitParameter("connection-pool-idle-timeout", "300000").trim());
+		} catch (Exception e) {}
+		try {
+			connectionPoolMaxWait = Long.parseLong(getInitParameter("connection-pool-max-wait", "30000").trim());
+		} catch (Exception e) {}
+		try {
+			loginCacheTTL = Long.parseLong(getInitParameter("login-cache-ttl", "60000").trim());
+		} catch (Exception e) {}
+		try {
+			circuitBreakerThreshold = Integer.parseInt(getInitParameter("circuit-breaker-threshold", "5").trim());
+		} catch (Exception e) {}
+		try {
+			circuitBreakerRetryInterval = Long.parseLong(getInitParameter("circuit-breaker-retry-interval", "10000").trim());
+		} catch (Exception e) {}
+		// Catalog servers for the zone, host[:port] separated by commas, server-name:server-port by default
+		serverEndpoints = new ArrayList<String>();
+		String endpoints = getInitParameter("server-endpoints", true);
+		if (endpoints != null)
+			for (String endpoint : endpoints.split(",")) {
+				endpoint = endpoint.trim();
+				if (endpoint.length() == 0)
+					continue;
+				if (endpoint.indexOf(':') < 0)
+					endpoint += ":"+serverPort;
+				serverEndpoints.add(endpoint);
+			}
+		if (serverEndpoints.isEmpty())
+			serverEndpoints.add(serverName+":"+serverPort);
+		serverSelection = getInitParameter("server-selection", "least-connections").trim();
+		try {
+			shibUserCacheTTL = Long.parseLong(getInitParameter("shib-user-cache-ttl", "600000").trim());
+		} catch (Exception e) {}
+		try {
+			myproxyRenewal = Long.parseLong(getInitParameter("myproxy-renewal", "900000").trim());
+		} catch (Exception e) {}
+		sessionStore = getInitParameter("session-store", true);
+		try {
+			sessionStateTTL = Long.parseLong(getInitParameter("session-state-ttl", "1800000").trim());
+		} catch (Exception e) {}
 		
 		Log.log(Log.DEBUG, "Logging initialized.");
 		if (Log.getThreshold() < Log.INFORMATION) 
@@ -829,4 +939,130 @@ public class DavisConfig {
 	public String createUserScriptName() {
 		return createUserScript;
 	}
+
+	public boolean getRegisterUploadChecksums() {
+		return registerUploadChecksums;
+	}
+
+	public long getPutSizeLimit() {
+		return putSizeLimit;
+	}
+
+	public int getArchiveExpansionThreads() {
+		return archiveExpansionThreads;
+	}
+
+	public String getPropfindInfiniteDepth() {
+		return propfindInfiniteDepth;
+	}
+
+	public int getPropfindMaxEntries() {
+		return propfindMaxEntries;
+	}
+
+	public int getPropfindTimeLimit() {
+		return propfindTimeLimit;
+	}
+
+	public int getPropfindThreads() {
+		return propfindThreads;
+	}
+
+	public long getPropfindCacheTTL() {
+		return propfindCacheTTL;
+	}
+
+	public long getPropfindCacheSize() {
+		return propfindCacheSize;
+	}
+
+	public long getDeadPropertyCacheTTL() {
+		return deadPropertyCacheTTL;
+	}
+
+	public int getDeadPropertyCacheSize() {
+		return deadPropertyCacheSize;
+	}
+
+	public long getConnectionHeartbeatInterval() {
+		return connectionHeartbeatInterval;
+	}
+
+	public int getConnectionPoolMinSize() {
+		return connectionPoolMinSize;
+	}
+
+	public int getConnectionPoolMaxSize() {
+		return connectionPoolMaxSize;
+	}
+
+	public int getConnectionPoolAnonymousMaxSize() {
+		return connectionPoolAnonymousMaxSize;
+	}
+
+	public long getConnectionPoolIdleTimeout() {
+		return connectionPoolIdleTimeout;
+	}
+
+	public long getConnectionPoolMaxWait() {
+		return connectionPoolMaxWait;
+	}
+
+	public long getLoginCacheTTL() {
+		return loginCacheTTL;
+	}
+
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+
+	public long getCircuitBreakerRetryInterval() {
+		return circuitBreakerRetryInterval;
+	}
+
+	/**
+	 * Returns the iRODS catalog servers for the zone, as host:port.
+	 */
+	public List<String> getServerEndpoints() {
+		return serverEndpoints;
+	}
+
+	public String getServerSelection() {
+		return serverSelection;
+	}
+
+	public long getShibUserCacheTTL() {
+		return shibUserCacheTTL;
+	}
+
+	public long getMyproxyRenewal() {
+		return myproxyRenewal;
+	}
+
+	/**
+	 * Returns the class of the shared session store, or null if session
+	 * state isn't shared.
+	 */
+	public String getSessionStore() {
+		return sessionStore;
+	}
+
+	/**
+	 * Returns the session-store.* items, without the prefix, to configure
+	 * the session store.
+	 */
+	public Properties getSessionStoreProperties() {
+		Properties properties = new Properties();
+		Enumeration<?> names = configProperties.propertyNames();
+		while (names.hasMoreElements()) {
+			String name = (String) names.nextElement();
+			if (name.startsWith("session-store."))
+				properties.setProperty(name.substring("session-store.".length()), configProperties.getProperty(name));
+		}
+		return properties;
+	}
+
+	public long getSessionStateTTL() {
+		return sessionStateTTL;
+	}
 }
@@ -25,6 +25,7 @@ public class DavisListener implements HttpSessionListener {
 		String sessionID = (String) session.getAttribute(Davis.SESSION_ID);
 		Log.log(Log.INFORMATION,"HTTP session to destroy: "+session.getId()+". Davis session to destroy: "+sessionID);
 		AuthorizationProcessor.getInstance().destroy(sessionID);
+		SessionStateManager.getInstance().forget(session);
 //		Map sessMap = (Map)session.getAttribute(Davis.CREDENTIALS);
 //		if (sessMap==null) return;
 //		List creds= new ArrayList(sessMap.values());
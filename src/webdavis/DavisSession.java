@@ -9,12 +9,16 @@ import org.irods.jargon.core.connection.IRODSAccount;
 import org.irods.jargon.core.connection.IRODSCommands;
 import org.irods.jargon.core.exception.JargonException;
 import org.irods.jargon.core.pub.CollectionAO;
+import org.irods.jargon.core.pub.CollectionAndDataObjectListAndSearchAO;
 import org.irods.jargon.core.pub.DataObjectAO;
 import org.irods.jargon.core.pub.DataTransferOperations;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
 import org.irods.jargon.core.pub.IRODSFileSystem;
+import org.irods.jargon.core.pub.IRODSGenQueryExecutor;
 import org.irods.jargon.core.pub.ResourceAO;
 import org.irods.jargon.core.pub.RuleProcessingAO;
 import org.irods.jargon.core.pub.UserAO;
+import org.irods.jargon.core.pub.UserGroupAO;
 import org.irods.jargon.core.pub.io.IRODSFileFactory;
 import org.irods.jargon.ticket.TicketAdminService;
 import org.irods.jargon.ticket.TicketAdminServiceImpl;
@@ -40,7 +44,9 @@ public class DavisSession implements Serializable{
 	private String sessionID;
 	private String currentRoot;
 	private String currentResource;
-	private int sharedSessionNumber;
+	private int sharedSessionNumber;	// Guarded by this
+	private boolean retired;			// Guarded by this
+	private transient volatile AccessObjects accessObjects;	// Jargon handles for the account
 	
 	private Hashtable<String, ClientInstance> clientInstances = new Hashtable(); // Client instance specific items - one per unique UI
 
@@ -57,6 +63,10 @@ public class DavisSession implements Serializable{
 	}
 	
 	public void disconnect() throws RuntimeException {
+		resetAccessObjects();
+		// Pooled connections may be shared with the user's other sessions, so are left to be evicted when idle
+		if (ConnectionPool.getThreadConnection(iRODSAccount) == null)
+			return;
 		IRODSFileSystem fileSystem;
 		try {
 			fileSystem = IRODSFileSystem.instance();
@@ -161,15 +171,52 @@ public class DavisSession implements Serializable{
 	public void setCurrentResource(String currentResource) {
 		this.currentResource = currentResource;
 	}
-	public void increaseSharedNumber() {
+	/**
+	 * Adds an HTTP session to those sharing this session.
+	 * 
+	 * @return false if the session has been retired, and must not be used.
+	 */
+	public synchronized boolean increaseSharedNumber() {
+		if (retired)
+			return false;
 		sharedSessionNumber++;
+		return true;
 	}
-	public void descreaseSharedNumber() {
+	public synchronized void descreaseSharedNumber() {
 		sharedSessionNumber--;
 	}
-	public boolean isShared(){
+	public synchronized boolean isShared(){
 		return sharedSessionNumber>0;
 	}
+	/**
+	 * Removes an HTTP session from those sharing this session, and retires
+	 * the session if it was the last, so it can't be shared again.
+	 * 
+	 * @return Whether the session was retired.
+	 */
+	public synchronized boolean release() {
+		if (retired)
+			return false;
+		if (--sharedSessionNumber > 0)
+			return false;
+		retired = true;
+		return true;
+	}
+	/**
+	 * Retires the session, so it can't be shared again.
+	 * 
+	 * @return The number of HTTP sessions which were sharing it.
+	 */
+	public synchronized int retire() {
+		retired = true;
+		return sharedSessionNumber;
+	}
+	public synchronized boolean isRetired() {
+		return retired;
+	}
+	synchronized void setSharedNumber(int sharedSessionNumber) {
+		this.sharedSessionNumber = sharedSessionNumber;
+	}
 	public boolean isConnected() {
 		IRODSFileSystem fileSystem;
 		try {
@@ -194,85 +241,137 @@ public class DavisSession implements Serializable{
 
 	public void setIRODSAccount(IRODSAccount iRODSAccount) {
 		this.iRODSAccount = iRODSAccount;
+		resetAccessObjects();
+	}
+	/**
+	 * Returns the access object factory, which is kept with the session's
+	 * other handles.
+	 */
+	public IRODSAccessObjectFactory getAccessObjectFactory() throws JargonException {
+		AccessObjects handles = getAccessObjects();
+		if (handles.factory == null)
+			handles.factory = IRODSFileSystem.instance().getIRODSAccessObjectFactory();
+		return handles.factory;
 	}
 	public IRODSFileFactory getFileFactory() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-			return fileSystem.getIRODSFileFactory(iRODSAccount);
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+		AccessObjects handles = getAccessObjects();
+		if (handles.fileFactory == null)
+			try {
+				handles.fileFactory = getAccessObjectFactory().getIRODSFileFactory(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.fileFactory;
 	}
 	public DataObjectAO getDataObjectAO() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-	        return fileSystem.getIRODSAccessObjectFactory().getDataObjectAO(iRODSAccount);
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+		AccessObjects handles = getAccessObjects();
+		if (handles.dataObjectAO == null)
+			try {
+				handles.dataObjectAO = getAccessObjectFactory().getDataObjectAO(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.dataObjectAO;
 	}
 	public DataTransferOperations getDataTransferOperations() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-	        return fileSystem.getIRODSAccessObjectFactory().getDataTransferOperations(iRODSAccount);
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+		AccessObjects handles = getAccessObjects();
+		if (handles.dataTransferOperations == null)
+			try {
+				handles.dataTransferOperations = getAccessObjectFactory().getDataTransferOperations(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.dataTransferOperations;
 	}
 	public ResourceAO getResourceAO() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-	        return fileSystem.getIRODSAccessObjectFactory().getResourceAO(iRODSAccount);
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+		AccessObjects handles = getAccessObjects();
+		if (handles.resourceAO == null)
+			try {
+				handles.resourceAO = getAccessObjectFactory().getResourceAO(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.resourceAO;
 	}
 
 	public CollectionAO getCollectionAO() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-	        return fileSystem.getIRODSAccessObjectFactory().getCollectionAO(iRODSAccount);
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+		AccessObjects handles = getAccessObjects();
+		if (handles.collectionAO == null)
+			try {
+				handles.collectionAO = getAccessObjectFactory().getCollectionAO(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.collectionAO;
+	}
+
+	public CollectionAndDataObjectListAndSearchAO getCollectionAndDataObjectListAndSearchAO() throws IOException {
+		AccessObjects handles = getAccessObjects();
+		if (handles.collectionAndDataObjectListAndSearchAO == null)
+			try {
+				handles.collectionAndDataObjectListAndSearchAO = getAccessObjectFactory().getCollectionAndDataObjectListAndSearchAO(iRODSAccount);
+			} catch (JargonException e) {
+				Log.log(Log.WARNING, "Failed to get list and search access object for "+iRODSAccount+": "+e);
+				throw new IOException(e.getMessage());
+			}
+		return handles.collectionAndDataObjectListAndSearchAO;
 	}
 
 	public RuleProcessingAO getRuleProcessingAO() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-	        return fileSystem.getIRODSAccessObjectFactory().getRuleProcessingAO(iRODSAccount);
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+		AccessObjects handles = getAccessObjects();
+		if (handles.ruleProcessingAO == null)
+			try {
+				handles.ruleProcessingAO = getAccessObjectFactory().getRuleProcessingAO(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.ruleProcessingAO;
 	}
 	public UserAO getUserAO() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-	        return fileSystem.getIRODSAccessObjectFactory().getUserAO(iRODSAccount);
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+		AccessObjects handles = getAccessObjects();
+		if (handles.userAO == null)
+			try {
+				handles.userAO = getAccessObjectFactory().getUserAO(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.userAO;
+	}
+	public UserGroupAO getUserGroupAO() throws IOException {
+		AccessObjects handles = getAccessObjects();
+		if (handles.userGroupAO == null)
+			try {
+				handles.userGroupAO = getAccessObjectFactory().getUserGroupAO(iRODSAccount);
+			} catch (JargonException e) {
+				Log.log(Log.WARNING, "Failed to get user group access object for "+iRODSAccount+": "+e);
+				throw new IOException(e.getMessage());
+			}
+		return handles.userGroupAO;
+	}
+	public IRODSGenQueryExecutor getIRODSGenQueryExecutor() throws IOException {
+		AccessObjects handles = getAccessObjects();
+		if (handles.irodsGenQueryExecutor == null)
+			try {
+				handles.irodsGenQueryExecutor = getAccessObjectFactory().getIRODSGenQueryExecutor(iRODSAccount);
+			} catch (JargonException e) {
+				Log.log(Log.WARNING, "Failed to get query executor for "+iRODSAccount+": "+e);
+				throw new IOException(e.getMessage());
+			}
+		return handles.irodsGenQueryExecutor;
 	}
 	public AbstractIRODSMidLevelProtocol currentConnection() throws IOException {
 		IRODSFileSystem fileSystem;
@@ -286,29 +385,67 @@ public class DavisSession implements Serializable{
 		}
 	}
 	public TicketAdminService getTicketAdminService() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-			TicketServiceFactoryImpl factory=new TicketServiceFactoryImpl(fileSystem.getIRODSAccessObjectFactory());
-			return factory.instanceTicketAdminService(iRODSAccount);
-
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+		AccessObjects handles = getAccessObjects();
+		if (handles.ticketAdminService == null)
+			try {
+				TicketServiceFactoryImpl factory=new TicketServiceFactoryImpl(getAccessObjectFactory());
+				handles.ticketAdminService = factory.instanceTicketAdminService(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.ticketAdminService;
 	}
 	public TicketClientOperations getTicketClientOperations() throws IOException {
-		IRODSFileSystem fileSystem;
-		try {
-			fileSystem = IRODSFileSystem.instance();
-			TicketServiceFactoryImpl factory=new TicketServiceFactoryImpl(fileSystem.getIRODSAccessObjectFactory());
-			return factory.instanceTicketClientOperations(iRODSAccount);
+		AccessObjects handles = getAccessObjects();
+		if (handles.ticketClientOperations == null)
+			try {
+				TicketServiceFactoryImpl factory=new TicketServiceFactoryImpl(getAccessObjectFactory());
+				handles.ticketClientOperations = factory.instanceTicketClientOperations(iRODSAccount);
+			} catch (JargonException e) {
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+				throw new IOException(e.getMessage());
+			}
+		return handles.ticketClientOperations;
+	}
 
-		} catch (JargonException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			throw new IOException(e.getMessage());
-		}
+	/**
+	 * Drops the access objects, so they're made again for the session's
+	 * account when next used. They find the current thread's connection for
+	 * each call, so they can be shared by the session's requests, but are
+	 * dropped when the account changes or the session reconnects.
+	 */
+	public void resetAccessObjects() {
+		accessObjects = null;
+	}
+
+	private AccessObjects getAccessObjects() {
+		AccessObjects handles = accessObjects;
+		if (handles == null)
+			accessObjects = handles = new AccessObjects();
+		return handles;
+	}
+
+	/**
+	 * The session's access objects, made when first used. Two requests may
+	 * both make one, in which case either is kept.
+	 */
+	private static class AccessObjects {
+
+		private volatile IRODSAccessObjectFactory factory;
+		private volatile IRODSFileFactory fileFactory;
+		private volatile DataObjectAO dataObjectAO;
+		private volatile DataTransferOperations dataTransferOperations;
+		private volatile ResourceAO resourceAO;
+		private volatile CollectionAO collectionAO;
+		private volatile CollectionAndDataObjectListAndSearchAO collectionAndDataObjectListAndSearchAO;
+		private volatile RuleProcessingAO ruleProcessingAO;
+		private volatile UserAO userAO;
+		private volatile UserGroupAO userGroupAO;
+		private volatile IRODSGenQueryExecutor irodsGenQueryExecutor;
+		private volatile TicketAdminService ticketAdminService;
+		private volatile TicketClientOperations ticketClientOperations;
 	}
 }
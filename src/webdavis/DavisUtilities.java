@@ -8,8 +8,6 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import java.text.DateFormat;
 import java.text.MessageFormat;
@@ -89,20 +87,12 @@ public class DavisUtilities {
 
     private static final char[] HEX = "0123456789abcdef".toCharArray();
 
-    private static MessageDigest digest;
-
 	private static ServletConfig servletConfig;
     
     static {
         TimeZone gmt = new SimpleTimeZone(0, "GMT");
         CREATION_FORMAT.setTimeZone(gmt);
         LAST_MODIFIED_FORMAT.setTimeZone(gmt);
-        try {
-            digest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException ex) {
-            throw new IllegalStateException(getResource(DavisUtilities.class,
-                    "md5Unavailable", null, null));
-        }
     }
     
 	
@@ -165,7 +155,9 @@ public class DavisUtilities {
     /**
      * Returns the entity tag for the specified resource.  The returned
      * string uniquely identifies the current incarnation of the given
-     * resource.
+     * resource. This queries the server for each attribute, so
+     * <code>getETag(FileStat)</code> should be used where a snapshot has
+     * been fetched.
      *
      * @param file The resource whose entity tag is to be retrieved.
      * @return A <code>String</code> containing the entity tag for the
@@ -173,24 +165,64 @@ public class DavisUtilities {
      */
     public static String getETag(IRODSFile file) {
         if (file == null) return null;
-        try {
-            if (!file.isFile()) return null;
-            String key = file.toString() + ":" +
-                    Long.toHexString(file.lastModified());
-            byte[] hashBytes = null;
-            synchronized (digest) {
-                hashBytes = digest.digest(key.getBytes("UTF-8"));
-            }
-            StringBuffer hash = new StringBuffer();
-            int count = hashBytes.length;
-            for (int i = 0; i < count; i++) {
-                hash.append(Integer.toHexString((hashBytes[i] >> 4) & 0x0f));
-                hash.append(Integer.toHexString(hashBytes[i] & 0x0f));
-            }
-            return "\"" + hash.toString() + "\"";
-        } catch (IOException ex) {
-            return null;
+        if (!file.isFile()) return null;
+        return getETag(file.getAbsolutePath(), file.lastModified(), file.length());
+    }
+
+    /**
+     * Returns the entity tag for a resource from a snapshot of its
+     * attributes. This gives the same result as
+     * <code>getETag(IRODSFile)</code> without querying the server.
+     *
+     * @param stat The snapshot of the resource.
+     * @return A <code>String</code> containing the entity tag for the
+     * resource.
+     */
+    public static String getETag(FileStat stat) {
+        if (stat == null || !stat.isFile()) return null;
+        return getETag(stat.getFile().getAbsolutePath(), stat.lastModified(), stat.length());
+    }
+
+    /**
+     * Returns the entity tag for a file with the given attributes. The tag
+     * is a 64 bit hash of the path, modification time and size, so it needs
+     * no shared state and can be computed by any number of threads at once.
+     *
+     * @param path The absolute path of the file.
+     * @param lastModified The modification time of the file.
+     * @param length The size of the file.
+     * @return A <code>String</code> containing the quoted entity tag.
+     */
+    public static String getETag(String path, long lastModified, long length) {
+        long hash = 0xcbf29ce484222325L;    // FNV-1a over the path
+        int count = path.length();
+        for (int i = 0; i < count; i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
         }
+        hash = mix(hash ^ lastModified);
+        hash = mix(hash ^ length);
+        char[] etag = new char[18];
+        etag[0] = '"';
+        etag[17] = '"';
+        for (int i = 16; i > 0; i--) {
+            etag[i] = HEX[(int) hash & 0x0f];
+            hash >>>= 4;
+        }
+        return new String(etag);
+    }
+
+    /**
+     * Spreads the bits of a hash (the MurmurHash3 finalizer), so that small
+     * changes to the time or size change the whole tag.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb53fe1a85ec3L;
+        hash ^= hash >>> 33;
+        return hash;
     }
 
     /**
@@ -516,6 +548,28 @@ public class DavisUtilities {
     	return s;
     }
     
+    /**
+     * Cleans up a path supplied by a client relative to some collection.
+     * Empty and "." segments are dropped and backslashes are treated as separators.
+     *
+     * @return The relative path, or null if it's empty or refers outside the collection.
+     */
+    public static String normaliseRelativePath(String name) {
+    	
+    	StringBuffer path = new StringBuffer();
+    	String[] segments = name.replace('\\', '/').split("/");
+    	for (int i = 0; i < segments.length; i++) {
+    		if (segments[i].length() == 0 || segments[i].equals("."))
+    			continue;
+    		if (segments[i].equals(".."))
+    			return null;
+    		if (path.length() > 0)
+    			path.append('/');
+    		path.append(segments[i]);
+    	}
+    	return path.length() == 0 ? null : path.toString();
+    }
+    
     public static String encodeFileName(String fileName) {
     	
     	try {
@@ -0,0 +1,440 @@
+package webdavis;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.BulkAVUOperationResponse;
+import org.irods.jargon.core.pub.IRODSGenQueryExecutor;
+import org.irods.jargon.core.pub.domain.AvuData;
+import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.core.query.IRODSGenQueryBuilder;
+import org.irods.jargon.core.query.IRODSQueryResultRow;
+import org.irods.jargon.core.query.IRODSQueryResultSet;
+import org.irods.jargon.core.query.QueryConditionOperators;
+import org.irods.jargon.core.query.RodsGenQueryEnum;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Stores WebDAV dead properties, the properties clients set with PROPPATCH,
+ * as iRODS AVUs.
+ *
+ * Each property is one AVU whose attribute is
+ * <code>DavisConfig.DEADPROPMETAPREFIX</code> followed by the property's
+ * qualified name in the form <code>{namespace}name</code>, and whose value
+ * is the property element serialized as XML, so nested elements and
+ * language tags survive the round trip.
+ *
+ * The properties of each resource are cached for a short time, separately
+ * for each user as users may not all be allowed to read them. When a
+ * collection is listed for a PROPFIND, the properties of all its members are
+ * fetched with two queries (one for data objects and one for collections)
+ * rather than one query per member. Like the <code>PropfindCache</code>, the
+ * whole cache is invalidated by any request which may change something.
+ */
+public class DeadProperties {
+
+	/**
+	 * Longest serialized property iRODS will store as an AVU value.
+	 */
+	public static final int MAX_VALUE_LENGTH = 2700;
+
+	private static final int QUERY_PAGE_SIZE = 500;
+
+	private static final DeadProperties self = new DeadProperties();
+
+	private static final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+
+	static {
+		builderFactory.setNamespaceAware(true);
+		builderFactory.setExpandEntityReferences(false);
+	}
+
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+	private long generation = 0;
+
+	public static DeadProperties getInstance() {
+		return self;
+	}
+
+	/**
+	 * Returns the key a property is stored under, <code>{namespace}name</code>.
+	 */
+	public static String getKey(String namespace, String name) {
+		return "{"+(namespace == null ? "" : namespace)+"}"+name;
+	}
+
+	/**
+	 * Returns the key of the property element.
+	 */
+	public static String getKey(Element element) {
+		return getKey(element.getNamespaceURI(), element.getLocalName());
+	}
+
+	/**
+	 * Creates an empty element for the property with the given key, as
+	 * returned for a PROPFIND of property names.
+	 */
+	public static Element createElement(Document document, String key) {
+		int index = key.indexOf('}');
+		String namespace = key.substring(1, index);
+		return document.createElementNS(namespace.length() == 0 ? null : namespace, key.substring(index+1));
+	}
+
+	/**
+	 * Fills in the dead properties of a resource, from the cache if
+	 * possible.
+	 *
+	 * @param stat The resource.
+	 * @param davisSession The session used to query the catalog.
+	 * @throws IOException If the query fails.
+	 */
+	public void load(FileStat stat, DavisSession davisSession) throws IOException {
+		if (!stat.exists() || stat.getDeadProperties() != null)
+			return;
+		String path = stat.getFile().getAbsolutePath();
+		String user = getUser(davisSession);
+		long startGeneration;
+		synchronized (this) {
+			Map<String, String> properties = get(user, path);
+			if (properties != null) {
+				stat.setDeadProperties(properties);
+				return;
+			}
+			startGeneration = generation;
+		}
+		Map<String, Map<String, String>> results = new HashMap<String, Map<String, String>>();
+		try {
+			IRODSGenQueryBuilder builder = new IRODSGenQueryBuilder(true, null);
+			if (stat.isDirectory()) {
+				builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_NAME)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_META_COLL_ATTR_NAME)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_META_COLL_ATTR_VALUE)
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_NAME, QueryConditionOperators.EQUAL, path)
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_META_COLL_ATTR_NAME, QueryConditionOperators.LIKE, DavisConfig.DEADPROPMETAPREFIX+"%");
+				query(builder, null, results, davisSession);
+			} else {
+				builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_NAME)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_META_DATA_ATTR_NAME)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_META_DATA_ATTR_VALUE)
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_NAME, QueryConditionOperators.EQUAL, stat.getFile().getParent())
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_DATA_NAME, QueryConditionOperators.EQUAL, stat.getName())
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_META_DATA_ATTR_NAME, QueryConditionOperators.LIKE, DavisConfig.DEADPROPMETAPREFIX+"%");
+				query(builder, stat.getFile().getParent(), results, davisSession);
+			}
+		} catch (Exception e) {
+			Log.log(Log.WARNING, "Failed to fetch dead properties of "+path+": "+e);
+			throw new IOException(e.getMessage());
+		}
+		Map<String, String> properties = results.get(path);
+		if (properties == null)
+			properties = new HashMap<String, String>();
+		stat.setDeadProperties(properties);
+		synchronized (this) {
+			if (generation == startGeneration)
+				put(user, path, properties);
+		}
+	}
+
+	/**
+	 * Fills in the dead properties of the members of a collection, from the
+	 * cache if they're all there, or otherwise with one query for the data
+	 * objects and one for the subcollections.
+	 *
+	 * @param collection The collection.
+	 * @param children The members of the collection, from <code>FileStat.listChildren</code>.
+	 * @param davisSession The session used to query the catalog.
+	 * @throws IOException If the queries fail.
+	 */
+	public void load(FileStat collection, FileStat[] children, DavisSession davisSession) throws IOException {
+		if (children.length == 0)
+			return;
+		String user = getUser(davisSession);
+		long startGeneration;
+		synchronized (this) {
+			List<Map<String, String>> cached = new ArrayList<Map<String, String>>(children.length);
+			Map<String, String> properties;
+			while (cached.size() < children.length
+					&& (properties = get(user, children[cached.size()].getFile().getAbsolutePath())) != null)
+				cached.add(properties);
+			if (cached.size() == children.length) {
+				for (int i = 0; i < children.length; i++)
+					children[i].setDeadProperties(cached.get(i));
+				return;
+			}
+			startGeneration = generation;
+		}
+		String path = collection.getFile().getAbsolutePath();
+		Map<String, Map<String, String>> results = new HashMap<String, Map<String, String>>();
+		try {
+			query(new IRODSGenQueryBuilder(true, null)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_NAME)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_META_COLL_ATTR_NAME)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_META_COLL_ATTR_VALUE)
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_PARENT_NAME, QueryConditionOperators.EQUAL, path)
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_META_COLL_ATTR_NAME, QueryConditionOperators.LIKE, DavisConfig.DEADPROPMETAPREFIX+"%"),
+					null, results, davisSession);
+			query(new IRODSGenQueryBuilder(true, null)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_NAME)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_META_DATA_ATTR_NAME)
+					.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_META_DATA_ATTR_VALUE)
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_NAME, QueryConditionOperators.EQUAL, path)
+					.addConditionAsGenQueryField(RodsGenQueryEnum.COL_META_DATA_ATTR_NAME, QueryConditionOperators.LIKE, DavisConfig.DEADPROPMETAPREFIX+"%"),
+					path, results, davisSession);
+		} catch (Exception e) {
+			Log.log(Log.WARNING, "Failed to fetch dead properties under "+path+": "+e);
+			throw new IOException(e.getMessage());
+		}
+		synchronized (this) {
+			for (int i = 0; i < children.length; i++) {
+				String childPath = children[i].getFile().getAbsolutePath();
+				Map<String, String> properties = results.get(childPath);
+				if (properties == null)
+					properties = new HashMap<String, String>();
+				children[i].setDeadProperties(properties);
+				if (generation == startGeneration)
+					put(user, childPath, properties);
+			}
+		}
+	}
+
+	/**
+	 * Applies a PROPPATCH to a resource as one batch. The AVUs of the
+	 * properties being changed are deleted and the new ones added with bulk
+	 * operations. iRODS can't make this atomic, so if any AVU can't be
+	 * changed the ones that were are put back as they were.
+	 *
+	 * @param stat The resource.
+	 * @param updates The serialized value of each property to set, or null
+	 * for each property to remove, by key.
+	 * @param davisSession The session used to change the metadata.
+	 * @return null if all the changes were made, or otherwise the key of a
+	 * property which couldn't be changed.
+	 * @throws IOException If the metadata can't be read or changed.
+	 */
+	public String apply(FileStat stat, Map<String, String> updates, DavisSession davisSession) throws IOException {
+		String path = stat.getFile().getAbsolutePath();
+		synchronized (this) {
+			remove(path);
+			generation++;
+		}
+		stat.setDeadProperties(null);
+		load(stat, davisSession);
+		Map<String, String> current = stat.getDeadProperties();
+		List<AvuData> deletes = new ArrayList<AvuData>();
+		List<AvuData> adds = new ArrayList<AvuData>();
+		try {
+			Iterator<Map.Entry<String, String>> iterator = updates.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, String> update = iterator.next();
+				String attribute = DavisConfig.DEADPROPMETAPREFIX+update.getKey();
+				String old = current.get(update.getKey());
+				if (old != null && old.equals(update.getValue()))
+					continue;
+				if (old != null)
+					deletes.add(new AvuData(attribute, old, ""));
+				if (update.getValue() != null)
+					adds.add(new AvuData(attribute, update.getValue(), ""));
+			}
+			List<AvuData> deleted = new ArrayList<AvuData>();
+			List<AvuData> added = new ArrayList<AvuData>();
+			String failed = change(path, stat.isDirectory(), deletes, false, deleted, davisSession);
+			if (failed == null)
+				failed = change(path, stat.isDirectory(), adds, true, added, davisSession);
+			if (failed != null) {
+				Log.log(Log.WARNING, "PROPPATCH of "+path+" failed on "+failed+", rolling back");
+				change(path, stat.isDirectory(), added, false, new ArrayList<AvuData>(), davisSession);
+				change(path, stat.isDirectory(), deleted, true, new ArrayList<AvuData>(), davisSession);
+				return failed;
+			}
+		} catch (JargonException e) {
+			Log.log(Log.WARNING, "PROPPATCH of "+path+" failed: "+e);
+			throw new IOException(e.getMessage());
+		} finally {
+			synchronized (this) {
+				remove(path);
+				generation++;
+			}
+			stat.setDeadProperties(null);
+		}
+		return null;
+	}
+
+	/**
+	 * Discards all cached properties.
+	 */
+	public synchronized void invalidate() {
+		generation++;
+		entries.clear();
+	}
+
+	/**
+	 * Serializes a property element for storage.
+	 */
+	public static String toString(Element element) throws IOException {
+		try {
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+			transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+			StringWriter writer = new StringWriter();
+			transformer.transform(new DOMSource(element), new StreamResult(writer));
+			return writer.toString();
+		} catch (Exception e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Parses a stored property into an element owned by the given document.
+	 *
+	 * @return The element, or null if the stored value isn't valid.
+	 */
+	public static Element toElement(Document document, String value) {
+		try {
+			DocumentBuilder builder;
+			synchronized (builderFactory) {
+				builder = builderFactory.newDocumentBuilder();
+			}
+			builder.setEntityResolver(BlockedEntityResolver.INSTANCE);
+			Document parsed = builder.parse(new InputSource(new StringReader(value)));
+			return (Element) document.importNode(parsed.getDocumentElement(), true);
+		} catch (Exception e) {
+			Log.log(Log.WARNING, "Ignoring invalid dead property "+value+": "+e);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs a query selecting a name, an attribute and a value, and adds the
+	 * dead properties found to the results by path. If parent is null the
+	 * name is the path of a collection, otherwise it's the name of a data
+	 * object in parent.
+	 */
+	private void query(IRODSGenQueryBuilder builder, String parent, Map<String, Map<String, String>> results, DavisSession davisSession) throws Exception {
+		IRODSGenQueryExecutor executor = davisSession.getIRODSGenQueryExecutor();
+		IRODSQueryResultSet resultSet = executor.executeIRODSQuery(builder.exportIRODSQueryFromBuilder(QUERY_PAGE_SIZE), 0);
+		try {
+			while (true) {
+				List<IRODSQueryResultRow> rows = resultSet.getResults();
+				for (int i = 0; i < rows.size(); i++) {
+					IRODSQueryResultRow row = rows.get(i);
+					String path = row.getColumn(0);
+					if (parent != null)
+						path = (parent.endsWith(IRODSFile.PATH_SEPARATOR) ? parent : parent+IRODSFile.PATH_SEPARATOR)+path;
+					Map<String, String> properties = results.get(path);
+					if (properties == null) {
+						properties = new HashMap<String, String>();
+						results.put(path, properties);
+					}
+					properties.put(row.getColumn(1).substring(DavisConfig.DEADPROPMETAPREFIX.length()), row.getColumn(2));
+				}
+				if (!resultSet.isHasMoreRecords())
+					break;
+				resultSet = executor.getMoreResults(resultSet);
+			}
+		} finally {
+			executor.closeResults(resultSet);
+		}
+	}
+
+	/**
+	 * Adds or deletes AVUs in bulk, recording the ones that were changed.
+	 *
+	 * @return null if they were all changed, or the key of one that wasn't.
+	 */
+	private String change(String path, boolean collection, List<AvuData> avus, boolean add, List<AvuData> changed, DavisSession davisSession) throws JargonException, IOException {
+		if (avus.isEmpty())
+			return null;
+		List<BulkAVUOperationResponse> responses;
+		if (collection)
+			responses = add ? davisSession.getCollectionAO().addBulkAVUMetadataToCollection(path, avus)
+					: davisSession.getCollectionAO().deleteBulkAVUMetadataFromCollection(path, avus);
+		else
+			responses = add ? davisSession.getDataObjectAO().addBulkAVUMetadataToDataObject(path, avus)
+					: davisSession.getDataObjectAO().deleteBulkAVUMetadataFromDataObject(path, avus);
+		String failed = null;
+		for (int i = 0; i < responses.size(); i++) {
+			BulkAVUOperationResponse response = responses.get(i);
+			if (response.getResultStatus() == BulkAVUOperationResponse.ResultStatus.OK)
+				changed.add(response.getAvuData());
+			else {
+				Log.log(Log.WARNING, "Failed to "+(add ? "add" : "delete")+" AVU "+response.getAvuData()+" on "+path+": "+response.getMessage());
+				if (failed == null)
+					failed = response.getAvuData().getAttribute().substring(DavisConfig.DEADPROPMETAPREFIX.length());
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Returns the name the properties a user can see are cached under.
+	 */
+	private static String getUser(DavisSession davisSession) {
+		return davisSession.getAccount()+"#"+davisSession.getZone();
+	}
+
+	private Map<String, String> get(String user, String path) {
+		String key = user+"\n"+path;
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		if (entry.expires <= System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.properties;
+	}
+
+	/**
+	 * Drops the cached properties of a resource for all users.
+	 */
+	private void remove(String path) {
+		Iterator<String> iterator = entries.keySet().iterator();
+		while (iterator.hasNext())
+			if (iterator.next().endsWith("\n"+path))
+				iterator.remove();
+	}
+
+	private void put(String user, String path, Map<String, String> properties) {
+		long now = System.currentTimeMillis();
+		long ttl = Davis.getConfig().getDeadPropertyCacheTTL();
+		if (ttl <= 0)
+			return;
+		if (entries.size() >= Davis.getConfig().getDeadPropertyCacheSize()) {
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext())
+				if (iterator.next().expires <= now)
+					iterator.remove();
+			if (entries.size() >= Davis.getConfig().getDeadPropertyCacheSize())
+				return;
+		}
+		entries.put(user+"\n"+path, new Entry(properties, now+ttl));
+	}
+
+	private static class Entry {
+
+		private Map<String, String> properties;
+		private long expires;
+
+		public Entry(Map<String, String> properties, long expires) {
+			this.properties = properties;
+			this.expires = expires;
+		}
+	}
+}
@@ -140,9 +140,7 @@ public class DefaultCopyHandler extends AbstractHandler {
 
     	DataTransferOperations dataTransferOperations=davisSession.getDataTransferOperations();
     	try {
-        	IRODSFileSystem irodsFileSystem=IRODSFileSystem.instance();
-    		TransferControlBlock tcb = irodsFileSystem
-    				.getIRODSAccessObjectFactory()
+    		TransferControlBlock tcb = davisSession.getAccessObjectFactory()
     				.buildDefaultTransferControlBlockBasedOnJargonProperties();
     		if (overwritten) 
     			tcb.getTransferOptions().setForceOption(ForceOption.USE_FORCE);
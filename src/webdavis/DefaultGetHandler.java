@@ -23,8 +23,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -136,7 +134,6 @@ import org.w3c.dom.Document;
  */
 public class DefaultGetHandler extends AbstractHandler {
 
-	private static final Timer TIMER = new Timer(true);
 	private final long instanceID = new Date().getTime(); // ID for this servlet instance (its creation date) - for debugging
 
 	private final Map<String, TemplateTracker> templateMap = new HashMap<String, TemplateTracker>();
@@ -576,7 +573,7 @@ public class DefaultGetHandler extends AbstractHandler {
 					return;
 				}
 			}
-			PropertiesDirector director = new PropertiesDirector(getPropertiesBuilder());
+			PropertiesDirector director = new PropertiesDirector(getPropertiesBuilder(), davisSession);
 			Document properties = null;
 			properties = director.getAllProperties(file, requestUrl, 1);
 
@@ -626,10 +623,9 @@ public class DefaultGetHandler extends AbstractHandler {
 				// }
 				// transformer.setParameter("type", type);
 				transformer.setOutputProperty("encoding", "UTF-8");
-				ByteArrayOutputStream collector = new ByteArrayOutputStream();
-				transformer.transform(new DOMSource(properties), new StreamResult(collector));
 				response.setContentType("text/html; charset=\"utf-8\"");
-				collector.writeTo(response.getOutputStream());
+				// The stylesheet needs the whole listing, but its output can go straight to the client
+				transformer.transform(new DOMSource(properties), new StreamResult(response.getOutputStream()));
 				response.flushBuffer();
 
 				Log.log(Log.DEBUG, "Time after creating dynamic html: " + (new Date().getTime() - Davis.profilingTimer.getTime()));
@@ -690,23 +686,24 @@ public class DefaultGetHandler extends AbstractHandler {
 		}
 
 
-		String etag = DavisUtilities.getETag(file);
+		FileStat stat = FileStat.stat(file, davisSession);
+		String etag = DavisUtilities.getETag(stat);
 		if (etag != null)
 			response.setHeader("ETag", etag);
-		long modified = file.lastModified();
+		long modified = stat.lastModified();
 		if (modified != 0) {
 			response.setHeader("Last-Modified", DavisUtilities.formatGetLastModified(modified));
 		}
-		int result = checkConditionalRequest(request, davisSession, file);
+		int result = checkConditionalRequest(request, davisSession, file, stat);
 		if (result != HttpServletResponse.SC_OK) {
 			response.sendError(result, "Request Error.");
 			response.flushBuffer();
 			return;
 		}
 		String contentType = getServletConfig().getServletContext().getMimeType(file.getName());
-		response.setHeader("Content-Length", String.valueOf(file.length()));
+		response.setHeader("Content-Length", String.valueOf(stat.length()));
 		response.setContentType((contentType != null) ? contentType	: "application/octet-stream");
-		response.setContentLength((int) file.length());
+		response.setContentLength((int) stat.length());
 		// Don't send cache control stuff for IE. It has problems when 'getting'. 
 		// See http://www.experts-exchange.com/Web_Development/Web_Languages-Standards/ASP/Q_22780724.html
 		if (request.getHeader("User-Agent") != null && !request.getHeader("User-Agent").contains("MSIE ")) 
@@ -920,9 +917,12 @@ public class DefaultGetHandler extends AbstractHandler {
 		String id = session.getId();
 		long cacheTime = (long) session.getMaxInactiveInterval() * 1000;
 		Log.log(Log.DEBUG, "Storing precompiled stylesheet.");
+		TemplateTracker old;
 		synchronized (templateMap) {
-			templateMap.put(id, new TemplateTracker(id, templates, cacheTime));
+			old = templateMap.put(id, new TemplateTracker(id, templates, cacheTime));
 		}
+		if (old != null)
+			old.cancel();
 	}
 
 	private Templates getDefaultTemplates(Locale locale) throws ServletException {
@@ -1026,24 +1026,30 @@ public class DefaultGetHandler extends AbstractHandler {
 		return new StreamSource(location);
 	}
 
-	private class TemplateTracker extends TimerTask {
+	private class TemplateTracker implements Runnable {
 
 		private final Templates templates;
 		private final String id;
+		private final ExpiryService.Timeout timeout;
 
 		public TemplateTracker(String id, Templates templates, long cacheTime) {
 			this.templates = templates;
 			this.id = id;
-			TIMER.schedule(this, cacheTime);
+			timeout = ExpiryService.getInstance().schedule(this, cacheTime);
 		}
 
 		public void run() {
 			Log.log(Log.DEBUG, "Removing cached stylesheet for session {0}", id);
 			synchronized (templateMap) {
-				templateMap.remove(id);
+				if (templateMap.get(id) == this)
+					templateMap.remove(id);
 			}
 		}
 
+		public void cancel() {
+			timeout.cancel();
+		}
+
 		public Templates getTemplates() {
 			return templates;
 		}
@@ -48,25 +48,26 @@ public class DefaultHeadHandler extends AbstractHandler {
             response.sendRedirect(redirect.toString());
             return;
         }
-        String etag = DavisUtilities.getETag(file);
+        FileStat stat = FileStat.stat(file, davisSession);
+        String etag = DavisUtilities.getETag(stat);
         if (etag != null) response.setHeader("ETag", etag);
-        long modified = file.lastModified();
+        long modified = stat.lastModified();
         if (modified != 0) {
             response.setHeader("Last-Modified",
                     DavisUtilities.formatGetLastModified(modified));
         }
-        int result = checkConditionalRequest(request, davisSession, file);
+        int result = checkConditionalRequest(request, davisSession, file, stat);
         if (result != HttpServletResponse.SC_OK) {
             response.setStatus(result);
             response.flushBuffer();
             return;
         }
-        response.setHeader("Content-Length", String.valueOf(file.length()));
+        response.setHeader("Content-Length", String.valueOf(stat.length()));
         String contentType = getServletConfig().getServletContext().getMimeType(
                 file.getName());
         response.setContentType((contentType != null) ? contentType :
                 "application/octet-stream");
-        response.setContentLength(file.isFile() ? (int) file.length() : 0);
+        response.setContentLength(stat.isFile() ? (int) stat.length() : 0);
         response.flushBuffer();
     }
 
@@ -4,13 +4,11 @@ import java.io.IOException;
 
 import java.security.Principal;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -18,14 +16,20 @@ import org.irods.jargon.core.pub.io.IRODSFile;
 
 /**
  * Lock manager for webdav
+ *
+ * Locks are kept by token, and in a <code>LockIndex</code> by path, so the
+ * locks covering a resource are found in time proportional to the depth of
+ * its path, however many locks are held. Lookups don't take any locks;
+ * locking and unlocking are serialized on the index.
+ *
  * @author Shunde Zhang
  *
  */
 public class DefaultLockManager implements LockManager {
 
-    protected static final Timer TIMER = new Timer(true);
+    protected final Map locks = new ConcurrentHashMap();
 
-    protected final Map locks = new HashMap();
+    protected final LockIndex index = new LockIndex();
 
     private long defaultTimeout = DavisUtilities.INFINITE_TIMEOUT;
 
@@ -67,24 +71,17 @@ public class DefaultLockManager implements LockManager {
 
     public boolean isLocked(IRODSFile resource, String lockToken)
             throws IOException {
-        BasicLock lock;
-        synchronized (locks) {
-            lock = (BasicLock) locks.get(lockToken);
-        }
+        BasicLock lock = (BasicLock) locks.get(lockToken);
         return coveredBy(resource, lock);
     }
 
     public Lock[] getActiveLocks(IRODSFile resource) throws IOException {
-        Set activeLocks = new HashSet();
-        synchronized (locks) {
-            Iterator lockIterator = locks.values().iterator();
-            while (lockIterator.hasNext()) {
-                BasicLock lock = (BasicLock) lockIterator.next();
-                if (coveredBy(resource, lock)) activeLocks.add(lock);
-            }
-        }
-        return activeLocks.isEmpty() ? null :
-                (BasicLock[]) activeLocks.toArray(new BasicLock[0]);
+        if (resource == null) return null;
+        Lock[] activeLocks = index.getCoveringLocks(getPath(resource));
+        if (activeLocks.length == 0) return null;
+        BasicLock[] basicLocks = new BasicLock[activeLocks.length];
+        System.arraycopy(activeLocks, 0, basicLocks, 0, activeLocks.length);
+        return basicLocks;
     }
 
     public IRODSFile getLockedResource(IRODSFile resource, DavisSession davisSession)
@@ -96,7 +93,7 @@ public class DefaultLockManager implements LockManager {
             throws LockException, IOException {
         Log.log(Log.DEBUG, "Locking \"{0}\" for \"{1}\" -- {2}", new Object[] {
                 resource, davisSession, lockInfo });
-        synchronized (locks) {
+        synchronized (index) {
             BasicLock[] activeLocks = (BasicLock[]) getActiveLocks(resource);
             if (activeLocks != null && activeLocks.length > 0) {
                 if (lockInfo.isExclusive()) {
@@ -114,10 +111,18 @@ public class DefaultLockManager implements LockManager {
                     }
                 }
             }
+            if (lockInfo.getDepth() == DavisUtilities.INFINITE_DEPTH &&
+                    index.hasLocksBelow(getPath(resource), !lockInfo.isExclusive())) {
+                Log.log(Log.DEBUG, "Cannot obtain lock -- conflicting lock " +
+                        "on a member of \"{0}\"", resource);
+                throw new LockException(MethodHandler.SC_LOCKED);
+            }
             String lockToken = "opaquelocktoken:" +
             DavisUtilities.generateUuid();
-            Lock lock = createLock(resource, davisSession, lockToken, lockInfo);
+            BasicLock lock = createLock(resource, davisSession, lockToken, lockInfo);
             locks.put(lockToken, lock);
+            index.add(lock.getPath(), lock);
+            locked(lock);
             Log.log(Log.DEBUG, "Locked resource \"{0}\":\n{1}", new Object[] {
                     resource, lock });
             return lockToken;
@@ -137,7 +142,7 @@ public class DefaultLockManager implements LockManager {
                     "Timeout {2}:\n{3}", new Object[] { resource, davisSession,
             		DavisUtilities.formatTimeout(timeout), tokens });
         }
-        synchronized (locks) {
+        synchronized (index) {
             BasicLock[] activeLocks = (BasicLock[]) getActiveLocks(resource);
             if (activeLocks == null || activeLocks.length == 0) {
                 Log.log(Log.DEBUG, "No active locks on \"{0}\"", resource);
@@ -166,7 +171,9 @@ public class DefaultLockManager implements LockManager {
             }
             Iterator lockIterator = currentLocks.iterator();
             while (lockIterator.hasNext()) {
-                ((BasicLock) lockIterator.next()).refresh(timeout);
+                BasicLock lock = (BasicLock) lockIterator.next();
+                lock.refresh(timeout);
+                refreshed(lock);
             }
         }
     }
@@ -175,7 +182,7 @@ public class DefaultLockManager implements LockManager {
             throws LockException, IOException {
         Log.log(Log.DEBUG, "Unlocking \"{0}\" for \"{1}\" with token {2}",
                 new Object[] { resource, davisSession, lockToken });
-        synchronized (locks) {
+        synchronized (index) {
             BasicLock lock = (BasicLock) locks.get(lockToken);
             if (!coveredBy(resource, lock)) {
                 Log.log(Log.DEBUG,
@@ -190,6 +197,45 @@ public class DefaultLockManager implements LockManager {
         }
     }
 
+    /**
+     * Adds a lock held before the lock manager was created, for instance
+     * one recovered from persistent storage. Nothing is checked on the
+     * server, and the lock isn't reported to <code>locked</code>.
+     *
+     * @param path The canonical path of the locked resource.
+     * @param davisSession The owner of the lock. Only the session ID is
+     * needed to check ownership.
+     * @param lockToken The lock's token.
+     * @param lockInfo The lock's scope, depth, owner and remaining timeout.
+     */
+    protected void restore(String path, DavisSession davisSession,
+            String lockToken, LockInfo lockInfo) throws IOException {
+        synchronized (index) {
+            BasicLock lock = new BasicLock(path, davisSession, lockToken,
+                    lockInfo);
+            locks.put(lockToken, lock);
+            index.add(path, lock);
+        }
+    }
+
+    /**
+     * Called when a lock has been granted. This implementation does nothing;
+     * subclasses can override it to record locks.
+     */
+    protected void locked(BasicLock lock) { }
+
+    /**
+     * Called when a lock's timeout has been refreshed. This implementation
+     * does nothing.
+     */
+    protected void refreshed(BasicLock lock) { }
+
+    /**
+     * Called when a lock has been released or has expired. This
+     * implementation does nothing.
+     */
+    protected void unlocked(BasicLock lock) { }
+
     protected BasicLock createLock(IRODSFile resource, DavisSession davisSession,
             String lockToken, LockInfo lockInfo) throws IOException,
                     LockException {
@@ -199,10 +245,8 @@ public class DefaultLockManager implements LockManager {
     private boolean coveredBy(IRODSFile resource, BasicLock lock)
             throws IOException {
         if (lock == null || resource == null) return false;
-        String path=null;
-        path=resource.getCanonicalPath();
-        String lockPath = null;
-        lockPath = lock.getResource().getCanonicalPath();
+        String path = getPath(resource);
+        String lockPath = lock.getPath();
         if (path.equals(lockPath)) return true; // same resource
         if (!path.startsWith(lockPath) || !(lockPath.endsWith("/") ||
                 path.substring(lockPath.length()).startsWith("/"))) {
@@ -211,19 +255,28 @@ public class DefaultLockManager implements LockManager {
         return (lock.getDepth() == DavisUtilities.INFINITE_DEPTH);
     }
 
+    private static String getPath(IRODSFile resource) throws IOException {
+        return resource.getCanonicalPath();
+    }
+
     protected class BasicLock extends Lock {
 
         private final IRODSFile resource;
 
+        private final String path;
+
         private final DavisSession davisSession;
 
         private final String token;
 
-        private TimerTask task;
+        private ExpiryService.Timeout task;
+
+        private long expires;
 
         public BasicLock(IRODSFile resource, DavisSession davisSession, String token,
                 LockInfo lockInfo) throws IOException {
             this.resource = resource;
+            this.path = DefaultLockManager.getPath(resource);
             this.davisSession = davisSession;
             this.token = token;
             if (!resource.exists()) resource.createNewFile();
@@ -233,6 +286,25 @@ public class DefaultLockManager implements LockManager {
             refresh(lockInfo.getTimeout());
         }
 
+        /**
+         * Creates a lock restored from storage, without a resource.
+         */
+        protected BasicLock(String path, DavisSession davisSession,
+                String token, LockInfo lockInfo) throws IOException {
+            this.resource = null;
+            this.path = path;
+            this.davisSession = davisSession;
+            this.token = token;
+            setExclusive(lockInfo.isExclusive());
+            setOwner(lockInfo.getOwner());
+            setDepth(lockInfo.getDepth());
+            refresh(lockInfo.getTimeout());
+        }
+
+        /**
+         * Returns the locked resource, or null if the lock was restored
+         * from storage.
+         */
         public IRODSFile getResource() {
             return resource;
         }
@@ -241,6 +313,17 @@ public class DefaultLockManager implements LockManager {
             return token;
         }
 
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns when the lock expires, or -1 if it doesn't.
+         */
+        public synchronized long getExpires() {
+            return expires;
+        }
+
         public DavisSession getDavisSession() {
             return davisSession;
         }
@@ -266,8 +349,12 @@ public class DefaultLockManager implements LockManager {
             timeout = getTimeout();
             synchronized (this) {
                 if (task != null) task.cancel();
-                if (timeout == DavisUtilities.INFINITE_TIMEOUT) return;
-                task = new TimerTask() {
+                if (timeout == DavisUtilities.INFINITE_TIMEOUT) {
+                    expires = -1;
+                    return;
+                }
+                expires = System.currentTimeMillis() + timeout;
+                task = ExpiryService.getInstance().schedule(new Runnable() {
                     public void run() {
                         try {
                             unlock();
@@ -277,8 +364,7 @@ public class DefaultLockManager implements LockManager {
                                             getResource(), ex });
                         }
                     }
-                };
-                TIMER.schedule(task, timeout);
+                }, timeout);
             }
             Log.log(Log.DEBUG, "Established/renewed lock on \"{0}\" -- {1}",
                     new Object[] { getResource(), this });
@@ -291,8 +377,10 @@ public class DefaultLockManager implements LockManager {
                     task = null;
                 }
             }
-            synchronized (locks) {
-                locks.remove(getToken());
+            synchronized (index) {
+                if (locks.remove(getToken()) == null) return;
+                index.remove(getPath(), this);
+                unlocked(this);
             }
             Log.log(Log.DEBUG, "Released lock on \"{0}\" -- {1}",
                     new Object[] { getResource(), this });
@@ -32,6 +32,7 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemHeaders;
 import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
@@ -419,7 +420,8 @@ public class DefaultPostHandler extends AbstractHandler {
 										e1.printStackTrace();
 										throw new IOException(e1.getMessage());
 									}
-			                        BufferedOutputStream outputStream = new BufferedOutputStream(stream, 1024*256);  //Buffersize of 256k seems to give max speed
+			                        UploadChecksum checksum = new UploadChecksum();
+			                        OutputStream outputStream = checksum.wrap(new BufferedOutputStream(stream, 1024*256));  //Buffersize of 256k seems to give max speed
 			                        try {
 			                        	copy(tracker, inputStream, outputStream);
 			                        } catch (IOException e) {
@@ -431,9 +433,25 @@ public class DefaultPostHandler extends AbstractHandler {
 			                        }
 			                        outputStream.flush();
 			                        outputStream.close();
-				                    if (tracker.getBytesReceived() >= 0) {
+			                        checksum.complete();
+			                        FileItemHeaders headers = fileItemStream.getHeaders();	// Checksums sent by the client apply to the file part, not the whole request
+			                        String mismatch = headers == null ? null : checksum.verify(headers.getHeader("Content-MD5"), headers.getHeader("Digest"));
+			                        if (mismatch != null) {
+			                        	Log.log(Log.WARNING, "Upload of "+file.getAbsolutePath()+" failed checksum verification: "+mismatch);
+			                        	file.delete();
+			                        	json.append(wrapJSONInHTML(escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg(mismatch)));
+			                        	result = true;
+			                        } else if (tracker.getBytesReceived() >= 0) {
+			                        	if (Davis.getConfig().getRegisterUploadChecksums()) {
+			                        		try {
+			                        			checksum.register(file, davisSession);
+			                        		} catch (IOException e) {
+			                        			Log.log(Log.WARNING, "Failed to register checksum for "+file.getAbsolutePath()+": "+e);
+			                        		}
+			                        	}
 				                    	tracker.setComplete();
-				                        json.append(wrapJSONInHTML(escapeJSONArg("status")+":"+escapeJSONArg("success")+","+escapeJSONArg("message")+":"+escapeJSONArg(""+tracker.getBytesReceived())));
+				                        json.append(wrapJSONInHTML(escapeJSONArg("status")+":"+escapeJSONArg("success")+","+escapeJSONArg("message")+":"+escapeJSONArg(""+tracker.getBytesReceived())
+				                        		+","+escapeJSONArg("md5")+":"+escapeJSONArg(checksum.getMD5())+","+escapeJSONArg("sha256")+":"+escapeJSONArg(checksum.getSHA256())));
 				                        result = true;
 				                    } 
 				                    client = davisSession.getClientInstance(requestUIHandle);
@@ -480,6 +498,97 @@ public class DefaultPostHandler extends AbstractHandler {
 			}
 			json.append("\n");
 			
+		} else if (method.equalsIgnoreCase("expandarchive")) {	// Unpack a zip, tar or tar.gz request body into this collection
+			if (!file.isDirectory()) 
+				json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg("Target is not a collection")+"}");
+			else if (!file.canWrite())
+				json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg("you don't have permission to upload here")+"}");
+			else {
+				boolean overwrite = Boolean.parseBoolean(request.getParameter("overwrite"));
+				final HttpServletRequest archiveRequest = request;
+				ArchiveExpander expander = new ArchiveExpander(davisSession, file, overwrite, Davis.getConfig().getArchiveExpansionThreads(), new ArchiveExpander.EntryCheck() {
+					public int check(IRODSFile entry) throws IOException {
+						return checkLockOwnership(archiveRequest, entry);
+					}
+				});
+				try {
+					Map<String, String> results = expander.expand(request.getInputStream());
+					int failed = 0;
+					json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("success")+","+escapeJSONArg("entries")+":[\n");
+					Iterator<String> names = results.keySet().iterator();
+					while (names.hasNext()) {
+						String name = names.next();
+						String result = results.get(name);
+						if (!result.equals(ArchiveExpander.OK))
+							failed++;
+						json.append("{"+escapeJSONArg("name")+":"+escapeJSONArg(name)+","+escapeJSONArg("result")+":"+escapeJSONArg(result)+"}");
+						if (names.hasNext())
+							json.append(",\n");
+					}
+					json.append("\n],"+escapeJSONArg("total")+":"+results.size()+","+escapeJSONArg("failed")+":"+failed+"}");
+				} catch (IOException e) {
+		        	Log.log(Log.DEBUG, "Archive expansion failed: "+e);
+		        	json.setLength(0);
+					json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg(e.getMessage())+"}");
+				}
+			}
+			
+		} else if (method.equalsIgnoreCase("createcollections")) {	// Create a list or tree of collections below this collection
+			JSONArray jsonArray = null;
+			try {
+				jsonArray = getJSONContent(request);
+			} catch (ClassCastException e) {}	// Not an array, reported as invalid below
+			List<String> paths = new ArrayList<String>();
+			boolean valid = true;
+			if (jsonArray != null && jsonArray.size() > 0) {
+				Object element = jsonArray.get(0);
+				if (element instanceof JSONObject) {
+					Object pathsArray = ((JSONObject)element).get("collections");
+					if (pathsArray instanceof JSONArray) {
+						for (Object path : (JSONArray)pathsArray)
+							if (path instanceof String)
+								paths.add((String)path);
+							else
+								valid = false;
+					} else if (pathsArray != null)
+						valid = false;
+					Object tree = ((JSONObject)element).get("tree");
+					if (tree instanceof JSONObject)
+						paths.addAll(CollectionCreator.flatten((JSONObject)tree));
+					else if (tree != null)
+						valid = false;
+				} else
+					valid = false;
+			}
+			if (!file.isDirectory()) 
+				json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg("Target is not a collection")+"}");
+			else if (!file.canWrite())
+				json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg("you don't have permission to create collections here")+"}");
+			else if (checkLockOwnership(request, file) != HttpServletResponse.SC_OK)
+				json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg("Target is locked")+"}");
+			else if (!valid)
+				json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg("Invalid collections request")+"}");
+			else if (paths.size() == 0)
+				json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("failed")+","+escapeJSONArg("message")+":"+escapeJSONArg("No collections to create")+"}");
+			else {
+				final HttpServletRequest collectionsRequest = request;
+				CollectionCreator creator = new CollectionCreator(davisSession, file, Davis.getConfig().getArchiveExpansionThreads(), new ArchiveExpander.EntryCheck() {
+					public int check(IRODSFile collection) throws IOException {
+						return checkLockOwnership(collectionsRequest, collection);
+					}
+				});
+				Map<String, String> results = creator.create(paths);
+				json.append("{"+escapeJSONArg("status")+":"+escapeJSONArg("success")+","+escapeJSONArg("collections")+":{\n");
+				Iterator<String> names = results.keySet().iterator();
+				while (names.hasNext()) {
+					String name = names.next();
+					json.append(escapeJSONArg(name)+":"+escapeJSONArg(results.get(name)));
+					if (names.hasNext())
+						json.append(",\n");
+				}
+				json.append("\n}}");
+			}
+			
 		} else if (method.equalsIgnoreCase("dynamicobjects")) {
 			json.append("{\n"+escapeJSONArg("items")+":[\n");
 			Enumeration<JSONObject> dynamicObjects = Davis.getConfig().getDynamicObjects().elements();
@@ -817,7 +926,7 @@ public class DefaultPostHandler extends AbstractHandler {
 				response.sendError(HttpServletResponse.SC_FORBIDDEN, s);
 				return;
 	    	}
-//			
+//			
 //		} else if (method.equalsIgnoreCase("search")) {
 //			IRODSFileSystem searchFileSystem = null;
 //			try {
@@ -1120,6 +1229,7 @@ public class DefaultPostHandler extends AbstractHandler {
 		} else if (method.equalsIgnoreCase("logout")) { 
 			HttpSession session = request.getSession(true);
 			request.getSession().removeAttribute(Davis.FORMAUTHATTRIBUTENAME); // Discard auth attribute (if there is one)
+			SessionStateManager.getInstance().logout(request, response);	// Drop any shared login state
 			session.invalidate();
 			AuthorizationProcessor.getInstance().destroy(davisSession.getSessionID());
 			
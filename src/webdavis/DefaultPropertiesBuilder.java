@@ -63,6 +63,36 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
 
     public void addPropNames(Document document, IRODSFile file, String href)
             throws IOException {
+        addPropNames0(document, file, null, href);
+    }
+
+    public void addPropNames(Document document, FileStat stat, String href)
+            throws IOException {
+        addPropNames0(document, stat.getFile(), stat, href);
+    }
+
+    public void addAllProps(Document document, IRODSFile file, String href)
+            throws IOException {
+        addAllProps0(document, file, null, href);
+    }
+
+    public void addAllProps(Document document, FileStat stat, String href)
+            throws IOException {
+        addAllProps0(document, stat.getFile(), stat, href);
+    }
+
+    public void addProps(Document document, IRODSFile file, String href,
+            Element[] props) throws IOException {
+        addProps0(document, file, null, href, props);
+    }
+
+    public void addProps(Document document, FileStat stat, String href,
+            Element[] props) throws IOException {
+        addProps0(document, stat.getFile(), stat, href, props);
+    }
+
+    private void addPropNames0(Document document, IRODSFile file,
+            FileStat stat, String href) throws IOException {
         Element response = document.createElementNS(Property.DAV_NAMESPACE,
                 "response");
         Element hrefElem = document.createElementNS(Property.DAV_NAMESPACE,
@@ -77,29 +107,38 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
         propstat.appendChild(status);
         Iterator iterator = properties.iterator();
         while (iterator.hasNext()) {
-            Element prop = ((Property) iterator.next()).createElement(document,
-                    file);
+            Element prop = createElement((Property) iterator.next(), document,
+                    file, stat);
             if (prop != null) propstat.appendChild(prop);
         }
+        if (stat != null && stat.getDeadProperties() != null) {
+            Iterator<String> keys = stat.getDeadProperties().keySet().iterator();
+            while (keys.hasNext()) {
+                propstat.appendChild(DeadProperties.createElement(document,
+                        keys.next()));
+            }
+        }
         response.appendChild(propstat);
         document.getDocumentElement().appendChild(response);
     }
 
-    public void addAllProps(Document document, IRODSFile file, String href)
-            throws IOException {
-        List list = new Vector();
+    private void addAllProps0(Document document, IRODSFile file,
+            FileStat stat, String href) throws IOException {
+        List<Element> list = new Vector<Element>();
         Iterator iterator = properties.iterator();
         while (iterator.hasNext()) {
-            Element prop = ((Property) iterator.next()).createElement(document,
-                    file);
+            Element prop = createElement((Property) iterator.next(), document,
+                    file, stat);
            if (prop != null) list.add(prop);
         }
-        addProps0(document, file, href, (Element[]) list.toArray(new Element[0]));
-    }
-    
-    public void addProps(Document document, IRODSFile file, String href,
-            Element[] props) throws IOException {
-        addProps0(document, file, href, props);
+        if (stat != null && stat.getDeadProperties() != null) {
+            Iterator<String> keys = stat.getDeadProperties().keySet().iterator();
+            while (keys.hasNext()) {
+                list.add(DeadProperties.createElement(document,
+                        keys.next()));
+            }
+        }
+        addProps0(document, file, stat, href, list.toArray(new Element[0]));
     }
 
     public Document createDocument() {
@@ -137,8 +176,20 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
         return config;
     }
 
-    private void addProps0(Document document, IRODSFile file, String href,
-            Element[] props) throws IOException {
+    /**
+     * Creates the element for a property, from the snapshot if there is one
+     * and the property supports it.
+     */
+    private Element createElement(Property property, Document document,
+            IRODSFile file, FileStat stat) throws IOException {
+        if (stat != null && property instanceof SnapshotProperty) {
+            return ((SnapshotProperty) property).createElement(document, stat);
+        }
+        return property.createElement(document, file);
+    }
+
+    private void addProps0(Document document, IRODSFile file, FileStat stat,
+            String href, Element[] props) throws IOException {
 
     	Element response = document.createElementNS(Property.DAV_NAMESPACE,
     			Property.DAV_PREFIX + ":response");
@@ -178,9 +229,24 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
                 if (namespace == null) namespace = Property.DAV_NAMESPACE;
                 if (!prop.getLocalName().equals(name)) continue;
                 if (!prop.getNamespaceURI().equals(namespace)) continue;
-                result = property.retrieve(file, prop);
+                if (stat != null && property instanceof SnapshotProperty) {
+                    result = ((SnapshotProperty) property).retrieve(stat, prop);
+                } else {
+                    result = property.retrieve(file, prop);
+                }
                 break;
             }
+            if (result == HttpServletResponse.SC_NOT_FOUND && stat != null &&
+                    stat.getDeadProperties() != null) {
+                String value = stat.getDeadProperties().get(
+                        DeadProperties.getKey(prop));
+                Element dead = (value != null) ?
+                        DeadProperties.toElement(document, value) : null;
+                if (dead != null) {
+                    prop = dead;
+                    result = HttpServletResponse.SC_OK;
+                }
+            }
             Integer resultCode = new Integer(result);
             List resultList = (List) results.get(resultCode);
             if (resultList == null) {
@@ -193,7 +259,6 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
         while (entries.hasNext()) {
             Map.Entry entry = (Map.Entry) entries.next();
             int result = ((Integer) entry.getKey()).intValue();
-            if (result == 404) break; // TBD
             Element propstat = document.createElementNS(Property.DAV_NAMESPACE,
             		Property.DAV_PREFIX + ":propstat");
             propstat.setPrefix(Property.DAV_PREFIX);
@@ -201,7 +266,7 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
             		Property.DAV_PREFIX + ":status");
             status.setPrefix(Property.DAV_PREFIX);
             status.appendChild(document.createTextNode("HTTP/1.1 " + result +
-                    " MultiStatus"));
+                    (result == HttpServletResponse.SC_NOT_FOUND ? " Not Found" : " MultiStatus")));
             propstat.appendChild(status);
             response.appendChild(propstat);
             Element prop = document.createElementNS(Property.DAV_NAMESPACE,
@@ -211,7 +276,9 @@ public class DefaultPropertiesBuilder implements PropertiesBuilder {
             Iterator resultProps = ((List) entry.getValue()).iterator();
             while (resultProps.hasNext()) {
                 Element element = (Element) resultProps.next();
-                element.setPrefix(Property.DAV_PREFIX);
+                if (Property.DAV_NAMESPACE.equals(element.getNamespaceURI())) {
+                    element.setPrefix(Property.DAV_PREFIX);
+                }
                 prop.appendChild(element);
                 String prefix = element.getPrefix();
                 if (prefix != null && !documentElement.hasAttributeNS(
@@ -1,7 +1,7 @@
 package webdavis;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import java.util.List;
 import java.util.Vector;
@@ -15,14 +15,6 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-
-import javax.xml.transform.dom.DOMSource;
-
-import javax.xml.transform.stream.StreamResult;
-
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -61,14 +53,22 @@ public class DefaultPropfindHandler extends AbstractHandler {
 
     /**
      * Services requests which use the WebDAV PROPFIND method.
-     * This implementation builds and returns an XML document
-     * containing an appropriate PROPFIND result.
+     * This implementation streams an XML document containing an
+     * appropriate PROPFIND result, writing each response as soon as
+     * its properties have been retrieved.
      * <br>
      * If the specified resource does not exist, a 404 (Not Found) error
      * is sent to the client.
      * <br>
      * If the PROPFIND request is not properly formed, a 400 (Bad Request)
      * error is sent to the client.
+     * <br>
+     * Depth infinity requests are handled as set by the
+     * <code>propfind-infinite-depth</code> configuration item. If they're
+     * refused, a 403 (Forbidden) error is sent to the client.
+     * <br>
+     * Results of requests with depth 0 or 1 are shared through the
+     * <code>PropfindCache</code>.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -80,7 +80,8 @@ public class DefaultPropfindHandler extends AbstractHandler {
                     throws ServletException, IOException {
         int depth = DavisUtilities.parseDepth(request.getHeader("Depth"));
         IRODSFile file = getIRODSFile(request, davisSession);
-        if (!file.exists()) {
+        FileStat stat = FileStat.stat(file, davisSession);
+        if (!stat.exists()) {
         	Log.log(Log.WARNING, file.getAbsolutePath()+" doesn't exist!");
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
@@ -126,8 +127,9 @@ public class DefaultPropfindHandler extends AbstractHandler {
         }
         String requestUrl = getRequestURL(request);
         Log.log(Log.DEBUG, "requestUrl: {0}", requestUrl);
-        PropertiesDirector director = new PropertiesDirector(getPropertiesBuilder());
-        Document properties = null;
+        PropertiesDirector director = new PropertiesDirector(getPropertiesBuilder(), davisSession);
+        String name = "allprop";
+        Element[] props = null;
         if (request.getContentLength() > 0) {
             DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
             builderFactory.setNamespaceAware(true);
@@ -156,12 +158,8 @@ public class DefaultPropfindHandler extends AbstractHandler {
                     break;
                 }
             }
-            String name = (child != null) ? child.getLocalName() : null;
-            if (child == null || "allprop".equals(name)) {
-                properties = director.getAllProperties(file, requestUrl, depth);
-            } else if ("propname".equals(name)) {
-                properties = director.getPropertyNames(file, requestUrl, depth);
-            } else if ("prop".equals(name)) {
+            if (child != null) name = child.getLocalName();
+            if ("prop".equals(name)) {
                 List propList = new Vector();
                 nodes = child.getChildNodes();
                 int count = nodes.getLength();
@@ -169,32 +167,75 @@ public class DefaultPropfindHandler extends AbstractHandler {
                     Node node = nodes.item(i);
                     if (node instanceof Element) propList.add(node);
                 }
-                Element[] props = (Element[]) propList.toArray(new Element[0]);
-                properties = director.getProperties(file, requestUrl, props, depth);
-            } else  {
+                props = (Element[]) propList.toArray(new Element[0]);
+            } else if (!"allprop".equals(name) && !"propname".equals(name)) {
                 response.sendError(HttpServletResponse.SC_BAD_REQUEST);
                 return;
             }
-        } else {
-            properties = director.getAllProperties(file, requestUrl, depth);
         }
-        try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty("encoding", "UTF-8");
-            ByteArrayOutputStream collector = new ByteArrayOutputStream();
-            transformer.transform(new DOMSource(properties), new StreamResult(collector));
+        if (depth == DavisUtilities.INFINITE_DEPTH && PropertiesDirector.isForbiddingInfiniteDepth()) {
+        	Log.log(Log.DEBUG, "Refusing depth infinity PROPFIND of "+file.getAbsolutePath());
+        	response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        	response.setContentType("text/xml; charset=\"utf-8\"");
+        	response.getWriter().write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+        			"<D:error xmlns:D=\"DAV:\"><D:propfind-finite-depth/></D:error>\n");
+        	response.flushBuffer();
+        	return;
+        }
+        if (depth != DavisUtilities.INFINITE_DEPTH && PropfindCache.isEnabled()) {
+        	// Shallow requests are repeated a lot by desktop clients, so share their results for a short while
+        	final PropertiesDirector cachedDirector = director;
+        	final FileStat cachedStat = stat;
+        	final String cachedName = name;
+        	final String cachedUrl = requestUrl;
+        	final Element[] cachedProps = props;
+        	final int cachedDepth = depth;
             response.setStatus(SC_MULTISTATUS);
             response.setContentType("text/xml; charset=\"utf-8\"");
-//			addNoCacheDirectives(response);  // Was added as an experiment to see whether webdrive would stop caching dir listings. Doesn't seem to help.
-//			System.err.print("response=");
-//			collector.writeTo(System.err);
-//			System.err.println("");
-            collector.writeTo(response.getOutputStream());
-//            collector.writeTo(System.out);
+        	PropfindCache.getInstance().write(getCacheKey(davisSession, requestUrl, depth, name, props),
+        			new PropfindCache.Producer() {
+        		public void write(OutputStream output) throws IOException {
+        			writeMultistatus(cachedDirector, cachedStat, cachedUrl, cachedName, cachedProps, cachedDepth, output);
+        		}
+        	}, response.getOutputStream());
             response.flushBuffer();
-        } catch (TransformerException ex) {
-            throw new IOException(ex.getMessage());
+            return;
         }
+        // Stream each response to the client as soon as its properties are known
+        response.setStatus(SC_MULTISTATUS);
+        response.setContentType("text/xml; charset=\"utf-8\"");
+//		addNoCacheDirectives(response);  // Was added as an experiment to see whether webdrive would stop caching dir listings. Doesn't seem to help.
+        writeMultistatus(director, stat, requestUrl, name, props, depth, response.getOutputStream());
+        response.flushBuffer();
+    }
+
+    private void writeMultistatus(PropertiesDirector director, FileStat stat, String requestUrl, String name,
+    		Element[] props, int depth, OutputStream output) throws IOException {
+        MultistatusWriter writer = new MultistatusWriter(output);
+        if ("propname".equals(name)) {
+            director.writePropertyNames(stat, requestUrl, depth, writer);
+        } else if ("prop".equals(name)) {
+            director.writeProperties(stat, requestUrl, props, depth, writer);
+        } else {
+            director.writeAllProperties(stat, requestUrl, depth, writer);
+        }
+        writer.close();
+        Log.log(Log.DEBUG, "PROPFIND wrote {0} responses", Integer.valueOf(writer.getCount()));
+    }
+
+    /**
+     * Returns the key that identifies a PROPFIND result in the
+     * <code>PropfindCache</code>.
+     */
+    private String getCacheKey(DavisSession davisSession, String requestUrl, int depth, String name, Element[] props) {
+    	StringBuffer key = new StringBuffer();
+    	key.append(davisSession.getAccount()).append('#').append(davisSession.getZone());
+    	key.append('\n').append(requestUrl).append('\n').append(depth).append('\n').append(name);
+    	if (props != null) {
+    		for (int i = 0; i < props.length; i++)
+    			key.append(" {").append(props[i].getNamespaceURI()).append('}').append(props[i].getLocalName());
+    	}
+    	return key.toString();
     }
 
     /**
@@ -1,9 +1,13 @@
 package webdavis;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -21,6 +25,7 @@ import javax.xml.transform.stream.StreamResult;
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * Default implementation of a handler for requests using the WebDAV
@@ -45,7 +50,9 @@ public class DefaultProppatchHandler extends AbstractHandler {
 	
     /**
      * Services requests which use the WebDAV PROPPATCH method.
-     * This implementation doesn't currently do anything.
+     * Dead properties are stored as AVUs by <code>DeadProperties</code>.
+     * All the changes in a request are made together, or none of them
+     * are. Properties in the DAV: namespace can't be changed.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -58,25 +65,88 @@ public class DefaultProppatchHandler extends AbstractHandler {
     	
     	IRODSFile file = getIRODSFile(request, davisSession);
         Log.log(Log.DEBUG, "PROPPATCH Request for resource \"{0}\".", file);
- 	
-    	StringBuffer body = new StringBuffer();
-        String encoding = request.getCharacterEncoding();
-        if (encoding == null) encoding = "ISO-8859-1";
-        BufferedReader reader = new BufferedReader(new InputStreamReader(
-                new LimitInputStream(request.getInputStream(),
-                        maximumXmlRequest), encoding));
-        String line;
-        while ((line = reader.readLine()) != null) body.append(line);
-        line = body.toString().trim();
-        if (!"".equals(line)) {
-            Log.log(Log.DEBUG, "Received PROPPATCH request body:\n{0}", line);
+        FileStat stat = FileStat.stat(file, davisSession);
+        if (!stat.exists()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
-    	
-        Document output = null;
-        output = createDocument();
-        patchProps(output, getRequestURL(request), null);
-        if (output != null) outputDocument(output, response);
+        int result = checkLockOwnership(request, file);
+        if (result != HttpServletResponse.SC_OK) {
+            response.sendError(result);
+            return;
+        }
+        result = checkConditionalRequest(request, davisSession, file, stat);
+        if (result != HttpServletResponse.SC_OK) {
+            response.setStatus(result);
+            response.flushBuffer();
+            return;
+        }
+        Document input;
+        try {
+            DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+            builderFactory.setNamespaceAware(true);
+            builderFactory.setExpandEntityReferences(false);
+            builderFactory.setIgnoringComments(true);
+            DocumentBuilder builder = builderFactory.newDocumentBuilder();
+            builder.setEntityResolver(BlockedEntityResolver.INSTANCE);
+            input = builder.parse(new LimitInputStream(request.getInputStream(), maximumXmlRequest));
+        } catch (Exception ex) {
+            Log.log(Log.DEBUG, "Invalid PROPPATCH request body: "+ex);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        Element propertyupdate = input.getDocumentElement();
+        if (!isDAVElement(propertyupdate, "propertyupdate")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        // Instructions are processed in document order, so a later one for the same property wins
+        Map<String, Element> names = new LinkedHashMap<String, Element>();
+        Map<String, String> updates = new LinkedHashMap<String, String>();
+        Map<String, Integer> errors = new HashMap<String, Integer>();
+        for (Node instruction = propertyupdate.getFirstChild(); instruction != null; instruction = instruction.getNextSibling()) {
+            boolean set = isDAVElement(instruction, "set");
+            if (!set && !isDAVElement(instruction, "remove")) continue;
+            for (Node prop = instruction.getFirstChild(); prop != null; prop = prop.getNextSibling()) {
+                if (!isDAVElement(prop, "prop")) continue;
+                for (Node node = prop.getFirstChild(); node != null; node = node.getNextSibling()) {
+                    if (!(node instanceof Element)) continue;
+                    Element property = (Element) node;
+                    String key = DeadProperties.getKey(property);
+                    names.put(key, property);
+                    updates.remove(key);
+                    errors.remove(key);
+                    if (Property.DAV_NAMESPACE.equals(property.getNamespaceURI())) {
+                        errors.put(key, Integer.valueOf(HttpServletResponse.SC_FORBIDDEN));
+                    } else if (!set) {
+                        updates.put(key, null);
+                    } else {
+                        String value = DeadProperties.toString(property);
+                        if (value.length() > DeadProperties.MAX_VALUE_LENGTH) {
+                            errors.put(key, Integer.valueOf(SC_INSUFFICIENT_STORAGE));
+                        } else {
+                            updates.put(key, value);
+                        }
+                    }
+                }
+            }
+        }
+        if (errors.isEmpty() && !updates.isEmpty()) {
+            if (!stat.canWrite()) {
+                Iterator<String> keys = updates.keySet().iterator();
+                while (keys.hasNext()) errors.put(keys.next(), Integer.valueOf(HttpServletResponse.SC_FORBIDDEN));
+            } else {
+                String failed = DeadProperties.getInstance().apply(stat, updates, davisSession);
+                if (failed != null) errors.put(failed, Integer.valueOf(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+            }
+        }
+        Log.log(Log.DEBUG, "PROPPATCH of {0} properties, errors: {1}", new Object[] { Integer.valueOf(names.size()), errors });
+
+        Document output = createDocument();
+        patchProps(output, getRequestURL(request), names, errors);
         response.setStatus(SC_MULTISTATUS);
+        outputDocument(output, response);
         response.flushBuffer();
     }
     
@@ -103,7 +173,12 @@ public class DefaultProppatchHandler extends AbstractHandler {
         }
     }
 
-    private void patchProps(Document document, String href, Element[] props) throws IOException {
+    /**
+     * Adds the response for the resource, with a propstat for each status.
+     * Properties without an error of their own succeeded if there were no
+     * errors at all, and otherwise failed because of the others.
+     */
+    private void patchProps(Document document, String href, Map<String, Element> names, Map<String, Integer> errors) throws IOException {
     	Element response = document.createElementNS(Property.DAV_NAMESPACE,
                 Property.DAV_PREFIX + ":response");
     	response.setPrefix(Property.DAV_PREFIX);
@@ -112,19 +187,60 @@ public class DefaultProppatchHandler extends AbstractHandler {
         hrefElem.setPrefix(Property.DAV_PREFIX);
         hrefElem.appendChild(document.createTextNode(href));    
         response.appendChild(hrefElem);
-        if (props == null || props.length == 0) {
-            Element propstat = document.createElementNS(Property.DAV_NAMESPACE,
-            		Property.DAV_PREFIX + ":propstat");
-            propstat.setPrefix(Property.DAV_PREFIX);
-            Element status = document.createElementNS(Property.DAV_NAMESPACE,
-            		Property.DAV_PREFIX + ":status");
-            status.setPrefix(Property.DAV_PREFIX);
-            status.appendChild(document.createTextNode("HTTP/1.1 200 OK"));
-            propstat.appendChild(status);
-            response.appendChild(propstat);
-            document.getDocumentElement().appendChild(response);
+        document.getDocumentElement().appendChild(response);
+        if (names.isEmpty()) {
+            response.appendChild(createPropstat(document, HttpServletResponse.SC_OK));
             return;
         }
+        Integer defaultStatus = Integer.valueOf(errors.isEmpty() ? HttpServletResponse.SC_OK : SC_FAILED_DEPENDENCY);
+        Map<Integer, List<Element>> results = new LinkedHashMap<Integer, List<Element>>();
+        Iterator<Map.Entry<String, Element>> entries = names.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Element> entry = entries.next();
+            Integer status = errors.get(entry.getKey());
+            if (status == null) status = defaultStatus;
+            List<Element> list = results.get(status);
+            if (list == null) results.put(status, list = new ArrayList<Element>());
+            list.add((Element) document.importNode(entry.getValue(), false));
+        }
+        Iterator<Map.Entry<Integer, List<Element>>> statuses = results.entrySet().iterator();
+        while (statuses.hasNext()) {
+            Map.Entry<Integer, List<Element>> entry = statuses.next();
+            Element propstat = createPropstat(document, entry.getKey().intValue());
+            Element prop = document.createElementNS(Property.DAV_NAMESPACE,
+            		Property.DAV_PREFIX + ":prop");
+            prop.setPrefix(Property.DAV_PREFIX);
+            for (int i = 0; i < entry.getValue().size(); i++) prop.appendChild(entry.getValue().get(i));
+            propstat.insertBefore(prop, propstat.getFirstChild());
+            response.appendChild(propstat);
+        }
+    }
+
+    private Element createPropstat(Document document, int result) {
+        Element propstat = document.createElementNS(Property.DAV_NAMESPACE,
+        		Property.DAV_PREFIX + ":propstat");
+        propstat.setPrefix(Property.DAV_PREFIX);
+        Element status = document.createElementNS(Property.DAV_NAMESPACE,
+        		Property.DAV_PREFIX + ":status");
+        status.setPrefix(Property.DAV_PREFIX);
+        status.appendChild(document.createTextNode("HTTP/1.1 " + result + " " + getReason(result)));
+        propstat.appendChild(status);
+        return propstat;
+    }
+
+    private static String getReason(int result) {
+        switch (result) {
+        case HttpServletResponse.SC_OK: return "OK";
+        case HttpServletResponse.SC_FORBIDDEN: return "Forbidden";
+        case SC_FAILED_DEPENDENCY: return "Failed Dependency";
+        case SC_INSUFFICIENT_STORAGE: return "Insufficient Storage";
+        default: return "Internal Server Error";
+        }
+    }
+
+    private static boolean isDAVElement(Node node, String name) {
+        return node instanceof Element && Property.DAV_NAMESPACE.equals(node.getNamespaceURI())
+                && name.equals(node.getLocalName());
     }
        
     private void outputDocument(Document output, HttpServletResponse response) throws ServletException, IOException {
@@ -11,6 +11,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.irods.jargon.core.exception.JargonException;
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.irods.jargon.core.pub.io.IRODSFileFactory;
 import org.irods.jargon.core.pub.io.IRODSFileOutputStream;
@@ -29,14 +30,30 @@ public class DefaultPutHandler extends AbstractHandler {
      * Services requests which use the HTTP PUT method.
      * This implementation uploads the content to the specified location.
      * <br>
-     * If the content length is not specified, a 411 (Length Required) error
-     * is sent to the client.
+     * If the content length is not specified and the request isn't sent
+     * with chunked transfer encoding, a 411 (Length Required) error
+     * is sent to the client. The number of bytes stored is returned in
+     * the X-Bytes-Written response header.
+     * <br>
+     * If the content is larger than the configured put-size-limit, a
+     * 413 (Request Entity Too Large) error is sent to the client. For chunked
+     * requests this is detected while the content is being written, so the
+     * content of an existing resource is written to a temporary resource as
+     * below.
      * <br>
      * If the resource exists and is a collection, a 405 (Method Not Allowed)
      * error is sent to the client.
      * <br>
      * If the parent collection does not exist, a 409 (Conflict) error is
      * sent to the client.
+     * <br>
+     * The MD5 and SHA-256 checksums are computed as the content is written.
+     * If they don't match a Content-MD5 or Digest request header, the
+     * upload is removed and a 400 (Bad Request) error is sent to the client.
+     * When such a header is sent for an existing resource, the content is
+     * written to a temporary resource which is copied over it once verified,
+     * so a bad upload leaves the existing content in place. The existing
+     * resource keeps its permissions and metadata.
      *
      * @param request The request being serviced.
      * @param response The servlet response.
@@ -58,30 +75,44 @@ public class DefaultPutHandler extends AbstractHandler {
             }catch (Exception e){}
             Log.log(Log.DEBUG, "request.getHeader(\"x-expected-entity-length\"): "+length);
         }
-        if (length < 0) {
+        boolean chunked = "chunked".equalsIgnoreCase(request.getHeader("Transfer-Encoding"));
+        if (length < 0 && !chunked) {
             response.sendError(HttpServletResponse.SC_LENGTH_REQUIRED);
             return;
         }
+        long sizeLimit = Davis.getConfig().getPutSizeLimit();
+        if (sizeLimit > 0 && length > sizeLimit) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
         if (length == 0){
         	Log.log(Log.INFORMATION, "content length = 0");
         	Log.log(Log.DEBUG, "request.getInputStream().available(): "+request.getInputStream().available());
 //        	return;
         }
         IRODSFile file = getIRODSFile(request, davisSession);
-        boolean existsCurrently = file.exists();
-        if (existsCurrently && !file.isFile()) {
+        // Fetch the target and parent attributes once, and use them for all the checks below
+        FileStat stat = null;
+        IRODSFile parent = null;
+        FileStat parentStat = null;
+        try {
+        	stat = FileStat.stat(file, davisSession);
+        	parent = davisSession.getFileFactory().instanceIRODSFile(file.getParent());
+        	parentStat = FileStat.stat(parent, davisSession);
+        } catch (IOException e) {
+        	lostConnection(response, "in put handler");
+        	return;
+        } catch (JargonException e) {
+        	lostConnection(response, "in put handler");
+        	return;
+        }
+        if (stat.exists() && !stat.isFile()) {
             response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
                     DavisUtilities.getResource(DefaultPutHandler.class,
                             "collectionTarget", null, request.getLocale()));
             return;
         }
-        IRODSFile parent = getRemoteParentFile(request, davisSession);
-        	//createRemoteFile(file.getParent(), rfs);
-        if (parent == null) {
-        	lostConnection(response, "in put handler");
-        	return;
-        }
-        if (!(parent.exists() && parent.isDirectory())) {
+        if (!parentStat.isDirectory()) {
             response.sendError(HttpServletResponse.SC_CONFLICT);
             return;
         }
@@ -94,7 +125,7 @@ public class DefaultPutHandler extends AbstractHandler {
             response.sendError(result);
             return;
         }
-        result = checkConditionalRequest(request, davisSession, file);
+        result = checkConditionalRequest(request, davisSession, file, stat);
         if (result != HttpServletResponse.SC_OK) {
             response.setStatus(result);
             response.flushBuffer();
@@ -109,6 +140,21 @@ public class DefaultPutHandler extends AbstractHandler {
         InputStream input = request.getInputStream();
         IRODSFileFactory fileFactory=davisSession.getFileFactory();
         IRODSFileOutputStream outputStream = null;
+        UploadChecksum checksum = new UploadChecksum();
+        // An upload which may be refused after it's written mustn't overwrite existing content. It's copied into
+        // the existing object once accepted, so the object keeps its permissions and metadata
+        IRODSFile target = file;
+        boolean staged = stat.exists() && (request.getHeader("Content-MD5") != null || request.getHeader("Digest") != null
+        		|| (chunked && sizeLimit > 0));
+        if (staged)
+        	try {
+        		file = fileFactory.instanceIRODSFile(parent.getAbsolutePath(), FSUtilities.getTemporaryName(target, "put"));
+        	} catch (JargonException e) {
+        		lostConnection(response, "in put handler");
+        		return;
+        	}
+        long total = 0;
+        boolean tooLarge = false;
     	Log.log(Log.DEBUG, "davisSession.getCurrentResource():"+davisSession.getCurrentResource());
     	try{
             
@@ -116,8 +162,10 @@ public class DefaultPutHandler extends AbstractHandler {
         	Log.log(Log.DEBUG, "saving file into res:"+((IRODSFile)file).getResource());
         	outputStream = fileFactory.instanceIRODSFileOutputStream(file);
 
-        	if (length > 0) {
-                long bufferSize = length / 100;
+        	if (length > 0 || chunked) {
+        		long bufferSize = 1048576;	// Chunked transfers have no length, so use a fixed buffer size of 1MegaByte
+        		if (length > 0)
+        			bufferSize = length / 100;
                 //minimum buf size of 50KiloBytes
                 if (bufferSize < 51200)
                     bufferSize = 51200;
@@ -129,9 +177,12 @@ public class DefaultPutHandler extends AbstractHandler {
 	            int interval=request.getSession().getMaxInactiveInterval();
 	            long startTime=new Date().getTime();
 	//            Log.log(Log.DEBUG, "PUT method: "+outputStream);
-	            BufferedOutputStream output = new BufferedOutputStream(outputStream, 1024*256); //Buffersize of 256k seems to give max speed
-	            long total = 0;
+	            OutputStream output = checksum.wrap(new BufferedOutputStream(outputStream, 1024*256)); //Buffersize of 256k seems to give max speed
 	            while ((count = input.read(buf)) != -1) {
+	            	if (sizeLimit > 0 && total+count > sizeLimit) {
+	            		tooLarge = true;
+	            		break;
+	            	}
                 	//inactive interval - "idle" time < 1 min, increase inactive interval
                 	if (request.getSession().getMaxInactiveInterval()-(new Date().getTime()-startTime)/1000<60){
                 		//increase interval by 5 mins
@@ -144,14 +195,53 @@ public class DefaultPutHandler extends AbstractHandler {
 	            }
 	            output.flush();
 	            output.close();
-	            Log.log(Log.DEBUG, "PUT method wrote "+total+" bytes.");
+	            Log.log(Log.DEBUG, "PUT method wrote "+total+" bytes"+(chunked ? " (chunked)." : "."));
 	            request.getSession().setMaxInactiveInterval(interval);
         	}
         	if (outputStream!=null) outputStream.close();
+        	checksum.complete();
     	}catch (Exception e){
+    		if (staged)
+    			file.deleteWithForceOption();
     		response.sendError(HttpServletResponse.SC_FORBIDDEN, "Resource not accessible.");
     		return;
     	}
+    	if (tooLarge) {
+    		Log.log(Log.WARNING, "PUT of "+target.getAbsolutePath()+" exceeded size limit of "+sizeLimit+" bytes");
+    		if (staged)
+    			file.deleteWithForceOption();
+    		else
+    			file.delete();
+    		response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    		return;
+    	}
+    	String mismatch = checksum.verify(request);
+    	if (mismatch != null) {
+    		Log.log(Log.WARNING, "PUT of "+target.getAbsolutePath()+" failed checksum verification: "+mismatch);
+    		if (staged)
+    			file.deleteWithForceOption();
+    		else
+    			file.delete();
+    		response.sendError(HttpServletResponse.SC_BAD_REQUEST, mismatch);
+    		return;
+    	}
+    	if (staged) {
+    		if (!FSUtilities.overwrite(target, file, davisSession)) {
+    			Log.log(Log.WARNING, "PUT of "+target.getAbsolutePath()+" couldn't replace the existing content");
+    			response.sendError(HttpServletResponse.SC_CONFLICT, "Resource could not be replaced.");
+    			return;
+    		}
+    		file = target;
+    	}
+    	if (Davis.getConfig().getRegisterUploadChecksums()) {
+    		try {
+    			checksum.register(file, davisSession);
+    		} catch (IOException e) {
+    			Log.log(Log.WARNING, "Failed to register checksum for "+file.getAbsolutePath()+": "+e);
+    		}
+    	}
+    	checksum.setHeaders(response);
+    	response.setHeader("X-Bytes-Written", String.valueOf(total));
         response.setStatus(HttpServletResponse.SC_CREATED);
         response.setHeader("Location", getRequestURL(request));
         response.setHeader("Allow", "OPTIONS, HEAD, GET, DELETE, PROPFIND, " +
@@ -0,0 +1,242 @@
+package webdavis;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks when things expire, such as locks and per-session caches.
+ *
+ * This is a hashed timing wheel: a ring of buckets, each holding the tasks
+ * due in one tick, turned by a single daemon thread. Scheduling and
+ * cancelling are constant time and don't block: new and cancelled tasks are
+ * queued, and the wheel thread files or unlinks them at its next tick.
+ * Cancelled tasks don't stay on the wheel until they're due, as they did in
+ * a <code>java.util.Timer</code>. A task that throws is logged and counted
+ * rather than killing the thread.
+ *
+ * Tasks run on the wheel thread, so they must be short. They run up to one
+ * tick late.
+ */
+public class ExpiryService {
+
+	private static final long TICK = 100;			// ms
+	private static final int WHEEL_SIZE = 512;		// Buckets, a power of 2, so one turn is about 51s
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private static final ExpiryService self = new ExpiryService();
+
+	private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime = System.currentTimeMillis();
+	private long tick = 0;
+
+	private final AtomicLong scheduledCount = new AtomicLong();
+	private final AtomicLong cancelledCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private volatile long maxLateness = 0;
+
+	private ExpiryService() {
+		for (int i = 0; i < WHEEL_SIZE; i++)
+			wheel[i] = new Bucket();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				turn();
+			}
+		}, "Davis expiry");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static ExpiryService getInstance() {
+		return self;
+	}
+
+	/**
+	 * Schedules a task to run after the given delay.
+	 *
+	 * @param task The task, which should return quickly.
+	 * @param delay The delay in ms.
+	 * @return A handle which can cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		Timeout timeout = new Timeout(task, System.currentTimeMillis()+Math.max(delay, 0));
+		scheduledCount.incrementAndGet();
+		pendingCount.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	public long getScheduledCount() {
+		return scheduledCount.get();
+	}
+
+	public long getCancelledCount() {
+		return cancelledCount.get();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * Returns the number of tasks which threw an exception.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Returns the number of tasks waiting to run.
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * Returns the most any task has run after it was due, in ms.
+	 */
+	public long getMaxLateness() {
+		return maxLateness;
+	}
+
+	public String toString() {
+		return "pending: "+getPendingCount()+"   scheduled: "+getScheduledCount()+"   cancelled: "+getCancelledCount()
+				+"   expired: "+getExpiredCount()+"   failed: "+getFailedCount()+"   max lateness: "+getMaxLateness()+" ms";
+	}
+
+	private void turn() {
+		while (true) {
+			long next = startTime+(tick+1)*TICK;
+			long now = System.currentTimeMillis();
+			try {
+				while (now < next) {
+					Thread.sleep(next-now);
+					now = System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				// Daemon thread, carry on
+			}
+			Timeout timeout;
+			while ((timeout = cancelled.poll()) != null)
+				if (timeout.bucket != null)
+					timeout.bucket.remove(timeout);
+			while ((timeout = added.poll()) != null) {
+				if (timeout.state.get() != PENDING)
+					continue;
+				long due = (timeout.deadline-startTime)/TICK;
+				timeout.rounds = Math.max(due-tick, 0)/WHEEL_SIZE;
+				wheel[(int) (Math.max(due, tick) & (WHEEL_SIZE-1))].add(timeout);
+			}
+			expire(wheel[(int) (tick & (WHEEL_SIZE-1))], now);
+			tick++;
+		}
+	}
+
+	private void expire(Bucket bucket, long now) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.rounds > 0)
+				timeout.rounds--;
+			else {
+				bucket.remove(timeout);
+				if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+					pendingCount.decrementAndGet();
+					expiredCount.incrementAndGet();
+					if (now-timeout.deadline > maxLateness)
+						maxLateness = now-timeout.deadline;
+					try {
+						timeout.task.run();
+					} catch (Throwable t) {
+						failedCount.incrementAndGet();
+						Log.log(Log.WARNING, "Expiry task failed: "+DavisUtilities.getStackTrace(t));
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private long rounds;
+		// Only used by the wheel thread
+		private Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running, if it hasn't already.
+		 *
+		 * @return Whether the task was stopped.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			pendingCount.decrementAndGet();
+			cancelledCount.incrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	/**
+	 * A doubly linked list of the tasks due in one tick, or a multiple of
+	 * turns later.
+	 */
+	private static class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+
+		public void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.previous = tail;
+			timeout.next = null;
+			if (tail == null)
+				head = timeout;
+			else
+				tail.next = timeout;
+			tail = timeout;
+		}
+
+		public void remove(Timeout timeout) {
+			if (timeout.bucket != this)
+				return;
+			if (timeout.previous == null)
+				head = timeout.next;
+			else
+				timeout.previous.next = timeout.next;
+			if (timeout.next == null)
+				tail = timeout.previous;
+			else
+				timeout.next.previous = timeout.previous;
+			timeout.bucket = null;
+			timeout.previous = null;
+			timeout.next = null;
+		}
+	}
+}
@@ -17,6 +17,7 @@ import java.util.Vector;
 import org.irods.jargon.core.connection.IRODSAccount;
 import org.irods.jargon.core.connection.auth.AuthResponse;
 import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.TransferOptions.ForceOption;
 import org.irods.jargon.core.pub.DataObjectAO;
 import org.irods.jargon.core.pub.IRODSFileSystem;
 import org.irods.jargon.core.pub.ResourceAO;
@@ -25,6 +26,7 @@ import org.irods.jargon.core.pub.domain.Resource;
 import org.irods.jargon.core.pub.domain.User;
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.irods.jargon.core.query.MetaDataAndDomainData;
+import org.irods.jargon.core.transfer.TransferControlBlock;
 import org.irods.jargon.ticket.TicketAdminService;
 
 /**
@@ -198,7 +200,9 @@ public class FSUtilities {
 
 
 	/**
-	 * Test an iRODS session connection
+	 * Test an iRODS session connection, with a round trip to the server. Only
+	 * used after something has failed; liveness is otherwise tracked by the
+	 * ConnectionMonitor.
 	 * 
 	 * @param davisSession
 	 * @return String Null if connection is ok, an exception message if not.
@@ -208,7 +212,8 @@ public class FSUtilities {
 		
 				String message = null;
 				try {
-					davisSession.currentConnection().getIRODSServerProperties();
+					if (!ConnectionMonitor.getInstance().probe(davisSession.currentConnection()))
+						message = "iRODS server did not answer";
 				} catch (ProtocolException e) {
 					message = e.getMessage();
 					if (message == null)
@@ -328,7 +333,7 @@ public class FSUtilities {
 		} catch (JargonException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-			throw new IOException(e.getMessage());
+			throw new IOException(e.getMessage(), e);	// The cause shows whether the server was unreachable
 		}
 
 	}
@@ -352,4 +357,38 @@ public class FSUtilities {
 			throw new IOException(e.getMessage());
 		}
 	}
+
+	/**
+	 * Returns a name in the same collection which no client will use, for
+	 * content which isn't ready to replace a resource yet.
+	 */
+	public static String getTemporaryName(IRODSFile file, String purpose) {
+		return "."+file.getName()+".davis-"+purpose+"-"+Long.toHexString(System.nanoTime());
+	}
+
+	/**
+	 * Overwrites the content of a resource with content written to a
+	 * temporary resource in the same collection, then removes the temporary
+	 * resource. The content is copied by the server into the existing data
+	 * object, so its permissions, metadata and creation are kept. If the copy
+	 * fails the temporary resource is left in place, as the only whole copy
+	 * of the new content.
+	 *
+	 * @return Whether the resource was overwritten.
+	 */
+	public static boolean overwrite(IRODSFile target, IRODSFile staging, DavisSession davisSession) {
+		try {
+			TransferControlBlock tcb = davisSession.getAccessObjectFactory().buildDefaultTransferControlBlockBasedOnJargonProperties();
+			tcb.getTransferOptions().setForceOption(ForceOption.USE_FORCE);
+			davisSession.getDataTransferOperations().copy(staging, target, null, tcb);
+		} catch (JargonException e) {
+			Log.log(Log.ERROR, "Unable to overwrite "+target.getAbsolutePath()+", its new content is in "+staging.getAbsolutePath()+": "+e);
+			return false;
+		} catch (IOException e) {
+			Log.log(Log.ERROR, "Unable to overwrite "+target.getAbsolutePath()+", its new content is in "+staging.getAbsolutePath()+": "+e);
+			return false;
+		}
+		staging.deleteWithForceOption();	// Never seen by clients, so not worth keeping in the trash
+		return true;
+	}
 }
@@ -0,0 +1,230 @@
+package webdavis;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileLock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A lock store kept in a file, for a cluster of servers sharing a file
+ * system, or for testing <code>ClusterLockManager</code> on one machine.
+ *
+ * The file starts with the version on a line of its own, followed by one
+ * line per lock. Updates are serialized with an OS file lock on a separate
+ * ".lock" file, and replace the store file by renaming a new one over it,
+ * so readers never see a partly written file and don't need the lock.
+ *
+ * Version checks only read the file when its modification time or size has
+ * changed, so an unchanged store costs a stat rather than an open and read.
+ * A file modified in the last few seconds is always read, as a change made
+ * within the file system's timestamp resolution may leave both unchanged.
+ *
+ * Properties:
+ *   storeFile - the store file, which must be given. Every server of the
+ *   cluster must use the same file.
+ */
+public class FileLockStore implements LockStore {
+
+    private File file;
+
+    private File lockFile;
+
+    /**
+     * How recently the file must have been modified for its version to be
+     * read even though its modification time and size are unchanged.
+     */
+    private static final long SETTLE_TIME = 3000;
+
+    private volatile Stat stat;
+
+    public void init(Properties properties) throws IOException {
+        String storeFile = properties.getProperty("storeFile");
+        if (storeFile != null) setFile(new File(storeFile.trim()));
+        if (file == null) {
+            throw new IOException("No lock store file given, set " +
+                    LockManagerFactory.class.getName() + ".storeFile");
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+    }
+
+    public long getVersion() throws IOException {
+        long modified = file.lastModified();
+        long length = file.length();
+        Stat last = stat;
+        if (last != null && last.modified == modified &&
+                last.length == length &&
+                System.currentTimeMillis() - modified > SETTLE_TIME) {
+            return last.version;
+        }
+        long version = readVersion();
+        stat = new Stat(modified, length, version);
+        return version;
+    }
+
+    private long readVersion() throws IOException {
+        InputStream input;
+        try {
+            input = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        try {
+            long version = 0;
+            int c;
+            while ((c = input.read()) >= '0' && c <= '9') {
+                version = version * 10 + (c - '0');
+            }
+            return version;
+        } finally {
+            input.close();
+        }
+    }
+
+    public long read(Map<String, Record> records) throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        try {
+            String line = reader.readLine();
+            if (line == null) return 0;
+            long version = Long.parseLong(line.trim());
+            while ((line = reader.readLine()) != null) {
+                Record record = parse(line);
+                if (record == null) {
+                    Log.log(Log.WARNING, "Ignoring invalid lock record in " +
+                            "{0}: {1}", new Object[] { file, line });
+                    continue;
+                }
+                records.put(record.getToken(), record);
+            }
+            return version;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid lock store " + file);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public synchronized long update(Update update)
+            throws IOException, LockException {
+        // File locks are held by the process, so threads are serialized by
+        // this method and processes by the file lock
+        RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+        try {
+            FileLock fileLock = lock.getChannel().lock();
+            try {
+                Map<String, Record> records =
+                        new LinkedHashMap<String, Record>();
+                long version = read(records);
+                if (!update.apply(version, records)) return version;
+                write(version + 1, records);
+                return version + 1;
+            } finally {
+                fileLock.release();
+            }
+        } finally {
+            lock.close();
+        }
+    }
+
+    private void write(long version, Map<String, Record> records)
+            throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream,
+                "UTF-8"));
+        try {
+            writer.write(version + "\n");
+            Iterator<Record> iterator = records.values().iterator();
+            while (iterator.hasNext()) writer.write(format(iterator.next()));
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            writer.close();
+        }
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+
+    private static String format(Record record) throws IOException {
+        String[] fields = new String[] { record.getToken(), record.getPath(),
+                String.valueOf(record.isExclusive()),
+                String.valueOf(record.getDepth()), record.getSessionID(),
+                record.getAccount(), String.valueOf(record.getExpires()),
+                record.getOwner() };
+        StringBuffer line = new StringBuffer();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) line.append('\t');
+            if (fields[i] != null) {
+                line.append(URLEncoder.encode(fields[i], "UTF-8"));
+            }
+        }
+        return line.append('\n').toString();
+    }
+
+    private static Record parse(String line) {
+        try {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 8) return null;
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = fields[i].length() == 0 ? null :
+                        URLDecoder.decode(fields[i], "UTF-8");
+            }
+            if (fields[0] == null || fields[1] == null) return null;
+            return new Record(fields[0], fields[1],
+                    Boolean.valueOf(fields[2]).booleanValue(),
+                    Integer.parseInt(fields[3]), fields[7], fields[4],
+                    fields[5], Long.parseLong(fields[6]));
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static class Stat {
+
+        final long modified;
+
+        final long length;
+
+        final long version;
+
+        Stat(long modified, long length, long version) {
+            this.modified = modified;
+            this.length = length;
+            this.version = version;
+        }
+
+    }
+
+}
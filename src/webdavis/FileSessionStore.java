@@ -0,0 +1,201 @@
+package webdavis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A session store kept in a directory, for a cluster of servers sharing a
+ * file system, or for testing <code>SessionStateManager</code> on one
+ * machine.
+ *
+ * Each record is a properties file named by its key, holding the
+ * record's attributes and its expiry time. Records are written to a new
+ * file which is renamed over the old one, so readers never see a partly
+ * written record. The directory and the files are accessible only by the
+ * server's user, and a directory owned by another user is refused.
+ * Expired records are deleted when they're read, and from time to time
+ * when a record is stored.
+ *
+ * Properties:
+ *   directory - the store directory, which must be given. It's created if
+ *   it doesn't exist.
+ */
+public class FileSessionStore implements SessionStore {
+
+    private static final String EXPIRES = "expires";
+
+    private static final String ATTRIBUTE = "attribute.";
+
+    private static final long PURGE_INTERVAL = 60000;
+
+    private File directory;
+
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    public void init(Properties properties) throws IOException {
+        String directory = properties.getProperty("directory");
+        if (directory == null || directory.trim().length() == 0) {
+            throw new IOException("No session store directory given");
+        }
+        setDirectory(new File(directory.trim()));
+        if (!this.directory.isDirectory()) {
+            if (!this.directory.mkdirs()) {
+                throw new IOException("Unable to create session store " +
+                        this.directory);
+            }
+            this.directory.setReadable(false, false);
+            this.directory.setReadable(true, true);
+            this.directory.setWritable(false, false);
+            this.directory.setWritable(true, true);
+            this.directory.setExecutable(false, false);
+            this.directory.setExecutable(true, true);
+        }
+        // Another user could read the records or plant its own
+        String owner = Files.getOwner(this.directory.toPath()).getName();
+        if (!owner.equals(System.getProperty("user.name"))) {
+            throw new IOException("Session store " + this.directory +
+                    " is owned by " + owner + ", not the server's user");
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public Record get(String key) throws IOException {
+        File file = getFile(key);
+        Properties properties = new Properties();
+        InputStream input;
+        try {
+            input = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            properties.load(input);
+        } finally {
+            input.close();
+        }
+        Record record = parse(properties);
+        if (record == null) {
+            Log.log(Log.WARNING, "Ignoring invalid session record {0}", file);
+            return null;
+        }
+        if (record.isExpired(System.currentTimeMillis())) {
+            file.delete();
+            return null;
+        }
+        return record;
+    }
+
+    public void put(String key, Record record) throws IOException {
+        File file = getFile(key);
+        File temporary = new File(directory, key + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            // Only the server's user may read the record before it's written
+            temporary.setReadable(false, false);
+            temporary.setReadable(true, true);
+            temporary.setWritable(false, false);
+            temporary.setWritable(true, true);
+            format(record).store(stream, null);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastPurge >= PURGE_INTERVAL) {
+            lastPurge = now;
+            purge(now);
+        }
+    }
+
+    public void remove(String key) throws IOException {
+        getFile(key).delete();
+    }
+
+    private File getFile(String key) throws IOException {
+        // Keys name files, so they mustn't name anything else
+        for (int i = 0; i < key.length(); i++) {
+            if (Character.digit(key.charAt(i), 16) < 0) {
+                throw new IOException("Invalid session key " + key);
+            }
+        }
+        return new File(directory, key);
+    }
+
+    private void purge(long now) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].getName().endsWith(".tmp")) continue;
+            try {
+                Properties properties = new Properties();
+                InputStream input = new FileInputStream(files[i]);
+                try {
+                    properties.load(input);
+                } finally {
+                    input.close();
+                }
+                Record record = parse(properties);
+                if (record == null || record.isExpired(now)) files[i].delete();
+            } catch (IOException e) {
+                // Removed by another server meanwhile
+            }
+        }
+    }
+
+    private static Properties format(Record record) {
+        Properties properties = new Properties();
+        properties.setProperty(EXPIRES, String.valueOf(record.getExpires()));
+        Iterator<Map.Entry<String, String>> iterator =
+                record.getAttributes().entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            properties.setProperty(ATTRIBUTE + entry.getKey(),
+                    entry.getValue());
+        }
+        return properties;
+    }
+
+    private static Record parse(Properties properties) {
+        try {
+            long expires = Long.parseLong(properties.getProperty(EXPIRES));
+            Map<String, String> attributes = new HashMap<String, String>();
+            Iterator<String> iterator =
+                    properties.stringPropertyNames().iterator();
+            while (iterator.hasNext()) {
+                String name = iterator.next();
+                if (name.startsWith(ATTRIBUTE)) {
+                    attributes.put(name.substring(ATTRIBUTE.length()),
+                            properties.getProperty(name));
+                }
+            }
+            return new Record(attributes, expires);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+package webdavis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.irods.jargon.core.exception.FileNotFoundException;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.pub.CollectionAndDataObjectListAndSearchAO;
+import org.irods.jargon.core.pub.domain.ObjStat;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.core.pub.domain.UserGroup;
+import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.core.pub.io.IRODSFileFactory;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
+
+/**
+ * A snapshot of the catalog attributes of a file or collection, fetched with
+ * a single object stat query. Handlers that need to check the same
+ * attributes several times while servicing a request can use this instead
+ * of calling the <code>IRODSFile</code> getters, each of which costs a
+ * round trip to the server.
+ *
+ * Snapshots of the members of a collection can be filled from a listing with
+ * <code>listChildren</code>, which costs one query per page of results
+ * rather than several queries per member.
+ */
+public class FileStat {
+
+	private IRODSFile file;
+	private boolean exists;
+	private boolean directory;
+	private long lastModified;
+	private long length;
+	private Boolean writable;	// Null if not known from the listing
+	private Map<String, String> deadProperties;	// Null if not fetched
+
+	public FileStat(IRODSFile file, boolean exists, boolean directory, long lastModified, long length) {
+		this(file, exists, directory, lastModified, length, null);
+	}
+
+	public FileStat(IRODSFile file, boolean exists, boolean directory, long lastModified, long length, Boolean writable) {
+		this.file = file;
+		this.exists = exists;
+		this.directory = directory;
+		this.lastModified = lastModified;
+		this.length = length;
+		this.writable = writable;
+	}
+
+	/**
+	 * Fetches the attributes of the given file.
+	 *
+	 * @param file The file or collection.
+	 * @param davisSession The session used to query the catalog.
+	 * @return The snapshot. If the file doesn't exist, <code>exists()</code> returns false.
+	 * @throws IOException If the query fails.
+	 */
+	public static FileStat stat(IRODSFile file, DavisSession davisSession) throws IOException {
+		try {
+			ObjStat objStat = davisSession.getCollectionAndDataObjectListAndSearchAO().retrieveObjectStatForPath(file.getAbsolutePath());
+			return new FileStat(file, true, objStat.isSomeTypeOfCollection(),
+					objStat.getModifiedAt() == null ? 0 : objStat.getModifiedAt().getTime(), objStat.getObjSize());
+		} catch (FileNotFoundException e) {
+			return new FileStat(file, false, false, 0, 0);
+		} catch (JargonException e) {
+			Log.log(Log.WARNING, "Failed to stat "+file.getAbsolutePath()+": "+e);
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Lists the members of a collection with their attributes and the
+	 * current user's access to them, a page of results at a time.
+	 *
+	 * @param directory The collection.
+	 * @param davisSession The session used to query the catalog.
+	 * @param principals The user and group names whose permissions apply to
+	 * the current user, from <code>getPrincipals</code>. If null, write access
+	 * is left to be checked for each member when it's needed.
+	 * @return The snapshots of the collection's members, collections first.
+	 * @throws IOException If the query fails.
+	 */
+	public static FileStat[] listChildren(FileStat directory, DavisSession davisSession, Set<String> principals) throws IOException {
+		List<FileStat> children = new ArrayList<FileStat>();
+		String path = directory.getFile().getAbsolutePath();
+		try {
+			CollectionAndDataObjectListAndSearchAO listAO = davisSession.getCollectionAndDataObjectListAndSearchAO();
+			IRODSFileFactory fileFactory = davisSession.getFileFactory();
+			for (int pass = 0; pass < 2; pass++) {
+				int offset = 0;
+				List<CollectionAndDataObjectListingEntry> entries;
+				do {
+					if (pass == 0)
+						entries = principals == null ? listAO.listCollectionsUnderPath(path, offset) : listAO.listCollectionsUnderPathWithPermissions(path, offset);
+					else
+						entries = principals == null ? listAO.listDataObjectsUnderPath(path, offset) : listAO.listDataObjectsUnderPathWithPermissions(path, offset);
+					for (int i = 0; i < entries.size(); i++) {
+						CollectionAndDataObjectListingEntry entry = entries.get(i);
+						String name = entry.getPathOrName();
+						name = name.substring(name.lastIndexOf(IRODSFile.PATH_SEPARATOR)+1);
+						children.add(new FileStat(fileFactory.instanceIRODSFile(path, name), true, entry.isCollection(),
+								entry.getModifiedAt() == null ? 0 : entry.getModifiedAt().getTime(), entry.getDataSize(),
+								principals == null ? null : isWritable(entry.getUserFilePermission(), principals)));
+					}
+					if (entries.isEmpty() || entries.get(entries.size()-1).isLastResult())
+						break;
+					offset = entries.get(entries.size()-1).getCount();
+				} while (true);
+			}
+		} catch (FileNotFoundException e) {
+			// The collection has gone, so it has no members
+		} catch (JargonException e) {
+			Log.log(Log.WARNING, "Failed to list "+directory.getFile().getAbsolutePath()+": "+e);
+			throw new IOException(e.getMessage());
+		}
+		return children.toArray(new FileStat[children.size()]);
+	}
+
+	/**
+	 * Returns the names of the current user and the groups they belong to,
+	 * which is what <code>listChildren</code> needs to work out write access
+	 * from the permissions returned with a listing.
+	 *
+	 * @param davisSession The session of the current user.
+	 * @return The set of names, or null if the groups couldn't be found.
+	 */
+	public static Set<String> getPrincipals(DavisSession davisSession) {
+		Set<String> principals = new HashSet<String>();
+		String userName = davisSession.getIRODSAccount().getUserName();
+		principals.add(userName);
+		try {
+			List<UserGroup> groups = davisSession.getUserGroupAO().findUserGroupsForUser(userName);
+			for (int i = 0; i < groups.size(); i++)
+				principals.add(groups.get(i).getUserGroupName());
+		} catch (Exception e) {
+			Log.log(Log.WARNING, "Failed to find groups for "+userName+": "+e);
+			return null;
+		}
+		return principals;
+	}
+
+	/**
+	 * Works out whether any of the principals can write to an object from
+	 * its access list. Returns null if none of them appear in the list (an
+	 * administrator may still have access, for instance).
+	 */
+	private static Boolean isWritable(List<UserFilePermission> permissions, Set<String> principals) {
+		if (permissions == null)
+			return null;
+		Boolean writable = null;
+		for (int i = 0; i < permissions.size(); i++) {
+			UserFilePermission permission = permissions.get(i);
+			if (!principals.contains(permission.getUserName()))
+				continue;
+			if (permission.getFilePermissionEnum() != null && permission.getFilePermissionEnum().getPermissionNumericValue() >= FilePermissionEnum.WRITE.getPermissionNumericValue())
+				return Boolean.TRUE;
+			writable = Boolean.FALSE;
+		}
+		return writable;
+	}
+
+	public IRODSFile getFile() {
+		return file;
+	}
+
+	public boolean exists() {
+		return exists;
+	}
+
+	public boolean isDirectory() {
+		return exists && directory;
+	}
+
+	public boolean isFile() {
+		return exists && !directory;
+	}
+
+	public long lastModified() {
+		return lastModified;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Returns whether the current user can write to the file. If this wasn't
+	 * known from the listing it's checked with the server, once.
+	 */
+	public boolean canWrite() {
+		if (writable == null)
+			writable = Boolean.valueOf(file.canWrite());
+		return writable.booleanValue();
+	}
+
+	public String getName() {
+		return file.getName();
+	}
+
+	/**
+	 * Returns the serialized dead properties of the resource by key, as
+	 * filled in by <code>DeadProperties</code>, or null if they haven't been
+	 * fetched. The map is shared with the cache and mustn't be changed.
+	 */
+	public Map<String, String> getDeadProperties() {
+		return deadProperties;
+	}
+
+	public void setDeadProperties(Map<String, String> deadProperties) {
+		this.deadProperties = deadProperties;
+	}
+
+	public String toString() {
+		return file.getAbsolutePath()+" exists="+exists+" directory="+directory+" lastModified="+lastModified+" length="+length;
+	}
+}
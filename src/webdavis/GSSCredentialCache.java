@@ -0,0 +1,205 @@
+package webdavis;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+
+/**
+ * Keeps the GSI credentials retrieved from MyProxy for their lifetime, so
+ * logging in again with the same user and password, after a session reset
+ * say, doesn't go back to the MyProxy server.
+ *
+ * Credentials are found by a salted hash of the server, user and password.
+ * Only one retrieval for the same key runs at a time; other logins wait for
+ * it. A credential which has been used since it was retrieved is renewed in
+ * the background shortly before it expires, and one which hasn't is dropped.
+ * Renewing needs the password, so it's kept in memory with the credential,
+ * as the authorization is kept in the HTTP session.
+ */
+public class GSSCredentialCache {
+
+	private static final long MINIMUM_LIFETIME = 60;	// s, a credential about to expire isn't handed out
+
+	private final long renewal;	// ms before expiry
+	private final byte[] salt = new byte[16];
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<String, FutureTask<GSSCredential>> retrievals = new ConcurrentHashMap<String, FutureTask<GSSCredential>>();
+	private final ExecutorService renewer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Davis credential renewal");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong retrievalCount = new AtomicLong();
+	private final AtomicLong renewalCount = new AtomicLong();
+
+	/**
+	 * @param renewal How long before a credential expires it's renewed, in ms.
+	 * 0 disables the cache.
+	 */
+	public GSSCredentialCache(long renewal) {
+		this.renewal = renewal;
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * Returns the credential for a user, retrieving it if it isn't cached.
+	 *
+	 * @param retrieval Retrieves the credential, returning null if it can't.
+	 * @return The credential, or null.
+	 */
+	public GSSCredential get(String host, String user, char[] password, Callable<GSSCredential> retrieval) {
+		if (renewal <= 0)
+			return call(retrieval);
+		String key = hash(host+"\n"+user+"\n"+new String(password));
+		Entry entry = entries.get(key);
+		if (entry != null && getRemainingLifetime(entry.credential) > MINIMUM_LIFETIME) {
+			entry.used = true;
+			hitCount.incrementAndGet();
+			return entry.credential;
+		}
+		return retrieve(key, retrieval);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getRetrievalCount() {
+		return retrievalCount.get();
+	}
+
+	public long getRenewalCount() {
+		return renewalCount.get();
+	}
+
+	public String toString() {
+		return "credentials: "+size()+"   hits: "+getHitCount()+"   retrievals: "+getRetrievalCount()+"   renewals: "+getRenewalCount();
+	}
+
+	/**
+	 * Retrieves a credential, or waits for a retrieval in progress for the
+	 * same key, and caches it.
+	 */
+	private GSSCredential retrieve(final String key, final Callable<GSSCredential> retrieval) {
+		FutureTask<GSSCredential> task = new FutureTask<GSSCredential>(new Callable<GSSCredential>() {
+			public GSSCredential call() {
+				retrievalCount.incrementAndGet();
+				GSSCredential credential = GSSCredentialCache.call(retrieval);
+				if (credential != null)
+					cache(key, credential, retrieval);
+				return credential;
+			}
+		});
+		FutureTask<GSSCredential> running = retrievals.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				retrievals.remove(key, task);
+			}
+			running = task;
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Log.log(Log.WARNING, "Credential retrieval failed: "+e.getCause());
+			return null;
+		}
+	}
+
+	private void cache(final String key, GSSCredential credential, final Callable<GSSCredential> retrieval) {
+		final Entry entry = new Entry(credential);
+		entries.put(key, entry);
+		long lifetime = getRemainingLifetime(credential)*1000;
+		// Renew on another thread, expiry tasks must be short
+		ExpiryService.getInstance().schedule(new Runnable() {
+			public void run() {
+				renewer.execute(new Runnable() {
+					public void run() {
+						renew(key, entry, retrieval);
+					}
+				});
+			}
+		}, Math.max(lifetime-renewal, 1000));
+		ExpiryService.getInstance().schedule(new Runnable() {
+			public void run() {
+				entries.remove(key, entry);
+			}
+		}, Math.max(lifetime, 1000));
+	}
+
+	private void renew(String key, Entry entry, Callable<GSSCredential> retrieval) {
+		if (entries.get(key) != entry)
+			return;
+		if (!entry.used) {
+			entries.remove(key, entry);	// Not used since it was retrieved, forget the password
+			return;
+		}
+		Log.log(Log.DEBUG, "Renewing credential "+entry.credential);
+		if (retrieve(key, retrieval) != null)
+			renewalCount.incrementAndGet();
+	}
+
+	private static GSSCredential call(Callable<GSSCredential> retrieval) {
+		try {
+			return retrieval.call();
+		} catch (Exception e) {
+			Log.log(Log.ERROR, "Caught exception retrieving credential: "+e);
+			return null;
+		}
+	}
+
+	private static long getRemainingLifetime(GSSCredential credential) {
+		try {
+			return credential.getRemainingLifetime();
+		} catch (GSSException e) {
+			return 0;
+		}
+	}
+
+	private String hash(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			return new String(Base64.encodeBase64(digest.digest(text.getBytes("UTF-8"))));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static class Entry {
+
+		private final GSSCredential credential;
+		private volatile boolean used = false;	// Since it was retrieved
+
+		public Entry(GSSCredential credential) {
+			this.credential = credential;
+		}
+	}
+}
@@ -0,0 +1,439 @@
+package webdavis;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * A lock manager which keeps its locks across restarts.
+ *
+ * Locks are held in memory as by <code>DefaultLockManager</code>, and every
+ * lock, refresh and unlock is also appended to a journal file. Records are
+ * queued and written by a single thread, which writes everything queued
+ * since its last write and then syncs the file once, so lock and unlock
+ * don't wait for the disk. With the "sync" property set, LOCK, refresh and
+ * UNLOCK wait until their record is on disk, sharing the sync with any
+ * others waiting at the same time, and fail if it can't be written. After
+ * a failed write the journal is rewritten from the current locks, so a
+ * partly written record doesn't spoil it.
+ *
+ * When the journal holds many more records than there are locks, the
+ * current locks are written to a new file which replaces it. At startup the
+ * journal is replayed, locks which have expired are dropped, and the rest
+ * are restored with their remaining timeouts. Lock ownership is checked by
+ * session ID, which is the same after a restart for clients which
+ * authenticate the same way.
+ */
+public class JournaledLockManager extends DefaultLockManager implements Closeable {
+
+    private static final String LOCK = "L";
+
+    private static final String REFRESH = "R";
+
+    private static final String UNLOCK = "U";
+
+    private static final String[] CLOSE = new String[0];
+
+    private final File journal;
+
+    private final long compactionThreshold;
+
+    private final boolean sync;
+
+    private final BlockingQueue<String[]> queue =
+            new LinkedBlockingQueue<String[]>();
+
+    // Only used by the writer thread
+    private final Map<String, String[]> live =
+            new LinkedHashMap<String, String[]>();
+
+    private FileOutputStream output;
+
+    private Writer writer;
+
+    private long records = 0;
+
+    private long queued = 0;
+
+    private long committed = 0;
+
+    // Ranges of records whose write failed, start by end, for waiters
+    private final TreeMap<Long, Long> failures = new TreeMap<Long, Long>();
+
+    // Only used by the writer thread
+    private boolean damaged = false;
+
+    private final Thread thread;
+
+    public JournaledLockManager(long defaultTimeout, long maximumTimeout,
+            File journal, long compactionThreshold, boolean sync)
+                    throws IOException {
+        super(defaultTimeout, maximumTimeout);
+        this.journal = journal;
+        this.compactionThreshold = compactionThreshold;
+        this.sync = sync;
+        recover();
+        compact();
+        thread = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "Davis lock journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String lock(org.irods.jargon.core.pub.io.IRODSFile resource,
+            DavisSession davisSession, LockInfo lockInfo)
+                    throws LockException, IOException {
+        long start = getQueued();
+        String lockToken = super.lock(resource, davisSession, lockInfo);
+        if (sync) awaitCommit(start);
+        return lockToken;
+    }
+
+    public void refresh(org.irods.jargon.core.pub.io.IRODSFile resource,
+            DavisSession davisSession, String[] lockTokens, long timeout)
+                    throws LockException, IOException {
+        long start = getQueued();
+        super.refresh(resource, davisSession, lockTokens, timeout);
+        if (sync) awaitCommit(start);
+    }
+
+    public void unlock(org.irods.jargon.core.pub.io.IRODSFile resource,
+            DavisSession davisSession, String lockToken)
+                    throws LockException, IOException {
+        long start = getQueued();
+        super.unlock(resource, davisSession, lockToken);
+        if (sync) awaitCommit(start);
+    }
+
+    /**
+     * Writes out any queued records and stops the journal. Locks are still
+     * held in memory, but changes to them are no longer recorded.
+     */
+    public void close() throws IOException {
+        queue.add(CLOSE);
+        try {
+            thread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void locked(BasicLock lock) {
+        String sessionID = null;
+        String account = null;
+        if (lock.getDavisSession() != null) {
+            sessionID = lock.getDavisSession().getSessionID();
+            account = lock.getDavisSession().getAccount();
+        }
+        String owner = null;
+        try {
+            if (lock.getOwner() != null) owner = toString(lock.getOwner());
+        } catch (Exception ex) {
+            Log.log(Log.WARNING, "Unable to record owner of lock {0}: {1}",
+                    new Object[] { lock.getToken(), ex });
+        }
+        enqueue(new String[] { LOCK, lock.getToken(),
+                String.valueOf(lock.getExpires()),
+                String.valueOf(lock.isExclusive()),
+                String.valueOf(lock.getDepth()), sessionID, account,
+                lock.getPath(), owner });
+    }
+
+    protected void refreshed(BasicLock lock) {
+        enqueue(new String[] { REFRESH, lock.getToken(),
+                String.valueOf(lock.getExpires()) });
+    }
+
+    protected void unlocked(BasicLock lock) {
+        enqueue(new String[] { UNLOCK, lock.getToken() });
+    }
+
+    private synchronized void enqueue(String[] record) {
+        queue.add(record);
+        queued++;
+    }
+
+    private synchronized long getQueued() {
+        return queued;
+    }
+
+    /**
+     * Waits until the records queued since the given count are written,
+     * failing if any of them may not have been.
+     */
+    private synchronized void awaitCommit(long start) throws IOException {
+        long target = queued;
+        try {
+            while (committed < target && thread.isAlive()) wait(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing lock journal");
+        }
+        if (committed < target) {
+            throw new IOException("Lock journal " + journal + " is closed");
+        }
+        Map.Entry<Long, Long> failure = failures.higherEntry(Long.valueOf(start));
+        if (failure != null && failure.getValue().longValue() < target) {
+            throw new IOException("Unable to write lock journal " + journal);
+        }
+    }
+
+    private synchronized void setCommitted(long count, boolean failed) {
+        if (failed) {
+            failures.put(Long.valueOf(committed + count),
+                    Long.valueOf(committed));
+            // Waiters check as soon as they're woken, so old ones can go
+            while (failures.size() > 100) failures.remove(failures.firstKey());
+        }
+        committed += count;
+        notifyAll();
+    }
+
+    /**
+     * Replays the journal into the live records and restores the locks
+     * which haven't expired.
+     */
+    private void recover() throws IOException {
+        if (!journal.exists()) return;
+        long start = System.currentTimeMillis();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journal), "UTF-8"));
+        long count = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] record = parse(line);
+                if (record == null) {
+                    Log.log(Log.WARNING, "Ignoring invalid lock journal " +
+                            "record: {0}", line);
+                    continue;
+                }
+                apply(record);
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        long now = System.currentTimeMillis();
+        Iterator<String[]> iterator = live.values().iterator();
+        while (iterator.hasNext()) {
+            String[] record = iterator.next();
+            long expires = Long.parseLong(record[2]);
+            if (expires != -1 && expires <= now) {
+                iterator.remove();
+                continue;
+            }
+            LockInfo lockInfo = new LockInfo();
+            lockInfo.setExclusive(Boolean.valueOf(record[3]).booleanValue());
+            lockInfo.setDepth(Integer.parseInt(record[4]));
+            lockInfo.setTimeout(expires == -1 ?
+                    DavisUtilities.INFINITE_TIMEOUT : expires - now);
+            if (record[8] != null) lockInfo.setOwner(toOwner(record[8]));
+            DavisSession owner = new DavisSession();
+            owner.setSessionID(record[5]);
+            owner.setAccount(record[6]);
+            restore(record[7], owner, record[1], lockInfo);
+        }
+        Log.log(Log.INFORMATION, "Recovered {0} locks from {1} journal " +
+                "records in {2} ms", new Object[] {
+                        Integer.valueOf(live.size()), Long.valueOf(count),
+                                Long.valueOf(System.currentTimeMillis() - start) });
+    }
+
+    private void write() {
+        List<String[]> batch = new ArrayList<String[]>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch);
+            boolean close = false;
+            boolean failed = false;
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    String[] record = batch.get(i);
+                    if (record == CLOSE) {
+                        close = true;
+                        continue;
+                    }
+                    apply(record);
+                    if (!damaged) {
+                        writer.write(format(record));
+                        records++;
+                    }
+                }
+                if (damaged) {
+                    compact();  // The current locks include this batch
+                    damaged = false;
+                } else {
+                    writer.flush();
+                    output.getFD().sync();
+                    if (records > compactionThreshold &&
+                            records > 2 * live.size()) compact();
+                }
+            } catch (IOException e) {
+                Log.log(Log.ERROR, "Unable to write lock journal {0}: {1}",
+                        new Object[] { journal, e });
+                failed = true;
+                damaged = true;
+            }
+            setCommitted(close ? batch.size() - 1 : batch.size(), failed);
+            batch.clear();
+            if (close) {
+                try {
+                    if (writer != null) writer.close();
+                } catch (IOException e) { }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding only the current locks.
+     */
+    private void compact() throws IOException {
+        File temporary = new File(journal.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        Writer temporaryWriter = new BufferedWriter(
+                new OutputStreamWriter(stream, "UTF-8"));
+        try {
+            Iterator<String[]> iterator = live.values().iterator();
+            while (iterator.hasNext()) {
+                temporaryWriter.write(format(iterator.next()));
+            }
+            temporaryWriter.flush();
+            stream.getFD().sync();
+        } finally {
+            temporaryWriter.close();
+        }
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) { }
+            writer = null;
+        }
+        if (!temporary.renameTo(journal)) {
+            journal.delete();
+            if (!temporary.renameTo(journal)) {
+                throw new IOException("Unable to replace " + journal);
+            }
+        }
+        output = new FileOutputStream(journal, true);
+        writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+        records = live.size();
+        Log.log(Log.DEBUG, "Compacted lock journal to {0} locks",
+                Integer.valueOf(live.size()));
+    }
+
+    private void apply(String[] record) {
+        if (LOCK.equals(record[0])) {
+            live.put(record[1], record);
+        } else if (REFRESH.equals(record[0])) {
+            String[] lock = live.get(record[1]);
+            if (lock != null) lock[2] = record[2];
+        } else if (UNLOCK.equals(record[0])) {
+            live.remove(record[1]);
+        }
+    }
+
+    private static String format(String[] record) throws IOException {
+        StringBuffer line = new StringBuffer(record[0]);
+        for (int i = 1; i < record.length; i++) {
+            line.append('\t');
+            if (record[i] != null) {
+                line.append(URLEncoder.encode(record[i], "UTF-8"));
+            }
+        }
+        return line.append('\n').toString();
+    }
+
+    private static String[] parse(String line) {
+        try {
+            String[] fields = line.split("\t", -1);
+            int length = LOCK.equals(fields[0]) ? 9 :
+                    REFRESH.equals(fields[0]) ? 3 :
+                            UNLOCK.equals(fields[0]) ? 2 : -1;
+            if (fields.length != length) return null;
+            for (int i = 1; i < fields.length; i++) {
+                fields[i] = fields[i].length() == 0 ? null :
+                        URLDecoder.decode(fields[i], "UTF-8");
+            }
+            if (fields[1] == null) return null;
+            if (length > 2) Long.parseLong(fields[2]);
+            if (length == 9 && fields[7] == null) return null;
+            return fields;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    static String toString(DocumentFragment owner) throws Exception {
+        Transformer transformer =
+                TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(owner), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    static DocumentFragment toOwner(String value) {
+        try {
+            DocumentBuilderFactory builderFactory =
+                    DocumentBuilderFactory.newInstance();
+            builderFactory.setNamespaceAware(true);
+            builderFactory.setExpandEntityReferences(false);
+            DocumentBuilder builder = builderFactory.newDocumentBuilder();
+            builder.setEntityResolver(BlockedEntityResolver.INSTANCE);
+            Document document = builder.parse(new InputSource(
+                    new StringReader("<owner>" + value + "</owner>")));
+            Element wrapper = document.getDocumentElement();
+            DocumentFragment owner = document.createDocumentFragment();
+            while (wrapper.getFirstChild() != null) {
+                owner.appendChild(wrapper.getFirstChild());
+            }
+            return owner;
+        } catch (Exception ex) {
+            Log.log(Log.WARNING, "Ignoring invalid lock owner {0}: {1}",
+                    new Object[] { value, ex });
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package webdavis;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Properties;
+
+/**
+ * A lock manager factory which vends <code>JournaledLockManager</code>
+ * instances, so locks survive a restart of the servlet.
+ *
+ * Properties:
+ *   defaultTimeout, maximumTimeout - as for the default factory.
+ *   journal - the journal file, which must be given. It should be on a
+ *   local disk which outlives the servlet's temporary directory.
+ *   compactionThreshold - the number of records the journal may hold before
+ *   it's compacted, 10000 by default.
+ *   sync - whether LOCK, refresh and UNLOCK wait until their record is on
+ *   disk, false by default.
+ */
+public class JournaledLockManagerFactory extends LockManagerFactory {
+
+    private long defaultTimeout = DavisUtilities.INFINITE_TIMEOUT;
+
+    private long maximumTimeout = DavisUtilities.INFINITE_TIMEOUT;
+
+    private File journal;
+
+    private long compactionThreshold = 10000;
+
+    private boolean sync = false;
+
+    public void setProperties(Properties properties) {
+        String defaultTimeout = properties.getProperty("defaultTimeout");
+        if (defaultTimeout != null) {
+            this.defaultTimeout = Long.parseLong(defaultTimeout);
+        }
+        String maximumTimeout = properties.getProperty("maximumTimeout");
+        if (maximumTimeout != null) {
+            this.maximumTimeout = Long.parseLong(maximumTimeout);
+        }
+        String journal = properties.getProperty("journal");
+        if (journal != null) {
+            this.journal = new File(journal.trim());
+        }
+        String compactionThreshold =
+                properties.getProperty("compactionThreshold");
+        if (compactionThreshold != null) {
+            this.compactionThreshold = Long.parseLong(compactionThreshold);
+        }
+        String sync = properties.getProperty("sync");
+        if (sync != null) {
+            this.sync = Boolean.valueOf(sync.trim()).booleanValue();
+        }
+    }
+
+    public LockManager newLockManager() {
+        if (journal == null) {
+            throw new IllegalStateException("No lock journal given, set " +
+                    LockManagerFactory.class.getName() + ".journal");
+        }
+        try {
+            return new JournaledLockManager(defaultTimeout, maximumTimeout,
+                    journal, compactionThreshold, sync);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to open lock journal " +
+                    journal + ": " + ex.getMessage());
+        }
+    }
+
+}
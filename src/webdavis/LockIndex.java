@@ -0,0 +1,176 @@
+package webdavis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the locks held on resources, arranged as a tree of path
+ * segments, so the locks covering a resource are found by walking down its
+ * path rather than by checking every lock that's held.
+ *
+ * Each node of the tree holds the locks on its path and counts the locks and
+ * exclusive locks held anywhere below it, so whether a new depth infinity
+ * lock would conflict with a lock on a member is also answered in a walk
+ * down the path.
+ *
+ * Lookups don't lock anything: the children of a node are kept in a
+ * concurrent map, and the locks on a node in an array which is replaced
+ * rather than changed. Changes are serialized on the index itself, which
+ * callers also synchronize on to check for conflicts and add a lock
+ * atomically.
+ */
+public class LockIndex {
+
+	private static final Lock[] NONE = new Lock[0];
+
+	private final Node root = new Node(null, null);
+
+	private volatile int size = 0;
+
+	/**
+	 * Returns the locks which cover a resource: those held on the resource
+	 * itself and the depth infinity locks held on its ancestors.
+	 *
+	 * @param path The canonical path of the resource.
+	 * @return The covering locks, or an empty array if there are none.
+	 */
+	public Lock[] getCoveringLocks(String path) {
+		String[] segments = split(path);
+		List<Lock> covering = null;
+		Node node = root;
+		for (int i = 0; ; i++) {
+			Lock[] locks = node.locks;
+			boolean target = i == segments.length;
+			for (int j = 0; j < locks.length; j++) {
+				if (target || locks[j].getDepth() == DavisUtilities.INFINITE_DEPTH) {
+					if (covering == null)
+						covering = new ArrayList<Lock>();
+					covering.add(locks[j]);
+				}
+			}
+			if (target)
+				break;
+			node = node.children.get(segments[i]);
+			if (node == null)
+				break;
+		}
+		return covering == null ? NONE : covering.toArray(new Lock[covering.size()]);
+	}
+
+	/**
+	 * Returns whether any locks, or any exclusive locks, are held on members
+	 * of a collection at any depth. Locks on the collection itself aren't
+	 * counted.
+	 *
+	 * @param path The canonical path of the collection.
+	 * @param exclusiveOnly Whether to count only exclusive locks.
+	 */
+	public boolean hasLocksBelow(String path, boolean exclusiveOnly) {
+		Node node = find(split(path));
+		if (node == null)
+			return false;
+		return (exclusiveOnly ? node.exclusiveBelow : node.below) > 0;
+	}
+
+	/**
+	 * Adds a lock on the given path.
+	 */
+	public synchronized void add(String path, Lock lock) {
+		String[] segments = split(path);
+		Node node = root;
+		for (int i = 0; i < segments.length; i++) {
+			node.below++;
+			if (lock.isExclusive())
+				node.exclusiveBelow++;
+			Node child = node.children.get(segments[i]);
+			if (child == null) {
+				child = new Node(node, segments[i]);
+				node.children.put(segments[i], child);
+			}
+			node = child;
+		}
+		Lock[] locks = new Lock[node.locks.length+1];
+		System.arraycopy(node.locks, 0, locks, 0, node.locks.length);
+		locks[node.locks.length] = lock;
+		node.locks = locks;
+		size++;
+	}
+
+	/**
+	 * Removes a lock from the given path.
+	 *
+	 * @return Whether the lock was held on the path.
+	 */
+	public synchronized boolean remove(String path, Lock lock) {
+		Node node = find(split(path));
+		if (node == null)
+			return false;
+		int index = -1;
+		for (int i = 0; i < node.locks.length && index < 0; i++)
+			if (node.locks[i] == lock)
+				index = i;
+		if (index < 0)
+			return false;
+		Lock[] locks = node.locks.length == 1 ? NONE : new Lock[node.locks.length-1];
+		System.arraycopy(node.locks, 0, locks, 0, index);
+		System.arraycopy(node.locks, index+1, locks, index, node.locks.length-index-1);
+		node.locks = locks;
+		size--;
+		for (Node parent = node.parent; parent != null; parent = parent.parent) {
+			parent.below--;
+			if (lock.isExclusive())
+				parent.exclusiveBelow--;
+		}
+		// Prune nodes which no longer lead to any locks
+		while (node.parent != null && node.locks.length == 0 && node.below == 0) {
+			node.parent.children.remove(node.name);
+			node = node.parent;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of locks in the index.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private Node find(String[] segments) {
+		Node node = root;
+		for (int i = 0; i < segments.length && node != null; i++)
+			node = node.children.get(segments[i]);
+		return node;
+	}
+
+	private static String[] split(String path) {
+		List<String> segments = new ArrayList<String>();
+		int start = 0;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+			if (end > start)
+				segments.add(path.substring(start, end));
+			start = end+1;
+		}
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	private static class Node {
+
+		private final Node parent;
+		private final String name;
+		private final Map<String, Node> children = new ConcurrentHashMap<String, Node>();
+		private volatile Lock[] locks = NONE;
+		private volatile int below = 0;				// Locks held on members at any depth
+		private volatile int exclusiveBelow = 0;	// Of which exclusive
+
+		public Node(Node parent, String name) {
+			this.parent = parent;
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package webdavis;
+
+import java.io.IOException;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Shared storage for the locks held by a cluster of Davis servers, used by
+ * <code>ClusterLockManager</code>.
+ *
+ * A store holds lock records by token, and a version number which changes
+ * whenever the records do, so servers can cheaply check whether the locks
+ * they have cached are still current. Updates must be atomic across the
+ * whole cluster: no two servers may update the records at the same time.
+ *
+ * Implementations need a public no-argument constructor, and are
+ * configured through <code>init</code>.
+ */
+public interface LockStore {
+
+    /**
+     * Configures the store with the lock manager factory's properties.
+     */
+    public void init(Properties properties) throws IOException;
+
+    /**
+     * Returns the current version of the records. This is called on every
+     * lock check, so it should be fast.
+     */
+    public long getVersion() throws IOException;
+
+    /**
+     * Reads all the records.
+     *
+     * @param records The map to fill with records, by token.
+     * @return The version of the records read.
+     */
+    public long read(Map<String, Record> records) throws IOException;
+
+    /**
+     * Updates the records while holding the store's cluster-wide lock. The
+     * update is given the current records, and changes them in place; if it
+     * reports a change, the records are written back with a new version.
+     *
+     * @return The version of the records after the update.
+     */
+    public long update(Update update) throws IOException, LockException;
+
+    /**
+     * A change to the records in a store.
+     */
+    public interface Update {
+
+        /**
+         * @param version The version of the records.
+         * @param records The current records, by token, to be changed.
+         * @return Whether the records were changed.
+         */
+        public boolean apply(long version, Map<String, Record> records)
+                throws IOException, LockException;
+
+    }
+
+    /**
+     * A lock held in a store.
+     */
+    public static class Record {
+
+        private final String token;
+
+        private final String path;
+
+        private final boolean exclusive;
+
+        private final int depth;
+
+        private final String owner;
+
+        private final String sessionID;
+
+        private final String account;
+
+        private final long expires;
+
+        /**
+         * @param owner The lock's owner as XML, or null.
+         * @param expires When the lock expires, or -1 if it doesn't.
+         */
+        public Record(String token, String path, boolean exclusive, int depth,
+                String owner, String sessionID, String account, long expires) {
+            this.token = token;
+            this.path = path;
+            this.exclusive = exclusive;
+            this.depth = depth;
+            this.owner = owner;
+            this.sessionID = sessionID;
+            this.account = account;
+            this.expires = expires;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isExclusive() {
+            return exclusive;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getSessionID() {
+            return sessionID;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+
+        public boolean isExpired(long now) {
+            return expires != -1 && expires <= now;
+        }
+
+    }
+
+}
@@ -0,0 +1,161 @@
+package webdavis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Streams a WebDAV multistatus document to a client one response at a time.
+ *
+ * Each response is still built as a small DOM fragment by the
+ * <code>PropertiesBuilder</code>, but it's written out with StAX and removed
+ * from the document as soon as it's complete, so memory use doesn't grow with
+ * the number of resources and the client can start reading straight away.
+ */
+public class MultistatusWriter {
+
+	private static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+
+	private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+	static {
+		factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+	}
+
+	private XMLStreamWriter writer;
+
+	private OutputStream output;
+
+	private int count = 0;
+
+	public MultistatusWriter(OutputStream output) throws IOException {
+		this.output = output;
+		try {
+			writer = factory.createXMLStreamWriter(output, "UTF-8");
+			writer.setPrefix(Property.DAV_PREFIX, Property.DAV_NAMESPACE);
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement(Property.DAV_PREFIX, "multistatus", Property.DAV_NAMESPACE);
+			writer.writeNamespace(Property.DAV_PREFIX, Property.DAV_NAMESPACE);
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes out every response added to the document so far and removes
+	 * them from the document.
+	 *
+	 * @param document The document the <code>PropertiesBuilder</code> adds responses to.
+	 * @throws IOException If the responses can't be written.
+	 */
+	public void writeResponses(Document document) throws IOException {
+		Element multistatus = document.getDocumentElement();
+		Node node;
+		try {
+			while ((node = multistatus.getFirstChild()) != null) {
+				if (node instanceof Element) {
+					writeElement((Element)node);
+					count++;
+				}
+				multistatus.removeChild(node);
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a response giving a status for the resource as a whole, rather
+	 * than for each of its properties.
+	 *
+	 * @param href The URL of the resource.
+	 * @param status The status line, for example "HTTP/1.1 507 Insufficient Storage".
+	 * @param description A description for the client, or null.
+	 * @throws IOException If the response can't be written.
+	 */
+	public void writeStatus(String href, String status, String description) throws IOException {
+		try {
+			writer.writeStartElement(Property.DAV_PREFIX, "response", Property.DAV_NAMESPACE);
+			writer.writeStartElement(Property.DAV_PREFIX, "href", Property.DAV_NAMESPACE);
+			writer.writeCharacters(href);
+			writer.writeEndElement();
+			writer.writeStartElement(Property.DAV_PREFIX, "status", Property.DAV_NAMESPACE);
+			writer.writeCharacters(status);
+			writer.writeEndElement();
+			if (description != null) {
+				writer.writeStartElement(Property.DAV_PREFIX, "responsedescription", Property.DAV_NAMESPACE);
+				writer.writeCharacters(description);
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+			count++;
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of responses written so far.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Closes the multistatus element and flushes the output. The underlying
+	 * stream is left open.
+	 */
+	public void close() throws IOException {
+		try {
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.flush();
+			writer.close();
+			output.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private void writeElement(Element element) throws XMLStreamException {
+		String namespace = element.getNamespaceURI();
+		String localName = element.getLocalName() != null ? element.getLocalName() : element.getNodeName();
+		if (namespace == null)
+			writer.writeStartElement(localName);
+		else
+			writer.writeStartElement(element.getPrefix() == null ? "" : element.getPrefix(), localName, namespace);
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attribute = (Attr)attributes.item(i);
+			if (XMLNS_NAMESPACE.equals(attribute.getNamespaceURI()))
+				continue;	// Namespace declarations are generated by the writer as needed
+			if (attribute.getNamespaceURI() == null)
+				writer.writeAttribute(attribute.getLocalName() != null ? attribute.getLocalName() : attribute.getName(), attribute.getValue());
+			else
+				writer.writeAttribute(attribute.getPrefix() == null ? "" : attribute.getPrefix(), attribute.getNamespaceURI(), attribute.getLocalName(), attribute.getValue());
+		}
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			switch (child.getNodeType()) {
+			case Node.ELEMENT_NODE:
+				writeElement((Element)child);
+				break;
+			case Node.TEXT_NODE:
+				writer.writeCharacters(child.getNodeValue());
+				break;
+			case Node.CDATA_SECTION_NODE:
+				writer.writeCData(child.getNodeValue());
+				break;
+			}
+		}
+		writer.writeEndElement();
+	}
+}
@@ -65,6 +65,48 @@ public interface PropertiesBuilder {
     public void addProps(Document document, IRODSFile file, String href,
             Element[] props) throws IOException;
 
+    /**
+     * Adds a response containing the property names supported by the
+     * resource described by the given snapshot.
+     *
+     * @param document The document to which modifications are made.
+     * @param stat The snapshot of the resource.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @throws IOException If an IO error occurs while adding the
+     * property names.
+     */
+    public void addPropNames(Document document, FileStat stat, String href)
+            throws IOException;
+
+    /**
+     * Adds a response containing the names and values of all properties
+     * supported by the resource described by the given snapshot.
+     *
+     * @param document The document to which modifications are made.
+     * @param stat The snapshot of the resource.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @throws IOException If an IO error occurs while adding the
+     * properties.
+     */
+    public void addAllProps(Document document, FileStat stat, String href)
+            throws IOException;
+
+    /**
+     * Adds a response containing the names and values of the properties
+     * specified by the given <code>Element</code> array for the resource
+     * described by the given snapshot.
+     *
+     * @param document The document to which modifications are made.
+     * @param stat The snapshot of the resource.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @param props An array of <code>Element</code>s, each of which
+     * specifies the name of a property to be retrieved.
+     * @throws IOException If an IO error occurs while adding the
+     * properties.
+     */
+    public void addProps(Document document, FileStat stat, String href,
+            Element[] props) throws IOException;
+
     /**
      * Creates an XML document in which a result can be built.
      *
@@ -1,6 +1,7 @@
 package webdavis;
 
 import java.io.IOException;
+import java.util.Set;
 
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.w3c.dom.CharacterData;
@@ -14,6 +15,11 @@ import org.w3c.dom.NodeList;
  * This class directs a <code>PropertiesBuilder</code> in the creation
  * and retrieval of a PROPFIND result XML document.
  *
+ * The attributes of each resource are fetched once into a
+ * <code>FileStat</code> snapshot, and the members of each collection are
+ * fetched with a single listing, so the builder doesn't need to query the
+ * server for each property of each resource.
+ *
  * @author Shunde Zhang
  * @author Eric Glass
  */
@@ -21,19 +27,33 @@ public class PropertiesDirector {
 	
     private static final int INFINITY = 3;
 
+    private static final int PROPERTY_NAMES = 0;
+
+    private static final int ALL_PROPERTIES = 1;
+
+    private static final int PROPERTIES = 2;
+
     private final PropertiesBuilder builder;
 
+    private final DavisSession davisSession;
+
+    private boolean needsWriteAccess;
+
+    private boolean needsDeadProperties;
+
+    private Set<String> principals;
+
     /**
      * Creates a <code>PropertiesDirector</code> which uses the specified
      * builder to create the PROPFIND XML document.
      * 
      * @param builder The <code>PropertiesBuilder</code> used to
      * create the PROPFIND result XML document.
-     * @param filter An <code>SmbFileFilter</code> to apply when obtaining
-     * child resources.
+     * @param davisSession The session used to list child resources.
      */
-    public PropertiesDirector(PropertiesBuilder builder) {
+    public PropertiesDirector(PropertiesBuilder builder, DavisSession davisSession) {
         this.builder = builder;
+        this.davisSession = davisSession;
     }
 
     /**
@@ -55,9 +75,11 @@ public class PropertiesDirector {
      */
     public Document getPropertyNames(IRODSFile file, String href, int depth)
             throws IOException {
-        if (depth == DavisUtilities.INFINITE_DEPTH) depth = INFINITY;
+        depth = getDepth(depth);
         Document document = getPropertiesBuilder().createDocument();
-        addPropertyNames(document, file, href, depth);
+        needsWriteAccess = false;
+        needsDeadProperties = true;
+        addPropertyNames(document, getRoot(file), href, depth, null);
         return document;
     }
 
@@ -80,9 +102,11 @@ public class PropertiesDirector {
      */
     public Document getAllProperties(IRODSFile file, String href, int depth)
             throws IOException {
-    	if (depth == DavisUtilities.INFINITE_DEPTH) depth = INFINITY;
+    	depth = getDepth(depth);
         Document document = getPropertiesBuilder().createDocument();
-        addAllProperties(document, file, href, depth);
+        needsWriteAccess = true;
+        needsDeadProperties = true;
+        addAllProperties(document, getRoot(file), href, depth, null);
         return document;
     }
         
@@ -106,12 +130,90 @@ public class PropertiesDirector {
      */
     public Document getProperties(IRODSFile file, String href, Element[] props,
             int depth) throws IOException {
-        if (depth == DavisUtilities.INFINITE_DEPTH) depth = INFINITY;
+        depth = getDepth(depth);
         Document document= getPropertiesBuilder().createDocument();
-        addProperties(document, file, href, props, depth);
+        needsWriteAccess = needsWriteAccess(props);
+        needsDeadProperties = needsDeadProperties(props);
+        addProperties(document, getRoot(file), href, props, depth, null);
         return document;
     }
 
+    /**
+     * Writes the PROPFIND result for the specified resource containing the
+     * names of all supported properties to the given writer, one response
+     * at a time.
+     *
+     * @param stat The resource whose property names are to be retrieved.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @param depth The depth to which the request is applied.
+     * @param writer The writer the responses are streamed to.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writePropertyNames(FileStat stat, String href, int depth,
+            MultistatusWriter writer) throws IOException {
+        needsWriteAccess = false;
+        needsDeadProperties = true;
+        loadDeadProperties(stat);
+        if (depth == DavisUtilities.INFINITE_DEPTH && isWalkingInfiniteDepth()) {
+            new TreeWalk(PROPERTY_NAMES, null, writer).walk(stat, href);
+            return;
+        }
+        depth = getDepth(depth);
+        addPropertyNames(getPropertiesBuilder().createDocument(), stat, href,
+                depth, writer);
+    }
+
+    /**
+     * Writes the PROPFIND result for the specified resource containing the
+     * names and values of all supported properties to the given writer, one
+     * response at a time.
+     *
+     * @param stat The resource whose properties are to be retrieved.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @param depth The depth to which the request is applied.
+     * @param writer The writer the responses are streamed to.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writeAllProperties(FileStat stat, String href, int depth,
+            MultistatusWriter writer) throws IOException {
+        needsWriteAccess = true;
+        needsDeadProperties = true;
+        loadDeadProperties(stat);
+        if (depth == DavisUtilities.INFINITE_DEPTH && isWalkingInfiniteDepth()) {
+            new TreeWalk(ALL_PROPERTIES, null, writer).walk(stat, href);
+            return;
+        }
+        depth = getDepth(depth);
+        addAllProperties(getPropertiesBuilder().createDocument(), stat, href,
+                depth, writer);
+    }
+
+    /**
+     * Writes the PROPFIND result for the specified resource containing the
+     * values of the specified properties to the given writer, one response
+     * at a time.
+     *
+     * @param stat The resource whose properties are to be retrieved.
+     * @param href The HTTP URL by which the resource was accessed.
+     * @param props The names of the properties which are to be retrieved.
+     * @param depth The depth to which the request is applied.
+     * @param writer The writer the responses are streamed to.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writeProperties(FileStat stat, String href, Element[] props,
+            int depth, MultistatusWriter writer) throws IOException {
+        needsWriteAccess = needsWriteAccess(props);
+        needsDeadProperties = needsDeadProperties(props);
+        loadDeadProperties(stat);
+        if (depth == DavisUtilities.INFINITE_DEPTH && isWalkingInfiniteDepth()) {
+            new TreeWalk(PROPERTIES, props, writer).walk(stat, href);
+            return;
+        }
+        depth = getDepth(depth);
+        addProperties(getPropertiesBuilder().createDocument(), stat, href,
+                props, depth, writer);
+    }
+
     /**
      * Returns the builder used to construct the XML document.
      * 
@@ -123,11 +225,12 @@ public class PropertiesDirector {
     }
 
 
-    private void addPropertyNames(Document document, IRODSFile file, String href,
-            int depth) throws IOException {
-        getPropertiesBuilder().addPropNames(document, file, href);
-        if (depth > 0 && !file.isFile()) {
-        	IRODSFile[] children = getChildren(file); //null;
+    private void addPropertyNames(Document document, FileStat stat, String href,
+            int depth, MultistatusWriter writer) throws IOException {
+        getPropertiesBuilder().addPropNames(document, stat, href);
+        if (writer != null) writer.writeResponses(document);
+        if (depth > 0 && !stat.isFile()) {
+        	FileStat[] children = getChildren(stat); //null;
 //            SmbFileFilter filter = getFilter();
 //            try {
 //                children = (filter != null) ? file.listFiles(filter) :
@@ -145,16 +248,18 @@ public class PropertiesDirector {
 //            }
             for (int i = 0; i < count; i++) {
                 addPropertyNames(document, children[i],
-                        href + FSUtilities.escape(children[i].getName()), depth);
+                        href + FSUtilities.escape(children[i].getName()), depth,
+                        writer);
             }
         }
     }
 
-    private void addAllProperties(Document document, IRODSFile file, String href,
-            int depth) throws IOException {
-    	getPropertiesBuilder().addAllProps(document, file, href);
-    	if (depth > 0 && !file.isFile()) {
-    		IRODSFile[] children = getChildren(file);  // null;
+    private void addAllProperties(Document document, FileStat stat, String href,
+            int depth, MultistatusWriter writer) throws IOException {
+    	getPropertiesBuilder().addAllProps(document, stat, href);
+    	if (writer != null) writer.writeResponses(document);
+    	if (depth > 0 && !stat.isFile()) {
+    		FileStat[] children = getChildren(stat);  // null;
 //            SmbFileFilter filter = getFilter();
 //            try {
 //                children = (filter != null) ? file.listFiles(filter) :
@@ -172,16 +277,18 @@ public class PropertiesDirector {
 //            }
             for (int i = 0; i < count; i++) {
                 addAllProperties(document, children[i],
-                        href + FSUtilities.escape(children[i].getName()), depth);
+                        href + FSUtilities.escape(children[i].getName()), depth,
+                        writer);
             }
         }
     }
     
-    private void addProperties(Document document, IRODSFile file, String href,
-            Element[] props, int depth) throws IOException {
-        getPropertiesBuilder().addProps(document, file, href, props);
-        if (depth > 0 && !file.isFile()) {
-        	IRODSFile[] children = getChildren(file);  //null;
+    private void addProperties(Document document, FileStat stat, String href,
+            Element[] props, int depth, MultistatusWriter writer) throws IOException {
+        getPropertiesBuilder().addProps(document, stat, href, props);
+        if (writer != null) writer.writeResponses(document);
+        if (depth > 0 && !stat.isFile()) {
+        	FileStat[] children = getChildren(stat);  //null;
 //            SmbFileFilter filter = getFilter();
 //            try {
 //                children = (filter != null) ? file.listFiles(filter) :
@@ -199,12 +306,321 @@ public class PropertiesDirector {
 //            }
             for (int i = 0; i < count; i++) {
                 addProperties(document, children[i],
-                        href + FSUtilities.escape(children[i].getName()), props, depth);
+                        href + FSUtilities.escape(children[i].getName()), props, depth,
+                        writer);
+            }
+        }
+    }
+
+    private FileStat[] getChildren(FileStat stat) throws IOException {
+    	if (needsWriteAccess && principals == null) principals = FileStat.getPrincipals(davisSession);
+    	FileStat[] children = FileStat.listChildren(stat, davisSession, needsWriteAccess ? principals : null);
+    	if (needsDeadProperties) {
+    		try {
+    			DeadProperties.getInstance().load(stat, children, davisSession);
+    		} catch (IOException e) {
+    			// Already logged, list them without their dead properties
+    		}
+    	}
+    	return children;
+    }
+
+    private FileStat getRoot(IRODSFile file) throws IOException {
+        FileStat stat = FileStat.stat(file, davisSession);
+        loadDeadProperties(stat);
+        return stat;
+    }
+
+    private void loadDeadProperties(FileStat stat) {
+        if (!needsDeadProperties) return;
+        try {
+            DeadProperties.getInstance().load(stat, davisSession);
+        } catch (IOException e) {
+            // Already logged, return it without its dead properties
+        }
+    }
+
+    /**
+     * Returns whether depth infinity requests should walk the whole tree,
+     * rather than stop at a fixed depth.
+     */
+    public static boolean isWalkingInfiniteDepth() {
+        return "walk".equalsIgnoreCase(Davis.getConfig().getPropfindInfiniteDepth());
+    }
+
+    /**
+     * Returns whether depth infinity requests should be refused.
+     */
+    public static boolean isForbiddingInfiniteDepth() {
+        return "forbid".equalsIgnoreCase(Davis.getConfig().getPropfindInfiniteDepth());
+    }
+
+    /**
+     * Returns the depth a request is handled to, which for depth infinity
+     * is the configured fixed depth.
+     */
+    private static int getDepth(int depth) {
+        if (depth != DavisUtilities.INFINITE_DEPTH) return depth;
+        try {
+            return Integer.parseInt(Davis.getConfig().getPropfindInfiniteDepth());
+        } catch (NumberFormatException e) {
+            return INFINITY;
+        }
+    }
+
+    private void addResponse(Document document, FileStat stat, String href,
+            int type, Element[] props) throws IOException {
+        if (type == PROPERTY_NAMES) {
+            getPropertiesBuilder().addPropNames(document, stat, href);
+        } else if (type == ALL_PROPERTIES) {
+            getPropertiesBuilder().addAllProps(document, stat, href);
+        } else {
+            getPropertiesBuilder().addProps(document, stat, href, props);
+        }
+    }
+
+    /**
+     * Walks the whole tree below a resource for a depth infinity request.
+     * Collections are listed in parallel by a <code>SessionWorkerPool</code>
+     * and each response is written as soon as it's built, so memory use
+     * doesn't depend on the size of the tree. The walk stops when the
+     * configured entry or time limit is reached.
+     *
+     * A collection's own response is written by the task which lists it,
+     * so a collection which isn't walked hasn't been reported. A collection
+     * which can't be listed gets a 507 (Insufficient Storage) response
+     * instead. If the walk stops early, the first resource it didn't report
+     * gets a 507, and the rest are left out. No href appears twice.
+     */
+    private class TreeWalk {
+
+        private final int type;
+
+        private final Element[] props;
+
+        private final MultistatusWriter writer;
+
+        private final int maxEntries;
+
+        private final long deadline;
+
+        private SessionWorkerPool pool;
+
+        private int entries = 0;
+
+        private int pending = 0;
+
+        private volatile boolean stopped = false;
+
+        private String incomplete;
+
+        private String unlisted;
+
+        public TreeWalk(int type, Element[] props, MultistatusWriter writer) {
+            this.type = type;
+            this.props = props;
+            this.writer = writer;
+            DavisConfig config = Davis.getConfig();
+            maxEntries = config.getPropfindMaxEntries();
+            deadline = config.getPropfindTimeLimit() > 0 ?
+                    System.currentTimeMillis() + config.getPropfindTimeLimit() * 1000L : 0;
+        }
+
+        public void walk(FileStat stat, String href) throws IOException {
+            if (!stat.isDirectory()) {
+                Document document = getPropertiesBuilder().createDocument();
+                addResponse(document, stat, href, type, importProps(document));
+                write(document);
+            } else {
+                // Fetch these now, rather than in the workers
+                if (needsWriteAccess && principals == null) principals = FileStat.getPrincipals(davisSession);
+                pool = new SessionWorkerPool(davisSession, Davis.getConfig().getPropfindThreads());
+                try {
+                    submit(stat, href);
+                    synchronized (this) {
+                        while (pending > 0 && !stopped) {
+                            long wait = 0;
+                            if (deadline > 0) {
+                                wait = deadline - System.currentTimeMillis();
+                                if (wait <= 0) {
+                                    stop("Time limit reached");
+                                    break;
+                                }
+                            }
+                            wait(wait);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    stop("Interrupted");
+                    Thread.currentThread().interrupt();
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            String reason;
+            String first;
+            synchronized (this) {
+                reason = incomplete;
+                first = unlisted;
+            }
+            if (reason != null) {
+                Log.log(Log.INFORMATION, "Depth infinity PROPFIND of "+href+" is incomplete after "+entries+" entries: "+reason);
+                if (first != null) {
+                    synchronized (writer) {
+                        writer.writeStatus(first, "HTTP/1.1 507 Insufficient Storage", reason);
+                    }
+                }
             }
         }
+
+        /**
+         * @return false if the walk has stopped.
+         */
+        private boolean submit(final FileStat collection, final String href) {
+            synchronized (this) {
+                if (stopped) return false;
+                pending++;
+            }
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        list(collection, href);
+                    } finally {
+                        synchronized (TreeWalk.this) {
+                            pending--;
+                            TreeWalk.this.notifyAll();
+                        }
+                    }
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Lists a collection, writing its own response and those of its
+         * children, and submitting its child collections to be listed.
+         */
+        private void list(FileStat collection, String href) {
+            if (stopped) {
+                setUnlisted(href);
+                return;
+            }
+            FileStat[] children;
+            try {
+                children = getChildren(collection);
+            } catch (IOException e) {
+                Log.log(Log.WARNING, "Failed to list "+collection.getFile().getAbsolutePath()+": "+e);
+                setIncomplete("Failed to list "+href);
+                try {
+                    synchronized (writer) {
+                        writer.writeStatus(href, "HTTP/1.1 507 Insufficient Storage", "Failed to list collection");
+                    }
+                } catch (IOException ex) {
+                    stop("Failed to write response: "+ex.getMessage());
+                }
+                return;
+            }
+            try {
+                Document document = getPropertiesBuilder().createDocument();
+                Element[] props = importProps(document);
+                addResponse(document, collection, href, type, props);
+                if (!write(document)) {
+                    setUnlisted(href);
+                    return;
+                }
+                String base = href.endsWith("/") ? href : href + "/";
+                for (int i = 0; i < children.length; i++) {
+                    String childHref = base + FSUtilities.escape(children[i].getName());
+                    if (children[i].isDirectory()) {
+                        if (!submit(children[i], childHref)) {
+                            setUnlisted(childHref);
+                            return;
+                        }
+                        continue;
+                    }
+                    addResponse(document, children[i], childHref, type, props);
+                    if (!write(document)) {
+                        setUnlisted(childHref);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                stop("Failed to write response: "+e.getMessage());
+            }
+        }
+
+        /**
+         * Writes the responses in the document, unless the entry limit has
+         * been reached.
+         */
+        private boolean write(Document document) throws IOException {
+            synchronized (writer) {
+                if (stopped) return false;
+                if (maxEntries > 0 && entries >= maxEntries) {
+                    stop("Entry limit of "+maxEntries+" reached");
+                    return false;
+                }
+                entries++;
+                writer.writeResponses(document);
+                return true;
+            }
+        }
+
+        private synchronized void stop(String reason) {
+            setIncomplete(reason);
+            stopped = true;
+            notifyAll();
+        }
+
+        private synchronized void setIncomplete(String reason) {
+            if (incomplete == null) incomplete = reason;
+        }
+
+        /**
+         * Records a resource which the walk stopped before reporting.
+         */
+        private synchronized void setUnlisted(String href) {
+            if (unlisted == null) unlisted = href;
+        }
+
+        /**
+         * Copies the requested property names into a document, as the
+         * request's document can't be shared between threads.
+         */
+        private Element[] importProps(Document document) {
+            if (props == null) return null;
+            Element[] copy = new Element[props.length];
+            synchronized (props) {
+                for (int i = 0; i < props.length; i++) {
+                    copy[i] = (Element) document.importNode(props[i], false);
+                }
+            }
+            return copy;
+        }
     }
 
-    private IRODSFile[] getChildren(IRODSFile file){
-    	return (IRODSFile[])file.listFiles();
+    /**
+     * Returns whether any of the requested properties depend on the user's
+     * write access, which is then fetched along with each listing.
+     */
+    private boolean needsWriteAccess(Element[] props) {
+        if (props == null) return false;
+        for (int i = 0; i < props.length; i++) {
+            if ("isreadonly".equals(props[i].getLocalName())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether any of the requested properties may be dead
+     * properties, which are then fetched for each listing. Dead properties
+     * can't be in the DAV: namespace.
+     */
+    private boolean needsDeadProperties(Element[] props) {
+        if (props == null) return false;
+        for (int i = 0; i < props.length; i++) {
+            if (!Property.DAV_NAMESPACE.equals(props[i].getNamespaceURI())) return true;
+        }
+        return false;
     }
 }
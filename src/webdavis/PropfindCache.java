@@ -0,0 +1,271 @@
+package webdavis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A short lived cache of PROPFIND results.
+ *
+ * Desktop clients repeat the same PROPFIND on an open folder many times a
+ * second. Results are kept as serialized multistatus documents for a few
+ * seconds, keyed by the user, URL, depth and requested properties, so the
+ * repeats don't need to query iRODS. Concurrent identical requests share a
+ * single computation.
+ *
+ * Results are streamed to the client as they're produced, and a copy is
+ * kept only while it stays under an eighth of the cache size, so a large
+ * listing is never held in memory in full.
+ *
+ * Any request that may change something (anything other than GET, HEAD,
+ * OPTIONS, PROPFIND and the read only POSTs of the browser interface)
+ * invalidates the whole cache, both before and after it's handled. Results
+ * computed while a change was in progress are not stored. Results live for
+ * propfind-cache-ttl ms, 2 seconds by default; 0 turns the cache off.
+ */
+public class PropfindCache {
+
+	private static final PropfindCache self = new PropfindCache();
+
+	// Browser interface methods which only read
+	private static final Set<String> READ_ONLY_POSTS = new HashSet<String>(Arrays.asList(new String[] {
+			"uploadstatus", "dynamicobjects", "resources", "collectionmetadata", "alltags", "userlist", "logout"}));
+
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+	private Map<String, Flight> flights = new HashMap<String, Flight>();
+	private long generation = 0;
+	private long size = 0;
+
+	public static PropfindCache getInstance() {
+		return self;
+	}
+
+	/**
+	 * Produces a multistatus document when it's not in the cache.
+	 */
+	public interface Producer {
+		public void write(OutputStream output) throws IOException;
+	}
+
+	/**
+	 * Returns whether results are cached at all.
+	 */
+	public static boolean isEnabled() {
+		return Davis.getConfig().getPropfindCacheTTL() > 0;
+	}
+
+	/**
+	 * Returns whether the given request can't change anything, so doesn't
+	 * need to invalidate the cache. Only the query string of a POST is
+	 * looked at, so its body is left for the handler.
+	 */
+	public static boolean isReadOnly(HttpServletRequest request) {
+		String method = request.getMethod();
+		if ("POST".equalsIgnoreCase(method))
+			return READ_ONLY_POSTS.contains(getPostMethod(request.getQueryString()));
+		return "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)
+				|| "OPTIONS".equalsIgnoreCase(method) || "PROPFIND".equalsIgnoreCase(method);
+	}
+
+	private static String getPostMethod(String query) {
+		if (query == null)
+			return null;
+		String[] parameters = query.split("&");
+		for (int i = 0; i < parameters.length; i++)
+			if (parameters[i].startsWith("method="))
+				return parameters[i].substring("method=".length()).toLowerCase();
+		return null;
+	}
+
+	/**
+	 * Writes the cached result for the given key, or waits for it if another
+	 * thread is already producing it, or produces it with the given producer.
+	 * A result that's produced is written to the output as it's produced.
+	 *
+	 * @param key Identifies the user, resource, depth and requested properties.
+	 * @param producer Writes the result if it's not available.
+	 * @param output Where the serialized multistatus document is written.
+	 * @throws IOException If the producer or the output fails.
+	 */
+	public void write(String key, Producer producer, OutputStream output) throws IOException {
+		Flight flight;
+		boolean leader = false;
+		long startGeneration;
+		synchronized (this) {
+			startGeneration = generation;
+			key = generation+"\n"+key;
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.expires > System.currentTimeMillis()) {
+					Log.log(Log.DEBUG, "PROPFIND cache hit");
+					output.write(entry.body);
+					return;
+				}
+				remove(key);
+			}
+			flight = flights.get(key);
+			if (flight == null) {
+				flight = new Flight();
+				flights.put(key, flight);
+				leader = true;
+			}
+		}
+		if (!leader) {
+			Log.log(Log.DEBUG, "Waiting for identical PROPFIND");
+			byte[] body = flight.await();
+			if (body != null)
+				output.write(body);
+			else
+				producer.write(output);	// The other request failed or was too large to keep, produce it ourselves
+			return;
+		}
+		byte[] body = null;
+		try {
+			CappedOutputStream copy = new CappedOutputStream(output, Davis.getConfig().getPropfindCacheSize()/8);
+			producer.write(copy);
+			body = copy.toByteArray();
+			if (body == null)
+				Log.log(Log.DEBUG, "PROPFIND result too large to cache");
+			else
+				synchronized (this) {
+					if (generation == startGeneration)
+						store(key, body);
+				}
+		} finally {
+			synchronized (this) {
+				flights.remove(key);
+			}
+			flight.complete(body);
+		}
+	}
+
+	/**
+	 * Discards all cached results.
+	 */
+	public synchronized void invalidate() {
+		generation++;
+		entries.clear();
+		size = 0;
+	}
+
+	private void store(String key, byte[] body) {
+		long now = System.currentTimeMillis();
+		long maxSize = Davis.getConfig().getPropfindCacheSize();
+		if (size+body.length > maxSize) {
+			Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Entry entry = iterator.next().getValue();
+				if (entry.expires <= now) {
+					size -= entry.body.length;
+					iterator.remove();
+				}
+			}
+			if (size+body.length > maxSize)
+				return;
+		}
+		remove(key);
+		entries.put(key, new Entry(body, now+Davis.getConfig().getPropfindCacheTTL()));
+		size += body.length;
+	}
+
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			size -= entry.body.length;
+	}
+
+	/**
+	 * Passes everything written on to an output stream, keeping a copy until
+	 * it grows larger than a limit.
+	 */
+	private static class CappedOutputStream extends OutputStream {
+
+		private OutputStream output;
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		private long limit;
+
+		public CappedOutputStream(OutputStream output, long limit) {
+			this.output = output;
+			this.limit = limit;
+		}
+
+		public void write(int b) throws IOException {
+			output.write(b);
+			if (copy != null) {
+				if (copy.size()+1 > limit)
+					copy = null;
+				else
+					copy.write(b);
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			output.write(b, off, len);
+			if (copy != null) {
+				if (copy.size()+len > limit)
+					copy = null;	// Give up on keeping it
+				else
+					copy.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			output.flush();
+		}
+
+		/**
+		 * Returns what was written, or null if it was too large to keep.
+		 */
+		public byte[] toByteArray() {
+			return copy == null ? null : copy.toByteArray();
+		}
+	}
+
+	private static class Entry {
+
+		private byte[] body;
+		private long expires;
+
+		public Entry(byte[] body, long expires) {
+			this.body = body;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * A result being produced, which other requests for the same key can
+	 * wait for.
+	 */
+	private static class Flight {
+
+		private boolean done = false;
+		private byte[] body;
+
+		public synchronized void complete(byte[] body) {
+			if (done)
+				return;
+			this.body = body;
+			done = true;
+			notifyAll();
+		}
+
+		public synchronized byte[] await() throws IOException {
+			try {
+				while (!done)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for PROPFIND result");
+			}
+			return body;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package webdavis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses which of the zone's iRODS catalog servers a new session connects
+ * to.
+ *
+ * A session's account names its server, so all the session's connections,
+ * pooled or not, go to the server chosen when it logged in. A user's next
+ * session goes to the same server while it's up, if it logged in within the
+ * last hour. Otherwise the server with the fewest pooled connections is
+ * chosen, or with the lowest heartbeat latency if server-selection is
+ * latency, and between equals the one given the fewest sessions. Servers
+ * whose <code>CircuitBreaker</code> is open are left out until they're
+ * back.
+ */
+public class ServerBalancer {
+
+	private static final ServerBalancer self = new ServerBalancer();
+
+	private static final long AFFINITY_TTL = 3600000;	// ms
+
+	private volatile List<Endpoint> endpoints;
+	private final ConcurrentHashMap<String, Affinity> affinity = new ConcurrentHashMap<String, Affinity>();	// By user
+
+	public static ServerBalancer getInstance() {
+		return self;
+	}
+
+	/**
+	 * Chooses the server for a new session.
+	 *
+	 * @param user The user logging in, or null if not known yet.
+	 */
+	public Endpoint select(String user) {
+		List<Endpoint> endpoints = getEndpoints();
+		Endpoint selected = null;
+		if (endpoints.size() == 1)
+			selected = endpoints.get(0);
+		else {
+			CircuitBreaker breaker = CircuitBreaker.getInstance();
+			Affinity last = user == null ? null : affinity.get(user);
+			Endpoint preferred = last == null ? null : last.endpoint;
+			if (preferred != null && !breaker.isOpen(preferred.host, preferred.port) && !breaker.isHalfOpen(preferred.host, preferred.port))
+				selected = preferred;
+			else {
+				boolean byLatency = "latency".equalsIgnoreCase(getConfig().getServerSelection());
+				int selectedConnections = 0;
+				boolean selectedClosed = false;
+				for (int i = 0; i < endpoints.size(); i++) {
+					Endpoint endpoint = endpoints.get(i);
+					if (breaker.isOpen(endpoint.host, endpoint.port))
+						continue;
+					boolean closed = !breaker.isHalfOpen(endpoint.host, endpoint.port);
+					int connections = ConnectionPool.getInstance().getConnectionCount(endpoint.toString());
+					if (selected == null || (closed && !selectedClosed)) {
+						selected = endpoint;
+						selectedConnections = connections;
+						selectedClosed = closed;
+						continue;
+					}
+					if (closed != selectedClosed)
+						continue;
+					int order = byLatency ? compare(endpoint.latency, selected.latency) : 0;
+					if (order == 0)
+						order = compare(connections, selectedConnections);
+					if (order == 0)
+						order = compare(endpoint.selectedCount.get(), selected.selectedCount.get());
+					if (order < 0) {
+						selected = endpoint;
+						selectedConnections = connections;
+					}
+				}
+				if (selected == null)
+					selected = preferred != null ? preferred : endpoints.get(0);	// All down, the login will fail
+			}
+		}
+		selected.selectedCount.incrementAndGet();
+		return selected;
+	}
+
+	/**
+	 * Records that a user logged in to a server, so the user's next session
+	 * goes there too. Only called once the login has succeeded, so failed
+	 * logins don't leave anything behind.
+	 */
+	public void loggedIn(final String user, Endpoint endpoint) {
+		if (user == null || endpoint == null || getEndpoints().size() == 1)
+			return;
+		final Affinity recorded = new Affinity(endpoint);
+		affinity.put(user, recorded);
+		ExpiryService.getInstance().schedule(new Runnable() {
+			public void run() {
+				affinity.remove(user, recorded);	// Unless the user has logged in again since
+			}
+		}, AFFINITY_TTL);
+	}
+
+	/**
+	 * Returns whether a request may go ahead, that is whether any server is
+	 * up. When none is up but one is half open, this lets one request at a
+	 * time through to try it.
+	 */
+	public boolean allowRequest() {
+		List<Endpoint> endpoints = getEndpoints();
+		CircuitBreaker breaker = CircuitBreaker.getInstance();
+		for (int i = 0; i < endpoints.size(); i++) {
+			Endpoint endpoint = endpoints.get(i);
+			if (!breaker.isOpen(endpoint.host, endpoint.port) && !breaker.isHalfOpen(endpoint.host, endpoint.port))
+				return true;
+		}
+		for (int i = 0; i < endpoints.size(); i++) {
+			Endpoint endpoint = endpoints.get(i);
+			if (breaker.allowRequest(endpoint.host, endpoint.port))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether any server isn't known to be down.
+	 */
+	public boolean isAvailable() {
+		List<Endpoint> endpoints = getEndpoints();
+		for (int i = 0; i < endpoints.size(); i++) {
+			Endpoint endpoint = endpoints.get(i);
+			if (!CircuitBreaker.getInstance().isOpen(endpoint.host, endpoint.port))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns how many seconds a client should wait before trying again when
+	 * all servers are down.
+	 */
+	public long getRetryAfter() {
+		List<Endpoint> endpoints = getEndpoints();
+		long retryAfter = Long.MAX_VALUE;
+		for (int i = 0; i < endpoints.size(); i++) {
+			Endpoint endpoint = endpoints.get(i);
+			retryAfter = Math.min(retryAfter, CircuitBreaker.getInstance().getRetryAfter(endpoint.host, endpoint.port));
+		}
+		return retryAfter;
+	}
+
+	/**
+	 * Records the time a server took to answer a heartbeat.
+	 */
+	public void latency(String host, int port, long time) {
+		Endpoint endpoint = getEndpoint(host, port);
+		if (endpoint == null)
+			return;
+		synchronized (endpoint) {
+			// Exponentially weighted, so a server's latency follows its load
+			endpoint.latency = endpoint.latency < 0 ? time : (endpoint.latency*4+time)/5;
+		}
+	}
+
+	public String toString() {
+		List<Endpoint> endpoints = getEndpoints();
+		StringBuffer buffer = new StringBuffer("users: "+affinity.size());
+		for (int i = 0; i < endpoints.size(); i++) {
+			Endpoint endpoint = endpoints.get(i);
+			buffer.append("   "+endpoint+": sessions "+endpoint.selectedCount+", connections "
+					+ConnectionPool.getInstance().getConnectionCount(endpoint.toString())+", latency "
+					+(endpoint.latency < 0 ? "?" : endpoint.latency+" ms")
+					+(CircuitBreaker.getInstance().isOpen(endpoint.host, endpoint.port) ? ", down" : ""));
+		}
+		return buffer.toString();
+	}
+
+	private Endpoint getEndpoint(String host, int port) {
+		List<Endpoint> endpoints = getEndpoints();
+		for (int i = 0; i < endpoints.size(); i++) {
+			Endpoint endpoint = endpoints.get(i);
+			if (endpoint.port == port && endpoint.host.equals(host))
+				return endpoint;
+		}
+		return null;
+	}
+
+	private List<Endpoint> getEndpoints() {
+		List<Endpoint> endpoints = this.endpoints;
+		if (endpoints == null) {
+			endpoints = new ArrayList<Endpoint>();
+			for (String endpoint : getConfig().getServerEndpoints()) {
+				int index = endpoint.lastIndexOf(':');
+				endpoints.add(new Endpoint(endpoint.substring(0, index), Integer.parseInt(endpoint.substring(index+1).trim())));
+			}
+			this.endpoints = endpoints;
+		}
+		return endpoints;
+	}
+
+	private static DavisConfig getConfig() {
+		return Davis.getConfig();
+	}
+
+	private static int compare(long a, long b) {
+		return a < b ? -1 : (a > b ? 1 : 0);
+	}
+
+	/**
+	 * The server a user last logged in to.
+	 */
+	private static class Affinity {
+
+		private final Endpoint endpoint;
+
+		public Affinity(Endpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+	}
+
+	/**
+	 * An iRODS catalog server.
+	 */
+	public static class Endpoint {
+
+		private final String host;
+		private final int port;
+		private final AtomicLong selectedCount = new AtomicLong();
+		private volatile long latency = -1;	// ms, changes synchronized on the endpoint
+
+		public Endpoint(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public String toString() {
+			return host+":"+port;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package webdavis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Davis sessions logged in to iRODS, by session ID, with an index of
+ * the sessions belonging to each user.
+ *
+ * Lookups don't lock anything. Changes to a session ID - registering a new
+ * session for it, or releasing or removing its session - are serialized on
+ * one of a fixed set of locks chosen by the ID, so they're atomic without
+ * serializing changes to unrelated sessions. Sessions which are replaced or
+ * removed are retired, so a request which looked one up just before can't
+ * go on sharing it.
+ *
+ * Nothing here talks to iRODS: sessions which are no longer registered are
+ * returned to the caller to disconnect, outside any lock.
+ */
+public class SessionRegistry {
+
+	private static final int STRIPES = 64;	// A power of 2
+
+	private final Map<String, DavisSession> sessions = new ConcurrentHashMap<String, DavisSession>();
+	private final Map<String, Set<String>> sessionsByUser = new ConcurrentHashMap<String, Set<String>>();	// Changes synchronized on it
+	private final Map<String, String> users = new ConcurrentHashMap<String, String>();	// Session ID to user
+	private final Object[] stripes = new Object[STRIPES];
+
+	public SessionRegistry() {
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Object();
+	}
+
+	/**
+	 * Returns the session registered for an ID, or null.
+	 */
+	public DavisSession get(String sessionID) {
+		return sessionID == null ? null : sessions.get(sessionID);
+	}
+
+	/**
+	 * Registers a newly logged in session. A session already registered for
+	 * the ID is replaced, and the HTTP sessions sharing it are moved to the new
+	 * one.
+	 *
+	 * @param user The user the session belongs to, or null if sessions aren't
+	 * indexed by user.
+	 * @param exclusive Whether the user's other sessions should be removed.
+	 * @return The sessions which were replaced or removed, to be disconnected.
+	 */
+	public List<DavisSession> register(String sessionID, String user, DavisSession session, boolean exclusive) {
+		List<DavisSession> removed = new ArrayList<DavisSession>();
+		if (user != null && exclusive) {
+			Set<String> others = sessionsByUser.get(user);
+			if (others != null)
+				for (String other : others.toArray(new String[0]))
+					if (!other.equals(sessionID)) {
+						DavisSession old = remove(other);
+						if (old != null)
+							removed.add(old);
+					}
+		}
+		synchronized (getStripe(sessionID)) {
+			DavisSession old = sessions.put(sessionID, session);
+			if (old != null && old != session) {
+				session.setSharedNumber(old.retire());
+				removed.add(old);
+			}
+			unindex(sessionID);
+			if (user != null)
+				index(sessionID, user);
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the session registered for an ID.
+	 *
+	 * @return The session removed, to be disconnected, or null.
+	 */
+	public DavisSession remove(String sessionID) {
+		synchronized (getStripe(sessionID)) {
+			DavisSession session = sessions.remove(sessionID);
+			if (session != null) {
+				session.retire();
+				unindex(sessionID);
+			}
+			return session;
+		}
+	}
+
+	/**
+	 * Removes the session registered for an ID if it's the given one.
+	 *
+	 * @return Whether the session was removed.
+	 */
+	public boolean remove(String sessionID, DavisSession session) {
+		synchronized (getStripe(sessionID)) {
+			if (sessions.get(sessionID) != session)
+				return false;
+			remove(sessionID);
+			return true;
+		}
+	}
+
+	/**
+	 * Removes an HTTP session from those sharing the session registered for
+	 * an ID, removing the session if it was the last.
+	 *
+	 * @return The session removed, to be disconnected, or null.
+	 */
+	public DavisSession release(String sessionID) {
+		if (sessionID == null)
+			return null;
+		synchronized (getStripe(sessionID)) {
+			DavisSession session = sessions.get(sessionID);
+			if (session == null || !session.release())
+				return null;
+			sessions.remove(sessionID);
+			unindex(sessionID);
+			return session;
+		}
+	}
+
+	/**
+	 * Returns the IDs of the sessions registered for a user.
+	 */
+	public Set<String> getSessionIDs(String user) {
+		Set<String> ids = sessionsByUser.get(user);
+		if (ids == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(ids);
+	}
+
+	/**
+	 * Removes all the sessions.
+	 *
+	 * @return The sessions removed, to be disconnected.
+	 */
+	public List<DavisSession> clear() {
+		List<DavisSession> removed = new ArrayList<DavisSession>();
+		Iterator<String> iterator = sessions.keySet().iterator();
+		while (iterator.hasNext()) {
+			DavisSession session = remove(iterator.next());
+			if (session != null)
+				removed.add(session);
+		}
+		return removed;
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	private void index(String sessionID, String user) {
+		users.put(sessionID, user);
+		synchronized (sessionsByUser) {
+			Set<String> ids = sessionsByUser.get(user);
+			if (ids == null) {
+				ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				sessionsByUser.put(user, ids);
+			}
+			ids.add(sessionID);
+		}
+	}
+
+	private void unindex(String sessionID) {
+		String user = users.remove(sessionID);
+		if (user == null)
+			return;
+		synchronized (sessionsByUser) {
+			Set<String> ids = sessionsByUser.get(user);
+			if (ids != null) {
+				ids.remove(sessionID);
+				if (ids.isEmpty())
+					sessionsByUser.remove(user);
+			}
+		}
+	}
+
+	private Object getStripe(String sessionID) {
+		int hash = sessionID.hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (STRIPES-1)];
+	}
+}
@@ -0,0 +1,412 @@
+package webdavis;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Keeps the state of logged in clients in a shared <code>SessionStore</code>,
+ * so a cluster of servers needn't have sticky sessions, and a client whose
+ * server goes away is logged in again on another without being asked for
+ * its credentials.
+ *
+ * The Davis attributes of a client's HTTP session are stored when it logs
+ * in, under a random token sent to the client in a cookie. A server which
+ * gets a request without an HTTP session of its own, but with the cookie,
+ * restores the attributes into a new HTTP session, and the request then
+ * logs in a new Davis session for them as usual. Records are kept in a
+ * local cache as well, so requests only go to the store when their
+ * attributes change, when their record is half way to expiring, or when
+ * the client first comes to this server. A local copy is only used to
+ * restore a session for a few seconds after it was read or written, so a
+ * record removed by a logout on another server can't be restored here
+ * from the client's cookie.
+ *
+ * The store never sees a token. A record is stored under a digest of its
+ * token, and its values are encrypted and authenticated (AES and
+ * HMAC-SHA256) with keys derived from the token, so the store alone can't be used to recover a client's credentials or
+ * to take over its session. The cookie is sent HttpOnly, so scripts in
+ * pages can't read it.
+ *
+ * Nothing is stored unless session-store names a store class.
+ */
+public class SessionStateManager {
+
+	static final String TOKEN = "davis.stateToken";
+	static final String COOKIE = "DAVISSTATE";
+
+	private static final String[] ATTRIBUTES = {Davis.SESSION_ID, Davis.AUTHATTRIBUTENAME, Davis.FORMAUTHATTRIBUTENAME, Davis.ISBROWSERATTRIBUTENAME};
+
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+
+	private static final long REVALIDATE_INTERVAL = 5000;	// ms a local copy may be restored without asking the store
+
+	private static final SessionStateManager self = new SessionStateManager();
+
+	private volatile SessionStore store;
+	private volatile boolean initialized = false;
+	private final SecureRandom random = new SecureRandom();
+	private final ConcurrentHashMap<String, Cached> records = new ConcurrentHashMap<String, Cached>();	// Local cache, by token
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong restoreCount = new AtomicLong();
+	private final AtomicLong writeCount = new AtomicLong();
+
+	public static SessionStateManager getInstance() {
+		return self;
+	}
+
+	/**
+	 * Restores the state a client logged in with on another server into a new
+	 * HTTP session, if the request has a state cookie. Should only be called
+	 * for requests without an HTTP session.
+	 */
+	public void restore(HttpServletRequest request) {
+		SessionStore store = getStore();
+		if (store == null)
+			return;
+		String token = getToken(request);
+		if (token == null)
+			return;
+		long now = System.currentTimeMillis();
+		Cached cached = records.get(token);
+		SessionStore.Record record;
+		if (cached != null && !cached.record.isExpired(now) && now-cached.checked < REVALIDATE_INTERVAL) {
+			hitCount.incrementAndGet();
+			record = cached.record;
+		} else {
+			missCount.incrementAndGet();
+			try {
+				record = store.get(getStoreKey(token));
+				if (record == null) {
+					records.remove(token);	// Logged out, or expired, since it was cached
+					return;
+				}
+				record = open(token, record);
+			} catch (IOException e) {
+				Log.log(Log.WARNING, "Failed to read session state "+getStoreKey(token)+": "+e.getMessage());
+				return;
+			}
+			cache(token, record);
+		}
+		HttpSession session = request.getSession();
+		for (Map.Entry<String, String> attribute : record.getAttributes().entrySet())
+			session.setAttribute(attribute.getKey(), attribute.getValue());
+		session.setAttribute(TOKEN, token);
+		restoreCount.incrementAndGet();
+		Log.log(Log.DEBUG, "Restored session state "+getStoreKey(token)+" for Davis session "+record.getAttributes().get(Davis.SESSION_ID));
+	}
+
+	/**
+	 * Stores the state of a client which has logged in, unless it's stored
+	 * already. Must be called before the response is committed, as a client
+	 * new to the store is sent a cookie.
+	 */
+	public void save(HttpServletRequest request, HttpServletResponse response) {
+		SessionStore store = getStore();
+		if (store == null)
+			return;
+		HttpSession session = request.getSession(false);
+		if (session == null)
+			return;
+		Map<String, String> attributes = new HashMap<String, String>();
+		for (String name : ATTRIBUTES) {
+			Object value = session.getAttribute(name);
+			if (value instanceof String)
+				attributes.put(name, (String) value);
+		}
+		long ttl = getTTL();
+		long now = System.currentTimeMillis();
+		String token = (String) session.getAttribute(TOKEN);
+		Cached cached = token == null ? null : records.get(token);
+		if (cached != null && cached.record.getAttributes().equals(attributes) && cached.record.getExpires()-now > ttl/2)
+			return;	// Stored, and not about to expire
+		boolean created = token == null;
+		if (created)
+			token = newToken();
+		SessionStore.Record record = new SessionStore.Record(attributes, now+ttl);
+		try {
+			store.put(getStoreKey(token), seal(token, record));
+		} catch (IOException e) {
+			Log.log(Log.WARNING, "Failed to store session state "+getStoreKey(token)+": "+e.getMessage());
+			return;
+		}
+		writeCount.incrementAndGet();
+		cache(token, record);
+		if (created) {
+			session.setAttribute(TOKEN, token);
+			setCookie(request, response, token, false);
+		}
+	}
+
+	/**
+	 * Removes a client's stored state when it logs out, and tells it to drop
+	 * its cookie. Must be called before the HTTP session is invalidated.
+	 */
+	public void logout(HttpServletRequest request, HttpServletResponse response) {
+		if (getStore() == null)
+			return;
+		remove(request);
+		if (getToken(request) != null)
+			setCookie(request, response, "", true);
+	}
+
+	/**
+	 * Removes a client's stored state, after its credentials were refused say.
+	 */
+	public void remove(HttpServletRequest request) {
+		SessionStore store = getStore();
+		if (store == null)
+			return;
+		HttpSession session = request.getSession(false);
+		String token = session == null ? null : (String) session.getAttribute(TOKEN);
+		if (token == null)
+			token = getToken(request);
+		if (token == null)
+			return;
+		records.remove(token);
+		try {
+			store.remove(getStoreKey(token));
+		} catch (IOException e) {
+			Log.log(Log.WARNING, "Failed to remove session state "+getStoreKey(token)+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Drops the local copy of the state of an HTTP session which has ended.
+	 * The stored state is kept until it expires, for other servers the
+	 * client may be using.
+	 */
+	public void forget(HttpSession session) {
+		String token = (String) session.getAttribute(TOKEN);
+		if (token != null)
+			records.remove(token);
+	}
+
+	public int size() {
+		return records.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getRestoreCount() {
+		return restoreCount.get();
+	}
+
+	public long getWriteCount() {
+		return writeCount.get();
+	}
+
+	public String toString() {
+		return "records: "+size()+"   hits: "+getHitCount()+"   misses: "+getMissCount()+"   restores: "+getRestoreCount()+"   writes: "+getWriteCount();
+	}
+
+	private void cache(final String token, SessionStore.Record record) {
+		final Cached cached = new Cached(record, System.currentTimeMillis());
+		records.put(token, cached);
+		ExpiryService.getInstance().schedule(new Runnable() {
+			public void run() {
+				records.remove(token, cached);
+			}
+		}, Math.max(record.getExpires()-System.currentTimeMillis(), 1000));
+	}
+
+	private SessionStore getStore() {
+		if (initialized)
+			return store;
+		synchronized (this) {
+			if (initialized)
+				return store;
+			String className = Davis.getConfig().getSessionStore();
+			if (className != null && className.length() > 0)
+				try {
+					SessionStore store = (SessionStore) Class.forName(className).getDeclaredConstructor().newInstance();
+					store.init(Davis.getConfig().getSessionStoreProperties());
+					this.store = store;
+					Log.log(Log.INFORMATION, "Keeping session state in "+className);
+				} catch (Exception e) {
+					Log.log(Log.ERROR, "Unable to open session store "+className+", session state won't be shared: "+e);
+				}
+			initialized = true;
+			return store;
+		}
+	}
+
+	/**
+	 * Sets or expires the state cookie. The servlet API has no way to make a
+	 * cookie HttpOnly, so the header is written here.
+	 */
+	private static void setCookie(HttpServletRequest request, HttpServletResponse response, String token, boolean expire) {
+		String path = request.getContextPath();
+		StringBuffer cookie = new StringBuffer(COOKIE).append('=').append(token);
+		cookie.append("; Path=").append(path == null || path.length() == 0 ? "/" : path);
+		if (expire)
+			cookie.append("; Max-Age=0; Expires=Thu, 01 Jan 1970 00:00:00 GMT");
+		if (request.isSecure())
+			cookie.append("; Secure");
+		cookie.append("; HttpOnly");
+		response.addHeader("Set-Cookie", cookie.toString());
+	}
+
+	/**
+	 * Returns the key a token's record is stored under, a digest of the
+	 * token, so the store's keys can't be used as cookies.
+	 */
+	private static String getStoreKey(String token) {
+		return toHex(digest("davis-session-id:"+token));
+	}
+
+	/**
+	 * Encrypts the values of a record with the key derived from its token.
+	 * Each value is stored as its IV, its encrypted bytes and a MAC of those
+	 * and the attribute's name, so it can't be altered or moved to another
+	 * attribute.
+	 */
+	private SessionStore.Record seal(String token, SessionStore.Record record) throws IOException {
+		Map<String, String> sealed = new HashMap<String, String>();
+		try {
+			for (Map.Entry<String, String> attribute : record.getAttributes().entrySet()) {
+				byte[] iv = new byte[IV_LENGTH];
+				random.nextBytes(iv);
+				Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, token, iv);
+				byte[] encrypted = cipher.doFinal(attribute.getValue().getBytes("UTF-8"));
+				byte[] value = new byte[iv.length+encrypted.length+MAC_LENGTH];
+				System.arraycopy(iv, 0, value, 0, iv.length);
+				System.arraycopy(encrypted, 0, value, iv.length, encrypted.length);
+				byte[] mac = getMac(token, attribute.getKey(), value, iv.length+encrypted.length);
+				System.arraycopy(mac, 0, value, iv.length+encrypted.length, MAC_LENGTH);
+				sealed.put(attribute.getKey(), new String(Base64.encodeBase64(value), "US-ASCII"));
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to encrypt session state: "+e.getMessage());
+		}
+		return new SessionStore.Record(sealed, record.getExpires());
+	}
+
+	/**
+	 * Decrypts the values of a stored record with the key derived from its
+	 * token.
+	 */
+	private static SessionStore.Record open(String token, SessionStore.Record record) throws IOException {
+		Map<String, String> opened = new HashMap<String, String>();
+		try {
+			for (Map.Entry<String, String> attribute : record.getAttributes().entrySet()) {
+				byte[] value = Base64.decodeBase64(attribute.getValue().getBytes("US-ASCII"));
+				int length = value.length-MAC_LENGTH;	// Of the IV and encrypted bytes
+				if (length <= IV_LENGTH)
+					throw new IOException("Invalid session state");
+				byte[] mac = new byte[MAC_LENGTH];
+				System.arraycopy(value, length, mac, 0, MAC_LENGTH);
+				if (!MessageDigest.isEqual(mac, getMac(token, attribute.getKey(), value, length)))
+					throw new IOException("Session state doesn't match its token");
+				byte[] iv = new byte[IV_LENGTH];
+				System.arraycopy(value, 0, iv, 0, iv.length);
+				Cipher cipher = getCipher(Cipher.DECRYPT_MODE, token, iv);
+				opened.put(attribute.getKey(), new String(cipher.doFinal(value, iv.length, length-iv.length), "UTF-8"));
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to decrypt session state: "+e.getMessage());
+		}
+		return new SessionStore.Record(opened, record.getExpires());
+	}
+
+	private static Cipher getCipher(int mode, String token, byte[] iv) throws GeneralSecurityException {
+		byte[] key = new byte[16];
+		System.arraycopy(digest("davis-session-key:"+token), 0, key, 0, key.length);
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		return cipher;
+	}
+
+	private static byte[] getMac(String token, String name, byte[] value, int length) throws GeneralSecurityException, IOException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(digest("davis-session-mac:"+token), "HmacSHA256"));
+		mac.update(name.getBytes("UTF-8"));
+		mac.update((byte) 0);
+		mac.update(value, 0, length);
+		return mac.doFinal();
+	}
+
+	private static byte[] digest(String value) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(value.getBytes("UTF-8"));
+		} catch (Exception e) {
+			throw new IllegalStateException(e.getMessage());	// SHA-256 and UTF-8 are always there
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuffer hex = new StringBuffer();
+		for (byte b : bytes)
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return hex.toString();
+	}
+
+	private static String getToken(HttpServletRequest request) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null)
+			return null;
+		for (Cookie cookie : cookies)
+			if (cookie.getName().equals(COOKIE) && isToken(cookie.getValue()))
+				return cookie.getValue();
+		return null;
+	}
+
+	private static boolean isToken(String value) {
+		if (value == null || value.length() != 32)
+			return false;
+		for (int i = 0; i < value.length(); i++)
+			if (Character.digit(value.charAt(i), 16) < 0)
+				return false;
+		return true;
+	}
+
+	private String newToken() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return toHex(bytes);
+	}
+
+	private static long getTTL() {
+		return Davis.getConfig().getSessionStateTTL();
+	}
+
+	/**
+	 * A local copy of a record, and when it was last read from or written to
+	 * the store.
+	 */
+	private static class Cached {
+
+		private final SessionStore.Record record;
+		private final long checked;
+
+		public Cached(SessionStore.Record record, long checked) {
+			this.record = record;
+			this.checked = checked;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package webdavis;
+
+import java.io.IOException;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Shared storage for the state of logged in clients, used by
+ * <code>SessionStateManager</code> so any server of a cluster can take
+ * over a client logged in on another.
+ *
+ * A store holds a record for each client by an opaque key, a hex digest of
+ * the client's token; the token itself is never given to the store. A
+ * record has what a server needs to log the client in again: the
+ * attributes Davis keeps in the HTTP session, with their values encrypted
+ * by a key derived from the token, so a record is no use without the
+ * client's cookie.
+ *
+ * Implementations need a public no-argument constructor, and are
+ * configured through <code>init</code>.
+ */
+public interface SessionStore {
+
+    /**
+     * Configures the store with the session-store properties.
+     */
+    public void init(Properties properties) throws IOException;
+
+    /**
+     * Returns the record for a key, or null if there's none or it has
+     * expired.
+     */
+    public Record get(String key) throws IOException;
+
+    /**
+     * Stores the record for a key, replacing any there was.
+     */
+    public void put(String key, Record record) throws IOException;
+
+    /**
+     * Removes the record for a key, if there is one.
+     */
+    public void remove(String key) throws IOException;
+
+    /**
+     * The state of a logged in client.
+     */
+    public static class Record {
+
+        private final Map<String, String> attributes;
+
+        private final long expires;
+
+        /**
+         * @param attributes The client's HTTP session attributes, by name.
+         * @param expires When the record expires.
+         */
+        public Record(Map<String, String> attributes, long expires) {
+            this.attributes = attributes;
+            this.expires = expires;
+        }
+
+        public Map<String, String> getAttributes() {
+            return attributes;
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+
+        public boolean isExpired(long now) {
+            return expires <= now;
+        }
+
+    }
+
+}
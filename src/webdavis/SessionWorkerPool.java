@@ -0,0 +1,94 @@
+package webdavis;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.irods.jargon.core.connection.AbstractIRODSMidLevelProtocol;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSFileSystem;
+
+/**
+ * A small, bounded pool of worker threads acting for one Davis session.
+ *
+ * Jargon keeps a connection per thread, so each worker checks a connection
+ * for the session's account out of the <code>ConnectionPool</code> for as
+ * long as it runs, which lets one request use several connections at once.
+ * If the pool has none to spare, the worker opens its own connection the
+ * first time it's used and closes it when the pool is shut down. Workers
+ * mark their connection busy with the <code>ConnectionMonitor</code> while
+ * they hold it, so no heartbeat is sent on it while a task uses it. The work
+ * queue is bounded and a full queue makes the submitting thread run the
+ * task itself, which limits the amount of work (and buffered data) in
+ * flight.
+ */
+public class SessionWorkerPool {
+
+	private ThreadPoolExecutor executor;
+
+	public SessionWorkerPool(final DavisSession davisSession, int threads) {
+		final IRODSAccount account = davisSession.getIRODSAccount();
+		final String name = "davis-worker-"+davisSession.getAccount()+"-";
+		if (threads < 1)
+			threads = 1;
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads), new ThreadFactory() {
+					private int count = 0;
+					public synchronized Thread newThread(final Runnable runnable) {
+						Thread thread = new Thread(new Runnable() {
+							public void run() {
+								boolean pooled = ConnectionPool.getInstance().tryCheckOut(account);
+								AbstractIRODSMidLevelProtocol connection = null;
+								try {
+									try {
+										connection = ConnectionMonitor.getInstance().begin(davisSession);
+									} catch (IOException e) {
+										Log.log(Log.WARNING, "Failed to open worker connection: "+e);	// The tasks will fail on their own
+									}
+									runnable.run();
+								} finally {
+									if (connection != null)
+										ConnectionMonitor.getInstance().end(connection, false);
+									if (pooled)
+										ConnectionPool.getInstance().checkIn(account);
+									else
+										try {
+											IRODSFileSystem.instance().closeAndEatExceptions(account);
+										} catch (JargonException e) {
+											Log.log(Log.WARNING, "Failed to close worker connection: "+e);
+										}
+								}
+							}
+						}, name+(++count));
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Runs the task on a worker. If all workers are busy and the queue is
+	 * full, the task is run in the calling thread.
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Waits for all submitted tasks to finish and releases the workers and
+	 * their connections.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(60, TimeUnit.SECONDS))
+				Log.log(Log.DEBUG, "Waiting for worker tasks to complete");
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.codec.binary.Base64;
 import org.globus.gsi.GlobusCredential;
@@ -27,11 +28,15 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 
 public class ShibUtil {
+
+	private static volatile AdminAccount admin;
+	private static final ConcurrentHashMap<String, String> users = new ConcurrentHashMap<String, String>();	// iRODS user by shared token
 	
 	public ShibUtil(){
 //		config = SLCSConfig.getInstance();
@@ -43,77 +48,51 @@ public class ShibUtil {
 		char[] password = null;
 		Map result = new HashMap();
 		IRODSAccount adminAccount = null;
-		List<User> users = null;
-		StringBuilder sb = null;
 
 		if (sharedToken == null)
 			return null;
-		GlobusCredential adminCred;
 		DavisConfig config = Davis.getConfig();
+		adminAccount = getAdminAccount(config);
+		if (adminAccount == null)
+			return null;
+		// The admin account's connections are pooled, rather than left with each thread that logs someone in
+		ConnectionPool pool = ConnectionPool.getInstance();
+		try {
+			pool.checkOut(adminAccount);
+		} catch (ConnectionPool.ExhaustedException e) {
+			Log.log(Log.WARNING, "No admin connection for Shibboleth login: "+e.getMessage());
+			return null;
+		}
 		try {
-			String credsfile = config.getAdminCredsFile();
-			Log.log(Log.DEBUG, "CREDSFILE:" + credsfile);
-			if (credsfile != "") {
-				Log.log(Log.DEBUG, "opening json file");
-
-				// parse the admin creds from a local file specified in config
-				JSONParser parser = new JSONParser();
-
-				Object obj;
-				try {
-					String admin_username = null;
-					String admin_password = null;
-					obj = parser.parse(new FileReader(credsfile));
-					JSONObject jsonObject = (JSONObject) obj;
-					admin_username = (String) jsonObject
-							.get("irods_admin_user_name");
-					admin_password = (String) jsonObject
-							.get("irods_admin_password");
-
-					adminAccount = new IRODSAccount(config.getServerName(),
-							config.getServerPort(), admin_username,
-							admin_password, "/" + config.getZoneName()
-							+ "/home/" + admin_username,
-							config.getZoneName(), config.getDefaultResource());
-				} catch (FileNotFoundException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-					return null;
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-					return null;
-				}
-
-			} else {
-				adminCred = new GlobusCredential(config.getAdminCertFile(),
-						config.getAdminKeyFile());
-				GSSCredential gssCredential = new GlobusGSSCredentialImpl(
-						adminCred, GSSCredential.INITIATE_AND_ACCEPT);
-				adminAccount = GSIIRODSAccount.instance(config.getServerName(),
-						config.getServerPort(), gssCredential,
-						config.getDefaultResource());
-
-			}
-
-			// adminAccount.setZone(config.getInitParameter("zone-name", null));
-//		        adminAccount.setUserName(config.getInitParameter("adminUsername", "rods"));
 	        IRODSFileSystem irodsFileSystem = IRODSFileSystem.instance();
 	        UserAO userAO=irodsFileSystem.getIRODSAccessObjectFactory().getUserAO(adminAccount);
-//		        password=getRandomPassword(12);
-	        
-//		        createUser(irodsFileSystem,commonName,String.valueOf(password),sharedToken);
 
-			username = queryForUser(userAO, sharedToken);
+	        username = getCachedUser(sharedToken);
+	        if (username != null)
+	        	try {
+	        		password=userAO.getTemporaryPasswordForASpecifiedUser(username).toCharArray();
+	        	} catch (JargonException e) {
+	        		// The user may have been removed or renamed, look them up again
+	        		Log.log(Log.DEBUG, "Cached user "+username+" for shared token failed: "+e);
+	        		users.remove(sharedToken);
+	        		username = null;
+	        	}
+	        if (username == null) {
+	        	username = queryForUser(userAO, sharedToken);
 
-			String createUserScriptName = config.createUserScriptName();
+	        	String createUserScriptName = config.createUserScriptName();
 
-			if (createUserScriptName != "" && username == null) {
-				password = getRandomPassword(12);
-				createUser(createUserScriptName, adminAccount, irodsFileSystem, commonName,
-						String.valueOf(password), sharedToken);
-				username = queryForUser(userAO, sharedToken);
-			}
+	        	if (createUserScriptName != "" && username == null) {
+	        		password = getRandomPassword(12);
+	        		createUser(createUserScriptName, adminAccount, irodsFileSystem, commonName,
+	        				String.valueOf(password), sharedToken);
+	        		username = queryForUser(userAO, sharedToken);
+	        	}
+	        	if (username != null) {
+	        		cacheUser(sharedToken, username);
+	        		password=userAO.getTemporaryPasswordForASpecifiedUser(username).toCharArray();
+	        	}
+	        }
 
 //		        String[] selectFieldNames = {
 //						IRODSMetaDataSet.USER_NAME,
@@ -155,28 +134,132 @@ public class ShibUtil {
 //						}
 //					}
 //				}
-			if (username != null ) {
-			    password=userAO.getTemporaryPasswordForASpecifiedUser(username).toCharArray();
-			};
 			result.put("username", username);
 			result.put("password", password);
 //				irodsFileSystem.close();
 	       	return result;
-		} catch (GlobusCredentialException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (GSSException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		} catch (NullPointerException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		} catch (JargonException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			pool.checkIn(adminAccount);
 		}
 		return null;
     }
+
+    /**
+     * Returns the admin account, made from the admin credentials file or
+     * certificate when they were first used or have changed since. The
+     * account is also made again if its server is down, or its certificate
+     * has expired.
+     */
+    private static IRODSAccount getAdminAccount(DavisConfig config) {
+		String credsfile = config.getAdminCredsFile();
+		File[] files = credsfile.length() > 0 ? new File[] {new File(credsfile)}
+				: new File[] {new File(String.valueOf(config.getAdminCertFile())), new File(String.valueOf(config.getAdminKeyFile()))};
+		StringBuffer stamp = new StringBuffer();
+		for (int i = 0; i < files.length; i++)
+			stamp.append(files[i].getPath()+":"+files[i].lastModified()+":"+files[i].length()+";");
+		AdminAccount current = admin;
+		if (current != null && current.isValid(stamp.toString()))
+			return current.account;
+		synchronized (ShibUtil.class) {
+			current = admin;
+			if (current != null && current.isValid(stamp.toString()))
+				return current.account;
+			IRODSAccount adminAccount;
+			GSSCredential gssCredential = null;
+			ServerBalancer.Endpoint endpoint = ServerBalancer.getInstance().select(null);
+			try {
+				if (credsfile.length() > 0) {
+					Log.log(Log.DEBUG, "CREDSFILE:" + credsfile);
+					// parse the admin creds from a local file specified in config
+					JSONParser parser = new JSONParser();
+					FileReader reader = new FileReader(credsfile);
+					Object obj;
+					try {
+						obj = parser.parse(reader);
+					} finally {
+						reader.close();
+					}
+					JSONObject jsonObject = (JSONObject) obj;
+					String admin_username = (String) jsonObject
+							.get("irods_admin_user_name");
+					String admin_password = (String) jsonObject
+							.get("irods_admin_password");
+
+					adminAccount = new IRODSAccount(endpoint.getHost(),
+							endpoint.getPort(), admin_username,
+							admin_password, "/" + config.getZoneName()
+							+ "/home/" + admin_username,
+							config.getZoneName(), config.getDefaultResource());
+				} else {
+					GlobusCredential adminCred = new GlobusCredential(config.getAdminCertFile(),
+							config.getAdminKeyFile());
+					gssCredential = new GlobusGSSCredentialImpl(
+							adminCred, GSSCredential.INITIATE_AND_ACCEPT);
+					adminAccount = GSIIRODSAccount.instance(endpoint.getHost(),
+							endpoint.getPort(), gssCredential,
+							config.getDefaultResource());
+				}
+			} catch (Exception e) {
+				Log.log(Log.ERROR, "Unable to load the admin account for Shibboleth logins: "+e);
+				return null;
+			}
+			Log.log(Log.INFORMATION, "Admin account for Shibboleth logins "+(current == null ? "loaded" : "reloaded")+" on "+endpoint);
+			admin = new AdminAccount(adminAccount, gssCredential, endpoint, stamp.toString());
+			if (current != null)
+				ConnectionPool.getInstance().close(current.account);
+			return adminAccount;
+		}
+    }
+
+    private static String getCachedUser(String sharedToken) {
+    	return Davis.getConfig().getShibUserCacheTTL() > 0 ? users.get(sharedToken) : null;
+    }
+
+    private static void cacheUser(final String sharedToken, final String username) {
+    	long ttl = Davis.getConfig().getShibUserCacheTTL();
+    	if (ttl <= 0)
+    		return;
+    	users.put(sharedToken, username);
+		ExpiryService.getInstance().schedule(new Runnable() {
+			public void run() {
+				users.remove(sharedToken, username);
+			}
+		}, ttl);
+    }
+
+    /**
+     * The admin account, and what it was made from.
+     */
+    private static class AdminAccount {
+
+    	private final IRODSAccount account;
+    	private final GSSCredential credential;	// Null with a credentials file
+    	private final ServerBalancer.Endpoint endpoint;
+    	private final String stamp;	// Paths, modification times and sizes of the files
+
+    	public AdminAccount(IRODSAccount account, GSSCredential credential, ServerBalancer.Endpoint endpoint, String stamp) {
+    		this.account = account;
+    		this.credential = credential;
+    		this.endpoint = endpoint;
+    		this.stamp = stamp;
+    	}
+
+    	public boolean isValid(String stamp) {
+    		if (!this.stamp.equals(stamp) || CircuitBreaker.getInstance().isOpen(endpoint.getHost(), endpoint.getPort()))
+    			return false;
+    		try {
+    			return credential == null || credential.getRemainingLifetime() > 0;
+    		} catch (GSSException e) {
+    			return false;
+    		}
+    	}
+    }
     //Cookie: SESS3d4e795375e8d8d39b2952e0a7e7882d=1v7bcfkuigqdes7u2d2qbc4ch0; _saml_idp=dXJuOm1hY2U6ZmVkZXJhdGlvbi5vcmcuYXU6dGVzdGZlZDppZHAuZXJlc2VhcmNoc2EuZWR1LmF1; _shibstate_015ed05fb42d0d8b4678e4f9baca4ee92a5ccb50=http%3A%2F%2Farcs-df.eresearchsa.edu.au%2FARCS; _shibsession_015ed05fb42d0d8b4678e4f9baca4ee92a5ccb50=_0ac596db0cc1f42eea2e18a91c5c77ed; JSESSIONID=sqm29pnf9tz0
 
 
@@ -0,0 +1,46 @@
+package webdavis;
+
+import java.io.IOException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A <code>Property</code> which can be evaluated from a <code>FileStat</code>
+ * snapshot of a resource instead of querying the resource itself.  The
+ * <code>PropertiesBuilder</code> uses these methods when it has a snapshot,
+ * so a PROPFIND on a collection can be answered from a single listing.
+ */
+public interface SnapshotProperty extends Property {
+
+    /**
+     * Creates a property element for the given resource (if applicable),
+     * with the specified document as the owner.
+     *
+     * @param document The document that is to own the property element.
+     * @param stat The snapshot of the resource being queried.
+     * @return An <code>Element</code> for the property.  If this property
+     * does not apply to the specified resource, <code>null</code> will
+     * be returned.
+     * @throws IOException If an IO error occurs while creating the element.
+     * @see Property#createElement(Document, org.irods.jargon.core.pub.io.IRODSFile)
+     */
+    public Element createElement(Document document, FileStat stat)
+            throws IOException;
+
+    /**
+     * Populates the provided <code>Element</code> with the value of the
+     * property for the given resource.
+     *
+     * @param stat The snapshot of the resource whose property value is to
+     * be retrieved.
+     * @param element The element which receives the value.
+     * @return An <code>int</code> containing the HTTP response code.
+     * @throws IOException If an IO error occurs while retrieving the
+     * property value.
+     * @see Property#retrieve(org.irods.jargon.core.pub.io.IRODSFile, Element)
+     */
+    public int retrieve(FileStat stat, Element element)
+            throws IOException;
+
+}
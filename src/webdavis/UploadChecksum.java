@@ -0,0 +1,169 @@
+package webdavis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.DataObjectAO;
+import org.irods.jargon.core.pub.domain.AvuData;
+import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.core.query.MetaDataAndDomainData;
+
+/**
+ * Computes the MD5 and SHA-256 checksums of an upload while the bytes are
+ * streamed into iRODS, so the object doesn't have to be read back to find
+ * its checksum.
+ *
+ * The checksums can be verified against the Content-MD5 (RFC 1864) and
+ * Digest (RFC 3230) request headers, registered on the data object as
+ * metadata and returned to the client in a Digest response header.
+ */
+public class UploadChecksum {
+
+	private MessageDigest md5;
+	private MessageDigest sha256;
+	private byte[] md5Value;
+	private byte[] sha256Value;
+
+	public UploadChecksum() {
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Wraps the given stream so that everything written to it is digested.
+	 *
+	 * @param output The stream the upload is written to.
+	 * @return A stream that updates the checksums as data passes through.
+	 */
+	public OutputStream wrap(OutputStream output) {
+		return new DigestOutputStream(new DigestOutputStream(output, md5), sha256);
+	}
+
+	/**
+	 * Finishes the digests. Must be called once after the last byte has been written.
+	 */
+	public void complete() {
+		md5Value = md5.digest();
+		sha256Value = sha256.digest();
+	}
+
+	public String getMD5() {
+		return toHex(md5Value);
+	}
+
+	public String getSHA256() {
+		return toHex(sha256Value);
+	}
+
+	/**
+	 * Checks the computed checksums against any Content-MD5 or Digest header
+	 * sent with the request.
+	 *
+	 * @param request The upload request.
+	 * @return null if the checksums match (or none were supplied), otherwise a description of the mismatch.
+	 */
+	public String verify(HttpServletRequest request) {
+		return verify(request.getHeader("Content-MD5"), request.getHeader("Digest"));
+	}
+
+	/**
+	 * Checks the computed checksums against the given Content-MD5 and Digest
+	 * header values (either may be null). Digest algorithms other than MD5 and
+	 * SHA-256 are ignored.
+	 *
+	 * @param contentMD5 The Content-MD5 header value.
+	 * @param digest The Digest header value.
+	 * @return null if the checksums match (or none were supplied), otherwise a description of the mismatch.
+	 */
+	public String verify(String contentMD5, String digest) {
+		if (contentMD5 != null && !matches(md5Value, contentMD5.trim()))
+			return "Content-MD5 mismatch: received "+contentMD5.trim()+", computed "+encode(md5Value);
+		if (digest == null)
+			return null;
+		String[] instances = digest.split(",");
+		for (int i = 0; i < instances.length; i++) {
+			int j = instances[i].indexOf('=');
+			if (j < 0)
+				continue;
+			String algorithm = instances[i].substring(0, j).trim();
+			String value = instances[i].substring(j+1).trim();
+			byte[] computed = null;
+			if (algorithm.equalsIgnoreCase("MD5"))
+				computed = md5Value;
+			else if (algorithm.equalsIgnoreCase("SHA-256"))
+				computed = sha256Value;
+			if (computed != null && !matches(computed, value))
+				return "Digest "+algorithm+" mismatch: received "+value+", computed "+encode(computed);
+		}
+		return null;
+	}
+
+	/**
+	 * Records the checksums on the data object as AVUs, replacing any values left by a previous upload.
+	 *
+	 * @param file The uploaded data object.
+	 * @param davisSession The session used for the upload.
+	 * @throws IOException
+	 */
+	public void register(IRODSFile file, DavisSession davisSession) throws IOException {
+		DataObjectAO dataObjectAO = davisSession.getDataObjectAO();
+		String path = file.getAbsolutePath();
+		try {
+			List<MetaDataAndDomainData> metadatas = dataObjectAO.findMetadataValuesForDataObject(file);
+			Iterator<MetaDataAndDomainData> iterator = metadatas.iterator();
+			while (iterator.hasNext()) {
+				MetaDataAndDomainData metadata = iterator.next();
+				if (metadata.getAvuAttribute().equals(DavisConfig.MD5METAKEY) || metadata.getAvuAttribute().equals(DavisConfig.SHA256METAKEY))
+					dataObjectAO.deleteAVUMetadata(path, new AvuData(metadata.getAvuAttribute(), metadata.getAvuValue(), metadata.getAvuUnit()));
+			}
+			dataObjectAO.addAVUMetadata(path, new AvuData(DavisConfig.MD5METAKEY, getMD5(), ""));
+			dataObjectAO.addAVUMetadata(path, new AvuData(DavisConfig.SHA256METAKEY, getSHA256(), ""));
+		} catch (JargonException e) {
+			Log.log(Log.WARNING, "Failed to record checksums of "+path+": "+e);
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the checksums to the client (RFC 3230 Digest header).
+	 *
+	 * @param response The servlet response.
+	 */
+	public void setHeaders(HttpServletResponse response) {
+		response.setHeader("Digest", "MD5="+encode(md5Value)+",SHA-256="+encode(sha256Value));
+	}
+
+	private static boolean matches(byte[] computed, String value) {
+		if (value.equalsIgnoreCase(toHex(computed)))	// Some clients send hex rather than base64
+			return true;
+		return Arrays.equals(computed, Base64.decodeBase64(value.getBytes()));
+	}
+
+	private static String encode(byte[] value) {
+		return new String(Base64.encodeBase64(value));
+	}
+
+	private static String toHex(byte[] data) {
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < data.length; i++) {
+			buf.append(Character.forDigit((data[i] >>> 4) & 0x0F, 16));
+			buf.append(Character.forDigit(data[i] & 0x0F, 16));
+		}
+		return buf.toString();
+	}
+}
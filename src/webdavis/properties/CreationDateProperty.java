@@ -10,6 +10,7 @@ import org.w3c.dom.Element;
 import org.irods.jargon.core.pub.io.IRODSFile;
 
 import webdavis.AbstractProperty;
+import webdavis.FileStat;
 import webdavis.DavisUtilities;
 
 /**
@@ -27,9 +28,23 @@ public class CreationDateProperty extends AbstractProperty {
                 super.createElement(document, file);
     }
 
+    public Element createElement(Document document, FileStat stat)
+            throws IOException {
+        return (stat.lastModified() == 0) ? null :
+                super.createElement(document, stat.getFile());
+    }
+
     public int retrieve(IRODSFile file, Element element)
             throws IOException {
-        long modified = file.lastModified();
+        return retrieve(file.lastModified(), element);
+    }
+
+    public int retrieve(FileStat stat, Element element)
+            throws IOException {
+        return retrieve(stat.lastModified(), element);
+    }
+
+    private int retrieve(long modified, Element element) {
         if (modified == 0) return HttpServletResponse.SC_NOT_FOUND;
         element.setAttributeNS(WEB_FOLDERS_NAMESPACE, "w:dt", "dateTime.tz");
         element.appendChild(element.getOwnerDocument().createTextNode(
@@ -10,6 +10,7 @@ import org.w3c.dom.Element;
 
 
 import webdavis.AbstractProperty;
+import webdavis.FileStat;
 
 /**
  * Provides access to the <code>getcontentlength</code> property.
@@ -24,12 +25,28 @@ public class GetContentLengthProperty extends AbstractProperty {
         return file.isDirectory() ? null : super.createElement(document, file);
     }
 
+    public Element createElement(Document document, FileStat stat)
+            throws IOException {
+        return stat.isDirectory() ? null :
+                super.createElement(document, stat.getFile());
+    }
+
     public int retrieve(IRODSFile file, Element element)
             throws IOException {
         if (file.isDirectory()) return HttpServletResponse.SC_NOT_FOUND;
+        return retrieve(file.length(), element);
+    }
+
+    public int retrieve(FileStat stat, Element element)
+            throws IOException {
+        if (stat.isDirectory()) return HttpServletResponse.SC_NOT_FOUND;
+        return retrieve(stat.length(), element);
+    }
+
+    private int retrieve(long length, Element element) {
         element.setAttributeNS(WEB_FOLDERS_NAMESPACE, "w:dt", "int");
         element.appendChild(element.getOwnerDocument().createTextNode(
-                String.valueOf(file.length())));
+                String.valueOf(length)));
         return HttpServletResponse.SC_OK;
     }
 
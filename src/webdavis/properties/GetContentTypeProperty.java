@@ -8,6 +8,7 @@ import org.irods.jargon.core.pub.io.IRODSFile;
 import org.w3c.dom.Element;
 
 import webdavis.AbstractProperty;
+import webdavis.FileStat;
 
 /**
  * Provides access to the <code>getcontenttype</code> property.
@@ -20,8 +21,17 @@ public class GetContentTypeProperty extends AbstractProperty {
 
     public int retrieve(IRODSFile file, Element element)
             throws IOException {
+        return retrieve(file, file.isDirectory(), element);
+    }
+
+    public int retrieve(FileStat stat, Element element)
+            throws IOException {
+        return retrieve(stat.getFile(), stat.isDirectory(), element);
+    }
+
+    private int retrieve(IRODSFile file, boolean directory, Element element) {
         String contentType;
-        if (file.isDirectory()) {
+        if (directory) {
             contentType = "httpd/unix-directory";
         } else {
             contentType = getServletConfig().getServletContext().getMimeType(
@@ -8,6 +8,7 @@ import org.irods.jargon.core.pub.io.IRODSFile;
 import org.w3c.dom.Element;
 
 import webdavis.AbstractProperty;
+import webdavis.FileStat;
 import webdavis.DavisUtilities;
 
 /**
@@ -20,7 +21,15 @@ public class GetETagProperty extends AbstractProperty {
 
     public int retrieve(IRODSFile file, Element element)
             throws IOException {
-        String etag = DavisUtilities.getETag(file);
+        return retrieve(DavisUtilities.getETag(file), element);
+    }
+
+    public int retrieve(FileStat stat, Element element)
+            throws IOException {
+        return retrieve(DavisUtilities.getETag(stat), element);
+    }
+
+    private int retrieve(String etag, Element element) {
         if (etag == null) return HttpServletResponse.SC_NOT_FOUND;
         element.appendChild(element.getOwnerDocument().createTextNode(etag));
         return HttpServletResponse.SC_OK;
@@ -8,6 +8,7 @@ import org.irods.jargon.core.pub.io.IRODSFile;
 import org.w3c.dom.Element;
 
 import webdavis.AbstractProperty;
+import webdavis.FileStat;
 
 /**
  * Provides access to the <code>iscollection</code> property.
@@ -20,9 +21,18 @@ public class IsCollectionProperty extends AbstractProperty {
 
     public int retrieve(IRODSFile file, Element element)
             throws IOException {
+        return retrieve(file.isFile(), element);
+    }
+
+    public int retrieve(FileStat stat, Element element)
+            throws IOException {
+        return retrieve(stat.isFile(), element);
+    }
+
+    private int retrieve(boolean isFile, Element element) {
         element.setAttributeNS(WEB_FOLDERS_NAMESPACE, "w:dt", "boolean");
         element.appendChild(element.getOwnerDocument().createTextNode(
-                file.isFile() ? "0" : "1"));
+                isFile ? "0" : "1"));
         return HttpServletResponse.SC_OK;
     }
 
@@ -8,6 +8,7 @@ import org.irods.jargon.core.pub.io.IRODSFile;
 import org.w3c.dom.Element;
 
 import webdavis.AbstractProperty;
+import webdavis.FileStat;
 
 /**
  * Provides access to the <code>isreadonly</code> property.
@@ -20,9 +21,18 @@ public class IsReadOnlyProperty extends AbstractProperty {
 
     public int retrieve(IRODSFile file, Element element)
             throws IOException {
+        return retrieve(file.canWrite(), element);
+    }
+
+    public int retrieve(FileStat stat, Element element)
+            throws IOException {
+        return retrieve(stat.canWrite(), element);
+    }
+
+    private int retrieve(boolean writable, Element element) {
         element.setAttributeNS(WEB_FOLDERS_NAMESPACE, "w:dt", "boolean");
         element.appendChild(element.getOwnerDocument().createTextNode(
-                file.canWrite() ? "0" : "1"));
+                writable ? "0" : "1"));
         return HttpServletResponse.SC_OK;
     }
 
@@ -8,6 +8,7 @@ import org.irods.jargon.core.pub.io.IRODSFile;
 import org.w3c.dom.Element;
 
 import webdavis.AbstractProperty;
+import webdavis.FileStat;
 
 /**
  * Provides access to the <code>resourcetype</code> property.
@@ -20,7 +21,16 @@ public class ResourceTypeProperty extends AbstractProperty {
 
     public int retrieve(IRODSFile file, Element element)
             throws IOException {
-        if (!file.isFile()) {
+        return retrieve(file.isFile(), element);
+    }
+
+    public int retrieve(FileStat stat, Element element)
+            throws IOException {
+        return retrieve(stat.isFile(), element);
+    }
+
+    private int retrieve(boolean isFile, Element element) {
+        if (!isFile) {
             String namespace = element.getNamespaceURI();
             if (namespace != null) {
                 String prefix = element.getPrefix();
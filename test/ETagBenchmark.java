@@ -0,0 +1,74 @@
+import java.security.MessageDigest;
+
+import webdavis.DavisUtilities;
+
+/**
+ * Compares the ETag generator in DavisUtilities with the previous one, which
+ * hashed with MD5 while holding a lock on a single shared MessageDigest.
+ *
+ * Usage: java ETagBenchmark [threads] [iterations per thread]
+ */
+public class ETagBenchmark {
+
+	private static MessageDigest digest;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		digest = MessageDigest.getInstance("MD5");
+
+		for (int round = 0; round < 3; round++) {	// The first round warms up the JIT
+			long md5 = run(threads, iterations, true);
+			long hash = run(threads, iterations, false);
+			System.out.println("Round "+round+": "+threads+" threads x "+iterations+" tags");
+			System.out.println("    synchronized MD5: "+md5+" ms");
+			System.out.println("    lock-free hash:   "+hash+" ms");
+		}
+	}
+
+	private static long run(int threads, final int iterations, final boolean md5) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final String path = "/zone/home/user/collection"+i+"/file.txt";
+			workers[i] = new Thread() {
+				public void run() {
+					long sink = 0;
+					for (int j = 0; j < iterations; j++) {
+						String etag = md5 ? getMD5ETag(path, 1300000000000L+j) : DavisUtilities.getETag(path, 1300000000000L+j, j);
+						sink += etag.length();
+					}
+					if (sink == 0)
+						System.out.println();
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < threads; i++)
+			workers[i].start();
+		for (int i = 0; i < threads; i++)
+			workers[i].join();
+		return System.currentTimeMillis()-start;
+	}
+
+	/**
+	 * The previous implementation.
+	 */
+	private static String getMD5ETag(String name, long lastModified) {
+		try {
+			String key = name + ":" + Long.toHexString(lastModified);
+			byte[] hashBytes = null;
+			synchronized (digest) {
+				hashBytes = digest.digest(key.getBytes("UTF-8"));
+			}
+			StringBuffer hash = new StringBuffer();
+			int count = hashBytes.length;
+			for (int i = 0; i < count; i++) {
+				hash.append(Integer.toHexString((hashBytes[i] >> 4) & 0x0f));
+				hash.append(Integer.toHexString(hashBytes[i] & 0x0f));
+			}
+			return "\"" + hash.toString() + "\"";
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import webdavis.DavisSession;
+import webdavis.DavisUtilities;
+import webdavis.Lock;
+import webdavis.LockIndex;
+
+/**
+ * Compares finding the locks covering a resource with a LockIndex against
+ * the linear scan over every held lock that DefaultLockManager used to do.
+ *
+ * Usage: java LockIndexBenchmark [locks] [threads] [lookups per thread]
+ */
+public class LockIndexBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		final int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+
+		final LockIndex index = new LockIndex();
+		final List<TestLock> all = new ArrayList<TestLock>();
+		Random random = new Random(1);
+		for (int i = 0; i < count; i++) {
+			TestLock lock = new TestLock("/zone/home/user"+random.nextInt(100)+"/project"+random.nextInt(100)+"/file"+i+".docx",
+					i % 100 == 0 ? DavisUtilities.INFINITE_DEPTH : 0);
+			all.add(lock);
+			index.add(lock.path, lock);
+		}
+		final String[] paths = new String[1000];
+		for (int i = 0; i < paths.length; i++)
+			paths[i] = i % 2 == 0 ? all.get(random.nextInt(count)).path : "/zone/home/user"+random.nextInt(100)+"/project"+random.nextInt(100)+"/other"+i+".txt";
+		System.out.println(count+" locks held, "+threads+" threads");
+		for (int i = 0; i < paths.length; i++)
+			if (index.getCoveringLocks(paths[i]).length != scan(all, paths[i]))
+				System.out.println("Mismatch for "+paths[i]);
+
+		for (int round = 0; round < 3; round++) {	// The first round warms up the JIT
+			long start = System.nanoTime();
+			run(threads, new Runnable() {
+				public void run() {
+					long sink = 0;
+					for (int i = 0; i < lookups; i++)
+						sink += index.getCoveringLocks(paths[i % paths.length]).length;
+					if (sink < 0)
+						System.out.println();
+				}
+			});
+			long indexed = System.nanoTime()-start;
+			final int scans = Math.max(1, lookups/1000);
+			start = System.nanoTime();
+			run(threads, new Runnable() {
+				public void run() {
+					long sink = 0;
+					for (int i = 0; i < scans; i++)
+						sink += scan(all, paths[i % paths.length]);
+					if (sink < 0)
+						System.out.println();
+				}
+			});
+			long scanned = System.nanoTime()-start;
+			System.out.println("Round "+round+":");
+			System.out.println("    index:       "+(indexed/((long)threads*lookups))+" ns per lookup ("+(indexed/1000000)+" ms for "+lookups+" per thread)");
+			System.out.println("    linear scan: "+(scanned/((long)threads*scans))+" ns per lookup ("+(scanned/1000000)+" ms for "+scans+" per thread)");
+		}
+
+		// Adding and removing while others look up
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i += 10) {
+			TestLock lock = all.get(i);
+			index.remove(lock.path, lock);
+			index.add(lock.path, lock);
+		}
+		System.out.println("Remove and re-add "+(count/10)+" locks: "+((System.nanoTime()-start)/1000000)+" ms, "+index.size()+" locks held");
+	}
+
+	private static void run(int threads, Runnable task) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+			workers[i] = new Thread(task);
+		for (int i = 0; i < threads; i++)
+			workers[i].start();
+		for (int i = 0; i < threads; i++)
+			workers[i].join();
+	}
+
+	/**
+	 * The previous implementation: a synchronized scan of every lock.
+	 */
+	private static int scan(List<TestLock> all, String path) {
+		int found = 0;
+		synchronized (all) {
+			for (int i = 0; i < all.size(); i++) {
+				TestLock lock = all.get(i);
+				String lockPath = lock.path;
+				if (path.equals(lockPath))
+					found++;
+				else if (path.startsWith(lockPath) && (lockPath.endsWith("/") || path.substring(lockPath.length()).startsWith("/"))
+						&& lock.getDepth() == DavisUtilities.INFINITE_DEPTH)
+					found++;
+			}
+		}
+		return found;
+	}
+
+	private static class TestLock extends Lock {
+
+		private final String path;
+
+		public TestLock(String path, int depth) {
+			this.path = path;
+			setDepth(depth);
+			setExclusive(true);
+		}
+
+		public String getToken() {
+			return path;
+		}
+
+		public DavisSession getDavisSession() {
+			return null;
+		}
+	}
+}
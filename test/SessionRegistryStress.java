@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import webdavis.DavisSession;
+import webdavis.SessionRegistry;
+
+/**
+ * Has many threads log in, share, reset and release Davis sessions in a
+ * SessionRegistry at once, as Jetty threads do in AuthorizationProcessor, and
+ * then checks that no HTTP session's share was lost or counted twice and that
+ * the per-user index matches the sessions.
+ *
+ * Usage: java SessionRegistryStress [threads] [operations per thread] [users]
+ */
+public class SessionRegistryStress {
+
+	private static final SessionRegistry registry = new SessionRegistry();
+	private static final AtomicLong acquired = new AtomicLong();
+	private static final AtomicLong released = new AtomicLong();
+	private static final AtomicLong logins = new AtomicLong();
+	private static final AtomicLong retries = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		final int operations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		final int users = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		Thread[] workers = new Thread[threads];
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		for (int i = 0; i < threads; i++) {
+			final long seed = i;
+			workers[i] = new Thread() {
+				public void run() {
+					try {
+						work(new Random(seed), operations, users);
+					} catch (Throwable t) {
+						synchronized (failures) {
+							failures.add(t);
+						}
+					}
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < threads; i++)
+			workers[i].start();
+		for (int i = 0; i < threads; i++)
+			workers[i].join();
+		long time = System.currentTimeMillis()-start;
+
+		System.out.println(threads+" threads x "+operations+" operations in "+time+" ms ("
+				+(threads*(long) operations*1000/Math.max(time, 1))+" ops/s)");
+		System.out.println("    logins: "+logins+"   shares: "+acquired+"   releases: "+released
+				+"   retries after a concurrent destroy: "+retries);
+		boolean ok = failures.isEmpty();
+		for (int i = 0; i < failures.size(); i++)
+			failures.get(i).printStackTrace();
+		if (acquired.get() != released.get()) {
+			System.out.println("FAILED: "+acquired+" shares but "+released+" releases");
+			ok = false;
+		}
+		// Every share was released, so nothing left may be shared
+		Map<String, Set<String>> byUser = new HashMap<String, Set<String>>();
+		for (int u = 0; u < users; u++)
+			for (int c = 0; c < 3; c++) {
+				String sessionID = "user"+u+"|"+c+"*basic|";
+				DavisSession session = registry.get(sessionID);
+				if (session == null)
+					continue;
+				if (session.isShared() || session.isRetired()) {
+					System.out.println("FAILED: left over "+sessionID+" "+session+" retired: "+session.isRetired());
+					ok = false;
+				}
+				Set<String> ids = byUser.get("user"+u);
+				if (ids == null)
+					byUser.put("user"+u, ids = new HashSet<String>());
+				ids.add(sessionID);
+			}
+		for (int u = 0; u < users; u++) {
+			Set<String> expected = byUser.containsKey("user"+u) ? byUser.get("user"+u) : new HashSet<String>();
+			if (!expected.equals(new HashSet<String>(registry.getSessionIDs("user"+u)))) {
+				System.out.println("FAILED: index for user"+u+" is "+registry.getSessionIDs("user"+u)+", expected "+expected);
+				ok = false;
+			}
+		}
+		System.out.println(ok ? "OK, "+registry.size()+" unshared sessions left" : "FAILED");
+		if (!ok)
+			System.exit(1);
+	}
+
+	/**
+	 * Each thread plays a series of HTTP sessions, each using one of a few
+	 * credentials of a user.
+	 */
+	private static void work(Random random, int operations, int users) {
+		List<String> held = new ArrayList<String>();
+		for (int i = 0; i < operations; i++) {
+			int operation = random.nextInt(10);
+			if (operation < 5 || held.isEmpty()) {
+				// A new HTTP session: find or log in, then share
+				String user = "user"+random.nextInt(users);
+				String sessionID = user+"|"+random.nextInt(3)+"*basic|";
+				boolean reset = random.nextInt(20) == 0;
+				while (true) {
+					DavisSession session = registry.get(sessionID);
+					if (session != null && reset)
+						registry.remove(sessionID, session);
+					if (session == null || reset) {
+						session = new DavisSession();
+						session.setSessionID(sessionID);
+						registry.register(sessionID, user, session, random.nextBoolean());
+						logins.incrementAndGet();
+						reset = false;
+					}
+					if (session.increaseSharedNumber())
+						break;
+					retries.incrementAndGet();
+				}
+				acquired.incrementAndGet();
+				held.add(sessionID);
+			} else {
+				// An HTTP session expires
+				String sessionID = held.remove(random.nextInt(held.size()));
+				registry.release(sessionID);
+				released.incrementAndGet();
+			}
+		}
+		for (int i = 0; i < held.size(); i++) {
+			registry.release(held.get(i));
+			released.incrementAndGet();
+		}
+	}
+}